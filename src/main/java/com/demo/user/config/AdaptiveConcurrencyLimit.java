@@ -0,0 +1,78 @@
+package com.demo.user.config;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Concurrency limit of one endpoint for {@link AdmissionControlFilter}, adapted to the observed latency by additive increase and multiplicative decrease.
+ * A request slower than the latency target shrinks the limit by a tenth, at most once per latency target, so that a burst of slow requests counts once.
+ * Requests within the target grow the limit by one per limit's worth of requests, but only while at least half of it is in use.
+ * Without a latency target, the limit stays at its maximum.
+ */
+public class AdaptiveConcurrencyLimit {
+    private static final double DECREASE_FACTOR = 0.9;
+
+    private final int minLimit;
+
+    private final int maxLimit;
+
+    private final long latencyTargetNanos;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private volatile double limit;
+
+    private long lastDecreaseNanos;
+
+    /**
+     * @param minLimit lower bound of the limit
+     * @param maxLimit upper and initial limit
+     * @param latencyTargetNanos latency above which the limit shrinks; zero for a fixed limit
+     */
+    public AdaptiveConcurrencyLimit(int minLimit, int maxLimit, long latencyTargetNanos) {
+        this.minLimit = Math.max(1, Math.min(minLimit, maxLimit));
+        this.maxLimit = maxLimit;
+        this.latencyTargetNanos = latencyTargetNanos;
+        this.limit = maxLimit;
+        this.lastDecreaseNanos = System.nanoTime() - latencyTargetNanos;
+    }
+
+    /**
+     * Takes a slot if fewer requests than the current limit are in flight.
+     * @return true if admitted, in which case {@link #release(long)} has to follow
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            final int current = this.inFlight.get();
+            if (current >= (int) this.limit) return false;
+            if (this.inFlight.compareAndSet(current, current + 1)) return true;
+        }
+    }
+
+    /**
+     * Returns a slot and adapts the limit to the latency of its request.
+     * @param latencyNanos time the request took
+     */
+    public void release(final long latencyNanos) {
+        final int inFlightBefore = this.inFlight.getAndDecrement();
+        if (this.latencyTargetNanos == 0) return;
+
+        synchronized (this) {
+            if (latencyNanos > this.latencyTargetNanos) {
+                final long now = System.nanoTime();
+                if (now - this.lastDecreaseNanos < this.latencyTargetNanos) return;
+                this.lastDecreaseNanos = now;
+                this.limit = Math.max(this.minLimit, this.limit * DECREASE_FACTOR);
+            } else if (inFlightBefore * 2 >= this.limit) {
+                this.limit = Math.min(this.maxLimit, this.limit + 1 / this.limit);
+            }
+        }
+    }
+
+    public int getLimit() {
+        return (int) this.limit;
+    }
+
+    public int getInFlight() {
+        return this.inFlight.get();
+    }
+}
@@ -0,0 +1,47 @@
+package com.demo.user.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Configuration of the admission control by {@link AdmissionControlFilter}, enabled by {@code user.admission.enabled}.
+ * Each endpoint is configured by {@code user.admission.endpoints.<endpoint>.*} with its maximum and minimum concurrency and its latency target,
+ * falling back to the defaults of {@link AdmissionControlFilter.Endpoint}.
+ * The filter is a bean of its own, so that its counters are exported.
+ */
+@Configuration
+@ConditionalOnProperty(value = "user.admission.enabled", havingValue = "true")
+public class AdmissionControlConfig {
+
+    @Bean
+    public AdmissionControlFilter admissionControlFilter(Environment environment,
+                                                         @Value("${user.admission.max-concurrency:150}") int maxConcurrency,
+                                                         @Value("${user.admission.write-share:0.8}") double writeShare,
+                                                         @Value("${user.admission.bulk-share:0.5}") double bulkShare,
+                                                         @Value("${user.admission.retry-after:PT1S}") Duration retryAfter) {
+        final Map<AdmissionControlFilter.Endpoint, AdaptiveConcurrencyLimit> limits = new EnumMap<>(AdmissionControlFilter.Endpoint.class);
+        for (AdmissionControlFilter.Endpoint endpoint : AdmissionControlFilter.Endpoint.values()) {
+            final String prefix = "user.admission.endpoints." + endpoint.getKey() + ".";
+            final int maxLimit = environment.getProperty(prefix + "max-concurrency", Integer.class, endpoint.getDefaultMaxConcurrency());
+            final int minLimit = environment.getProperty(prefix + "min-concurrency", Integer.class, Math.max(1, maxLimit / 10));
+            final Duration latencyTarget = environment.getProperty(prefix + "latency-target", Duration.class,
+                    Duration.ofMillis(endpoint.getDefaultLatencyTargetMillis()));
+            limits.put(endpoint, new AdaptiveConcurrencyLimit(minLimit, maxLimit, latencyTarget.toNanos()));
+        }
+
+        return new AdmissionControlFilter(limits, maxConcurrency, writeShare, bulkShare, Math.max(1, retryAfter.toSeconds()));
+    }
+
+    @Bean
+    public FilterRegistrationBean<AdmissionControlFilter> admissionControlFilterRegistration(AdmissionControlFilter admissionControlFilter) {
+        return new FilterRegistrationBean<>(admissionControlFilter);
+    }
+}
@@ -0,0 +1,242 @@
+package com.demo.user.config;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control of the endpoints of {@code UserController}, rejecting requests over their limit right away with 503 and Retry-After instead of queueing them.
+ * Every {@link Endpoint} has its own {@link AdaptiveConcurrencyLimit}; on top, all endpoints share a global limit,
+ * of which writes may only take a share and bulk operations a smaller one, so that reads keep getting in when writes pile up.
+ * Asynchronous requests hold their slots until they complete. Exports and waiting change feed requests may take minutes or hours,
+ * so they only count against the limits of their own endpoints and never take a slot of the global limit.
+ * Requests to other paths, like the actuator, are not limited.
+ */
+public class AdmissionControlFilter extends OncePerRequestFilter implements MeterBinder {
+    /**
+     * Endpoints of {@code UserController} with their default limits; the latency target is in milliseconds, zero for a fixed limit.
+     */
+    public enum Endpoint {
+        USER_READ("user-read", Priority.READ, 100, 100),
+        USER_WRITE("user-write", Priority.WRITE, 50, 200),
+        USERS_READ("users-read", Priority.READ, 50, 200),
+        USERS_BULK("users-bulk", Priority.BULK, 2, 5000),
+        USERS_EXPORT("users-export", Priority.LONG_RUNNING, 2, 0),
+        USERS_CHANGES("users-changes", Priority.LONG_RUNNING, 100, 0);
+
+        private final String key;
+
+        private final Priority priority;
+
+        private final int defaultMaxConcurrency;
+
+        private final long defaultLatencyTargetMillis;
+
+        Endpoint(String key, Priority priority, int defaultMaxConcurrency, long defaultLatencyTargetMillis) {
+            this.key = key;
+            this.priority = priority;
+            this.defaultMaxConcurrency = defaultMaxConcurrency;
+            this.defaultLatencyTargetMillis = defaultLatencyTargetMillis;
+        }
+
+        public String getKey() {
+            return this.key;
+        }
+
+        public int getDefaultMaxConcurrency() {
+            return this.defaultMaxConcurrency;
+        }
+
+        public long getDefaultLatencyTargetMillis() {
+            return this.defaultLatencyTargetMillis;
+        }
+    }
+
+    /**
+     * Priority of an endpoint, deciding which share of the global limit its requests may take; none for long-running requests.
+     */
+    public enum Priority {
+        READ,
+        WRITE,
+        BULK,
+        LONG_RUNNING
+    }
+
+    private final Map<Endpoint, AdaptiveConcurrencyLimit> limits;
+
+    private final Map<Priority, Integer> priorityLimits = new EnumMap<>(Priority.class);
+
+    private final String retryAfterSeconds;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final Map<Endpoint, AtomicLong> admitted = new EnumMap<>(Endpoint.class);
+
+    private final Map<Endpoint, AtomicLong> rejected = new EnumMap<>(Endpoint.class);
+
+    /**
+     * @param limits limit of every endpoint
+     * @param maxConcurrency global limit of requests in flight over all endpoints
+     * @param writeShare share of the global limit that writes may take
+     * @param bulkShare share of the global limit that bulk operations may take
+     * @param retryAfterSeconds seconds after which rejected clients should retry
+     */
+    public AdmissionControlFilter(Map<Endpoint, AdaptiveConcurrencyLimit> limits, int maxConcurrency, double writeShare, double bulkShare, long retryAfterSeconds) {
+        this.limits = new EnumMap<>(limits);
+        this.priorityLimits.put(Priority.READ, maxConcurrency);
+        this.priorityLimits.put(Priority.WRITE, (int) Math.ceil(maxConcurrency * writeShare));
+        this.priorityLimits.put(Priority.BULK, (int) Math.ceil(maxConcurrency * bulkShare));
+        this.retryAfterSeconds = String.valueOf(retryAfterSeconds);
+        for (Endpoint endpoint : Endpoint.values()) {
+            this.admitted.put(endpoint, new AtomicLong());
+            this.rejected.put(endpoint, new AtomicLong());
+        }
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain) throws ServletException, IOException {
+        final Endpoint endpoint = classify(request.getMethod(), request.getRequestURI().substring(request.getContextPath().length()));
+        if (endpoint == null) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+
+        final AdaptiveConcurrencyLimit limit = this.limits.get(endpoint);
+        if (!tryAcquireGlobal(endpoint.priority)) {
+            reject(endpoint, response);
+            return;
+        }
+        if (!limit.tryAcquire()) {
+            releaseGlobal(endpoint.priority);
+            reject(endpoint, response);
+            return;
+        }
+        this.admitted.get(endpoint).incrementAndGet();
+
+        final long startNanos = System.nanoTime();
+        final AtomicBoolean released = new AtomicBoolean();
+        final Runnable release = () -> {
+            if (!released.compareAndSet(false, true)) return;
+
+            limit.release(System.nanoTime() - startNanos);
+            releaseGlobal(endpoint.priority);
+        };
+        try {
+            filterChain.doFilter(request, response);
+        } finally {
+            if (request.isAsyncStarted()) {
+                request.getAsyncContext().addListener(new ReleasingAsyncListener(release));
+            } else {
+                release.run();
+            }
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        for (Endpoint endpoint : Endpoint.values()) {
+            FunctionCounter.builder("user.admission.requests", this.admitted.get(endpoint), AtomicLong::get)
+                    .tag("endpoint", endpoint.key).tag("outcome", "admitted").description("Requests by admission outcome").register(registry);
+            FunctionCounter.builder("user.admission.requests", this.rejected.get(endpoint), AtomicLong::get)
+                    .tag("endpoint", endpoint.key).tag("outcome", "rejected").description("Requests by admission outcome").register(registry);
+            Gauge.builder("user.admission.limit", this.limits.get(endpoint), AdaptiveConcurrencyLimit::getLimit)
+                    .tag("endpoint", endpoint.key).description("Current concurrency limit").register(registry);
+            Gauge.builder("user.admission.in-flight", this.limits.get(endpoint), AdaptiveConcurrencyLimit::getInFlight)
+                    .tag("endpoint", endpoint.key).description("Admitted requests in flight").register(registry);
+        }
+    }
+
+    /**
+     * Tells which endpoint of {@code UserController} a request is for.
+     * @param method HTTP method
+     * @param path path within the application
+     * @return {@link Endpoint} of the request; null if not limited
+     */
+    static Endpoint classify(final String method, final String path) {
+        final boolean reads = HttpMethod.GET.matches(method) || HttpMethod.HEAD.matches(method);
+        if (path.startsWith("/user/")) return reads ? Endpoint.USER_READ : Endpoint.USER_WRITE;
+
+        switch (path) {
+            case "/users":
+                if (reads) return Endpoint.USERS_READ;
+                return HttpMethod.POST.matches(method) ? Endpoint.USERS_BULK : null;
+            case "/users/suggest":
+                return reads ? Endpoint.USERS_READ : null;
+            case "/users/export":
+                return reads ? Endpoint.USERS_EXPORT : null;
+            case "/users/changes":
+                return reads ? Endpoint.USERS_CHANGES : null;
+            default:
+                return null;
+        }
+    }
+
+    private boolean tryAcquireGlobal(final Priority priority) {
+        if (priority == Priority.LONG_RUNNING) return true;
+
+        final int priorityLimit = this.priorityLimits.get(priority);
+        while (true) {
+            final int current = this.inFlight.get();
+            if (current >= priorityLimit) return false;
+            if (this.inFlight.compareAndSet(current, current + 1)) return true;
+        }
+    }
+
+    private void releaseGlobal(final Priority priority) {
+        if (priority != Priority.LONG_RUNNING) this.inFlight.decrementAndGet();
+    }
+
+    private void reject(final Endpoint endpoint, final HttpServletResponse response) {
+        this.rejected.get(endpoint).incrementAndGet();
+        response.setHeader(HttpHeaders.RETRY_AFTER, this.retryAfterSeconds);
+        response.setStatus(HttpStatus.SERVICE_UNAVAILABLE.value());
+    }
+
+    /**
+     * Releases the slot of an asynchronous request once it completed, which includes failures and timeouts.
+     */
+    private static class ReleasingAsyncListener implements AsyncListener {
+        private final Runnable release;
+
+        private ReleasingAsyncListener(Runnable release) {
+            this.release = release;
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            this.release.run();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+            // listeners are dropped when another asynchronous cycle starts, keep the slot until the last one completes
+            event.getAsyncContext().addListener(this);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.demo.user.config;
+
+import io.micrometer.core.annotation.Timed;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Configuration of the metrics of the user-service.
+ * HTTP requests, Spring Data repositories and the connection pool are instrumented by Spring Boot Actuator;
+ * methods of the domain layer and of the JDBC repositories are timed by {@link Timed}.
+ */
+@Configuration
+public class MetricsConfig {
+
+    @Bean
+    public MethodTimerAspect methodTimerAspect(MeterRegistry meterRegistry) {
+        return new MethodTimerAspect(meterRegistry);
+    }
+
+    /**
+     * Records methods annotated with {@link Timed} in a {@link Timer} named by the annotation and tagged with class and method.
+     * Unlike Micrometer's TimedAspect, the {@link Timer} is looked up once per method instead of being built on every call,
+     * which keeps the overhead on the request path at a single map lookup and a clock read around the call.
+     */
+    @Aspect
+    public static class MethodTimerAspect {
+        private final MeterRegistry meterRegistry;
+
+        private final ConcurrentMap<Method, Timer> timers = new ConcurrentHashMap<>();
+
+        public MethodTimerAspect(MeterRegistry meterRegistry) {
+            this.meterRegistry = meterRegistry;
+        }
+
+        @Around("execution (@io.micrometer.core.annotation.Timed * *.*(..))")
+        public Object time(ProceedingJoinPoint joinPoint) throws Throwable {
+            final Method method = ((MethodSignature) joinPoint.getSignature()).getMethod();
+            Timer timer = this.timers.get(method);
+            if (timer == null) timer = this.timers.computeIfAbsent(method, this::createTimer);
+
+            final long startNanos = System.nanoTime();
+            try {
+                return joinPoint.proceed();
+            } finally {
+                timer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        private Timer createTimer(Method method) {
+            final Timed timed = method.getAnnotation(Timed.class);
+            return Timer.builder(timed.value())
+                    .tag("class", method.getDeclaringClass().getSimpleName())
+                    .tag("method", method.getName())
+                    .register(this.meterRegistry);
+        }
+    }
+}
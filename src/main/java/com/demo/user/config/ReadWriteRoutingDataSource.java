@@ -0,0 +1,88 @@
+package com.demo.user.config;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.datasource.AbstractDataSource;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Routes connections of read-only transactions to the replica and all others to the primary.
+ * Has to be wrapped in a {@link org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy},
+ * as the read-only flag of a transaction is only known once it began, after the transaction manager asked for a connection.
+ * Reads pinned by {@link ReplicaRouting} go to the primary as well.
+ * If the replica can't hand out a connection, it is skipped for the retry interval and reads fall back to the primary.
+ */
+public class ReadWriteRoutingDataSource extends AbstractDataSource implements MeterBinder {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReadWriteRoutingDataSource.class);
+
+    private final DataSource primary;
+
+    private final DataSource replica;
+
+    private final long retryIntervalNanos;
+
+    private final AtomicLong primaryConnections = new AtomicLong();
+
+    private final AtomicLong replicaConnections = new AtomicLong();
+
+    private final AtomicLong fallbacks = new AtomicLong();
+
+    private volatile long replicaDownSinceNanos;
+
+    private volatile boolean replicaDown;
+
+    public ReadWriteRoutingDataSource(DataSource primary, DataSource replica, Duration retryInterval) {
+        this.primary = primary;
+        this.replica = replica;
+        this.retryIntervalNanos = retryInterval.toNanos();
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (!routesToReplica()) {
+            this.primaryConnections.incrementAndGet();
+            return this.primary.getConnection();
+        }
+
+        try {
+            final Connection connection = this.replica.getConnection();
+            this.replicaDown = false;
+            this.replicaConnections.incrementAndGet();
+            return connection;
+        } catch (SQLException e) {
+            if (!this.replicaDown) LOGGER.warn("Replica unavailable, reading from primary for {} ms", this.retryIntervalNanos / 1_000_000, e);
+            this.replicaDownSinceNanos = System.nanoTime();
+            this.replicaDown = true;
+            this.fallbacks.incrementAndGet();
+            this.primaryConnections.incrementAndGet();
+            return this.primary.getConnection();
+        }
+    }
+
+    @Override
+    public Connection getConnection(final String username, final String password) throws SQLException {
+        throw new SQLException("Routing data source only hands out connections of its configured pools");
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("user.datasource.connections", this.primaryConnections, AtomicLong::get).tag("target", "primary").register(registry);
+        FunctionCounter.builder("user.datasource.connections", this.replicaConnections, AtomicLong::get).tag("target", "replica").register(registry);
+        FunctionCounter.builder("user.datasource.replica.fallbacks", this.fallbacks, AtomicLong::get).register(registry);
+    }
+
+    private boolean routesToReplica() {
+        if (!TransactionSynchronizationManager.isCurrentTransactionReadOnly() || ReplicaRouting.isPinnedToPrimary()) return false;
+
+        return !this.replicaDown || System.nanoTime() - this.replicaDownSinceNanos > this.retryIntervalNanos;
+    }
+}
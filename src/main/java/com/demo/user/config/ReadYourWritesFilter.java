@@ -0,0 +1,40 @@
+package com.demo.user.config;
+
+import org.springframework.http.HttpMethod;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Pins all reads of a request to the primary if the request writes, or if its client wrote within the read-your-writes window of {@link ReplicaRouting}.
+ * Clients are told apart by their remote address, so clients sharing an address, e.g. behind a proxy, are pinned together.
+ */
+public class ReadYourWritesFilter extends OncePerRequestFilter {
+    private final ReplicaRouting replicaRouting;
+
+    public ReadYourWritesFilter(ReplicaRouting replicaRouting) {
+        this.replicaRouting = replicaRouting;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain) throws ServletException, IOException {
+        final String client = request.getRemoteAddr();
+        final boolean writes = !HttpMethod.GET.matches(request.getMethod()) && !HttpMethod.HEAD.matches(request.getMethod());
+        if (!writes && !this.replicaRouting.isClientRecentlyWritten(client)) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+
+        final boolean pinned = ReplicaRouting.pinToPrimary();
+        try {
+            filterChain.doFilter(request, response);
+        } finally {
+            if (pinned) ReplicaRouting.unpin();
+            if (writes && response.getStatus() < 400) this.replicaRouting.recordClientWrite(client);
+        }
+    }
+}
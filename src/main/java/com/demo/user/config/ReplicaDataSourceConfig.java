@@ -0,0 +1,62 @@
+package com.demo.user.config;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+
+import javax.sql.DataSource;
+import java.time.Duration;
+
+/**
+ * Configuration of the read/write split, enabled by {@code user.replica.enabled}.
+ * Replaces the single data source by {@link ReadWriteRoutingDataSource} over the primary pool configured by {@code spring.datasource.*}
+ * and the replica pool configured by {@code user.replica.datasource.*}, which takes the properties of a Hikari pool.
+ * Both pools stay beans of their own, so that each gets its connection pool metrics.
+ * The routing data source is a bean as well, to export how many connections went to either pool, but only its lazy proxy is the primary data source.
+ */
+@Configuration
+@ConditionalOnProperty(value = "user.replica.enabled", havingValue = "true")
+public class ReplicaDataSourceConfig {
+
+    @Bean
+    @ConfigurationProperties("spring.datasource.hikari")
+    public HikariDataSource primaryDataSource(DataSourceProperties dataSourceProperties) {
+        final HikariDataSource dataSource = dataSourceProperties.initializeDataSourceBuilder().type(HikariDataSource.class).build();
+        dataSource.setPoolName("primary");
+        return dataSource;
+    }
+
+    @Bean
+    @ConfigurationProperties("user.replica.datasource")
+    public HikariDataSource replicaDataSource() {
+        final HikariDataSource dataSource = new HikariDataSource();
+        dataSource.setPoolName("replica");
+        return dataSource;
+    }
+
+    @Bean
+    public ReadWriteRoutingDataSource readWriteRoutingDataSource(@Qualifier("primaryDataSource") DataSource primaryDataSource,
+                                                                 @Qualifier("replicaDataSource") DataSource replicaDataSource,
+                                                                 @Value("${user.replica.retry-interval:PT5S}") Duration retryInterval) {
+        return new ReadWriteRoutingDataSource(primaryDataSource, replicaDataSource, retryInterval);
+    }
+
+    @Bean
+    @Primary
+    public DataSource dataSource(ReadWriteRoutingDataSource readWriteRoutingDataSource) {
+        return new LazyConnectionDataSourceProxy(readWriteRoutingDataSource);
+    }
+
+    @Bean
+    public FilterRegistrationBean<ReadYourWritesFilter> readYourWritesFilter(ReplicaRouting replicaRouting) {
+        return new FilterRegistrationBean<>(new ReadYourWritesFilter(replicaRouting));
+    }
+}
@@ -0,0 +1,123 @@
+package com.demo.user.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Decides which reads have to see the primary although they run in a read-only transaction, used by {@link ReadWriteRoutingDataSource}.
+ * Code running in {@link #onPrimary(Supplier)} is pinned to the primary on the current thread.
+ * {@link ReadYourWritesFilter} pins write requests and every request of a client within the read-your-writes window after its last write;
+ * {@code UserService} pins lookups of usernames written within that window, so that the cache is never filled from a lagging replica.
+ * Does nothing unless {@code user.replica.enabled} is set.
+ */
+@Component
+public class ReplicaRouting {
+    private static final ThreadLocal<Boolean> PINNED_TO_PRIMARY = new ThreadLocal<>();
+
+    private final boolean enabled;
+
+    private final long windowNanos;
+
+    private final Map<String, Long> clientWrites = new ConcurrentHashMap<>();
+
+    private final Map<String, Long> usernameWrites = new ConcurrentHashMap<>();
+
+    private final AtomicLong lastPruneNanos = new AtomicLong(System.nanoTime());
+
+    public ReplicaRouting(@Value("${user.replica.enabled:false}") boolean enabled,
+                          @Value("${user.replica.read-your-writes-window:PT5S}") Duration readYourWritesWindow) {
+        this.enabled = enabled;
+        this.windowNanos = readYourWritesWindow.toNanos();
+    }
+
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    /**
+     * @return true if reads on the current thread have to go to the primary
+     */
+    public static boolean isPinnedToPrimary() {
+        return PINNED_TO_PRIMARY.get() != null;
+    }
+
+    /**
+     * Runs the given action with all reads on the current thread pinned to the primary.
+     * @param action action to run
+     * @return result of the action
+     */
+    public <T> T onPrimary(final Supplier<T> action) {
+        final boolean pinned = pinToPrimary();
+        try {
+            return action.get();
+        } finally {
+            if (pinned) unpin();
+        }
+    }
+
+    /**
+     * Pins reads on the current thread to the primary until {@link #unpin()}.
+     * @return true if newly pinned, false if already pinned by an enclosing caller that will unpin
+     */
+    static boolean pinToPrimary() {
+        if (isPinnedToPrimary()) return false;
+
+        PINNED_TO_PRIMARY.set(Boolean.TRUE);
+        return true;
+    }
+
+    static void unpin() {
+        PINNED_TO_PRIMARY.remove();
+    }
+
+    /**
+     * Records a write by the given client, whose reads are pinned to the primary for the read-your-writes window.
+     * @param client identifying address of the client
+     */
+    public void recordClientWrite(final String client) {
+        record(this.clientWrites, client);
+    }
+
+    /**
+     * Records a write of the given username, whose lookups are pinned to the primary for the read-your-writes window.
+     * @param username identifying username
+     */
+    public void recordUsernameWrite(final String username) {
+        record(this.usernameWrites, username);
+    }
+
+    public boolean isClientRecentlyWritten(final String client) {
+        return isRecent(this.clientWrites, client);
+    }
+
+    public boolean isUsernameRecentlyWritten(final String username) {
+        return isRecent(this.usernameWrites, username);
+    }
+
+    private void record(final Map<String, Long> writes, final String key) {
+        if (!this.enabled) return;
+
+        final long now = System.nanoTime();
+        writes.put(key, now);
+
+        // prune expired entries at most once per window, so that both maps only hold the writes of about two windows
+        final long lastPrune = this.lastPruneNanos.get();
+        if (now - lastPrune > this.windowNanos && this.lastPruneNanos.compareAndSet(lastPrune, now)) {
+            this.clientWrites.values().removeIf(writeNanos -> now - writeNanos > this.windowNanos);
+            this.usernameWrites.values().removeIf(writeNanos -> now - writeNanos > this.windowNanos);
+        }
+    }
+
+    private boolean isRecent(final Map<String, Long> writes, final String key) {
+        if (!this.enabled) return false;
+
+        final Long writeNanos = writes.get(key);
+        return writeNanos != null && System.nanoTime() - writeNanos <= this.windowNanos;
+    }
+}
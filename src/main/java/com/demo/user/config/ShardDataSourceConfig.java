@@ -0,0 +1,68 @@
+package com.demo.user.config;
+
+import com.zaxxer.hikari.HikariDataSource;
+import liquibase.integration.spring.SpringLiquibase;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.liquibase.LiquibaseProperties;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+
+import javax.sql.DataSource;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Configuration of the sharding by username, enabled by {@code user.sharding.enabled}.
+ * Replaces the single data source by {@link ShardRoutingDataSource} over one pool per entry of {@code user.sharding.shards.<name>.*},
+ * which takes the properties of a Hikari pool. The name places the shard on the hash ring of {@link ShardRouting} and must not change once it holds users.
+ * Shards are numbered in the order of their names.
+ * Liquibase runs on every shard through {@link ShardedSpringLiquibase}, configured by {@code spring.liquibase.*} as usual.
+ * As Hibernate would only create the schema of the first shard, the schema has to be left to Liquibase; the read replica can't be combined with sharding.
+ */
+@Configuration
+@ConditionalOnProperty(value = "user.sharding.enabled", havingValue = "true")
+@EnableConfigurationProperties(LiquibaseProperties.class)
+public class ShardDataSourceConfig {
+    private static final Set<String> SCHEMA_PRESERVING_DDL_AUTO = Set.of("none", "validate");
+
+    @Bean
+    public ShardRoutingDataSource shardRoutingDataSource(Environment environment,
+                                                         @Value("${user.replica.enabled:false}") boolean replicaEnabled,
+                                                         @Value("${spring.jpa.hibernate.ddl-auto:none}") String ddlAuto) {
+        if (replicaEnabled) throw new IllegalStateException("user.sharding.enabled can't be combined with user.replica.enabled");
+        if (!SCHEMA_PRESERVING_DDL_AUTO.contains(ddlAuto)) {
+            throw new IllegalStateException("Sharding needs spring.jpa.hibernate.ddl-auto=validate or none, as Hibernate would only create the schema of the first shard");
+        }
+
+        final Map<String, HikariDataSource> pools = new TreeMap<>(Binder.get(environment)
+                .bind("user.sharding.shards", Bindable.mapOf(String.class, HikariDataSource.class))
+                .orElseThrow(() -> new IllegalStateException("Sharding needs at least one shard configured by user.sharding.shards.<name>.jdbc-url")));
+        final Map<String, DataSource> shards = new LinkedHashMap<>();
+        for (Map.Entry<String, HikariDataSource> pool : pools.entrySet()) {
+            pool.getValue().setPoolName(pool.getKey());
+            shards.put(pool.getKey(), pool.getValue());
+        }
+
+        return new ShardRoutingDataSource(shards);
+    }
+
+    @Bean
+    public SpringLiquibase liquibase(ShardRoutingDataSource shardRoutingDataSource, LiquibaseProperties liquibaseProperties) {
+        final ShardedSpringLiquibase liquibase = new ShardedSpringLiquibase(shardRoutingDataSource);
+        liquibase.setChangeLog(liquibaseProperties.getChangeLog());
+        liquibase.setContexts(liquibaseProperties.getContexts());
+        liquibase.setLabels(liquibaseProperties.getLabels());
+        liquibase.setDefaultSchema(liquibaseProperties.getDefaultSchema());
+        liquibase.setDropFirst(liquibaseProperties.isDropFirst());
+        liquibase.setShouldRun(liquibaseProperties.isEnabled());
+        liquibase.setChangeLogParameters(liquibaseProperties.getParameters());
+        return liquibase;
+    }
+}
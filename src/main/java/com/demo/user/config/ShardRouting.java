@@ -0,0 +1,397 @@
+package com.demo.user.config;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+
+/**
+ * Decides on which shard the user of a username lives, used by {@link ShardRoutingDataSource}.
+ * Usernames are placed on a consistent hash ring, on which every shard takes a number of virtual nodes derived from its name,
+ * so that adding a shard only moves the users it takes over, about 1/N of them, while all others stay where they are.
+ * Code running in {@link #onShard(int, Supplier)} gets connections of that shard on the current thread; a transaction stays on the shard it began on.
+ * Operations across shards run on every shard in parallel through {@link #onEachShard(IntFunction)}, {@link #fanOut(List, BiFunction)}
+ * and {@link #mergeSorted(BiConsumer, Comparator, int, Consumer)}.
+ * Without {@code user.sharding.enabled} there is a single shard, on which everything runs on the calling thread.
+ */
+@Component
+public class ShardRouting implements MeterBinder {
+    private static final ThreadLocal<Integer> CURRENT_SHARD = new ThreadLocal<>();
+
+    private static final ThreadLocal<MessageDigest> MD5 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private static final Object END_OF_SHARD = new Object();
+
+    private final List<String> shardNames;
+
+    /**
+     * Positions of the virtual nodes on the ring in ascending order, and the shard of each.
+     */
+    private final long[] ringPositions;
+
+    private final int[] ringShards;
+
+    private final ExecutorService executor;
+
+    private final AtomicLong fanOuts = new AtomicLong();
+
+    @Autowired
+    public ShardRouting(ObjectProvider<ShardRoutingDataSource> shardRoutingDataSource,
+                        @Value("${user.sharding.virtual-nodes:128}") int virtualNodes) {
+        this(shardRoutingDataSource.getIfAvailable() == null ? List.of("default") : shardRoutingDataSource.getIfAvailable().getShardNames(), virtualNodes);
+    }
+
+    /**
+     * @param shardNames names of the shards, which determine their positions on the ring; their order determines the shard numbers
+     * @param virtualNodes number of positions of every shard on the ring
+     */
+    public ShardRouting(List<String> shardNames, int virtualNodes) {
+        this.shardNames = List.copyOf(shardNames);
+
+        final int nodes = shardNames.size() * virtualNodes;
+        final long[][] ring = new long[nodes][];
+        for (int shard = 0; shard < shardNames.size(); shard++) {
+            for (int node = 0; node < virtualNodes; node++) {
+                ring[shard * virtualNodes + node] = new long[]{hash(shardNames.get(shard) + "#" + node), shard};
+            }
+        }
+        Arrays.sort(ring, Comparator.<long[]>comparingLong(entry -> entry[0]).thenComparingLong(entry -> entry[1]));
+        this.ringPositions = new long[nodes];
+        this.ringShards = new int[nodes];
+        for (int i = 0; i < nodes; i++) {
+            this.ringPositions[i] = ring[i][0];
+            this.ringShards[i] = (int) ring[i][1];
+        }
+
+        this.executor = shardNames.size() == 1 ? null : Executors.newCachedThreadPool(new ShardThreadFactory());
+    }
+
+    public boolean isSharded() {
+        return this.shardNames.size() > 1;
+    }
+
+    public int getShardCount() {
+        return this.shardNames.size();
+    }
+
+    public String getShardName(final int shard) {
+        return this.shardNames.get(shard);
+    }
+
+    /**
+     * @return shard bound to the current thread by {@link #onShard(int, Supplier)}; the first shard if none is
+     */
+    static int getCurrentShard() {
+        final Integer shard = CURRENT_SHARD.get();
+        return shard == null ? 0 : shard;
+    }
+
+    /**
+     * Finds the shard of a username: the one of the first virtual node at or after the hash of the username on the ring.
+     * @param username identifying username
+     * @return number of the shard
+     */
+    public int shardOf(final String username) {
+        if (!isSharded()) return 0;
+
+        final int index = Arrays.binarySearch(this.ringPositions, hash(username));
+        final int node = index >= 0 ? index : -index - 1;
+        return this.ringShards[node == this.ringPositions.length ? 0 : node];
+    }
+
+    /**
+     * Runs the given action on the shard of a username.
+     * @param username identifying username
+     * @param action action to run
+     * @return result of the action
+     */
+    public <T> T onShardOf(final String username, final Supplier<T> action) {
+        return onShard(shardOf(username), action);
+    }
+
+    /**
+     * Runs the given action with connections of the given shard on the current thread.
+     * A thread already on another shard may only switch outside of a transaction, which would otherwise keep the connection of the other one.
+     * @param shard number of the shard
+     * @param action action to run
+     * @return result of the action
+     * @throws IllegalStateException if the current thread is within a transaction on another shard
+     */
+    public <T> T onShard(final int shard, final Supplier<T> action) {
+        if (!isSharded()) return action.get();
+
+        final Integer previous = CURRENT_SHARD.get();
+        if (previous != null && previous != shard && TransactionSynchronizationManager.isActualTransactionActive()) {
+            throw new IllegalStateException("Can't switch from shard " + getShardName(previous) + " to " + getShardName(shard) + " within a transaction");
+        }
+
+        CURRENT_SHARD.set(shard);
+        try {
+            return action.get();
+        } finally {
+            if (previous == null) {
+                CURRENT_SHARD.remove();
+            } else {
+                CURRENT_SHARD.set(previous);
+            }
+        }
+    }
+
+    /**
+     * Splits items by the shard of their username.
+     * @param items items to split
+     * @param usernameOf username of an item
+     * @return List of the items of every shard, indexed by shard, in the order of the given items
+     */
+    public <T> List<List<T>> partition(final Collection<T> items, final Function<T, String> usernameOf) {
+        if (!isSharded()) return List.of(new ArrayList<>(items));
+
+        final List<List<T>> partitions = new ArrayList<>(this.shardNames.size());
+        for (int shard = 0; shard < this.shardNames.size(); shard++) partitions.add(new ArrayList<>());
+        for (T item : items) partitions.get(shardOf(usernameOf.apply(item))).add(item);
+
+        return partitions;
+    }
+
+    /**
+     * Runs the given action on every shard, in parallel if there are several.
+     * @param action action to run, given the number of the shard it runs on
+     * @return List of the results, indexed by shard
+     * @throws RuntimeException thrown by the action on any shard, after all shards finished
+     */
+    public <T> List<T> onEachShard(final IntFunction<T> action) {
+        final int[] shards = new int[this.shardNames.size()];
+        for (int shard = 0; shard < shards.length; shard++) shards[shard] = shard;
+
+        return run(shards, action);
+    }
+
+    /**
+     * Runs the given action for the items of every shard that has any, in parallel if there are several.
+     * @param partitions items of every shard as split by {@link #partition(Collection, Function)}
+     * @param action action to run, given the number of the shard it runs on and the items of that shard
+     * @return List of the results, indexed by shard; null for shards without items
+     * @throws RuntimeException thrown by the action on any shard, after all shards finished
+     */
+    public <T, R> List<R> fanOut(final List<List<T>> partitions, final BiFunction<Integer, List<T>, R> action) {
+        final int[] shards = new int[partitions.size()];
+        int count = 0;
+        for (int shard = 0; shard < partitions.size(); shard++) {
+            if (!partitions.get(shard).isEmpty()) shards[count++] = shard;
+        }
+
+        return run(Arrays.copyOf(shards, count), shard -> action.apply(shard, partitions.get(shard)));
+    }
+
+    /**
+     * Merges the items of every shard, each read in the given order, into one stream in that order.
+     * Every shard is read on a thread of its own into a bounded queue, so that at most the buffer size of items per shard is held in memory.
+     * Once the consumer fails, the readers are stopped, so that their queries end as well.
+     * @param reader reads the items of the shard it is given in order into the consumer it is given; runs on that shard
+     * @param order order in which every shard is read
+     * @param bufferSize capacity of the queue of every shard
+     * @param consumer receives all items in order on the calling thread
+     * @throws RuntimeException thrown by the reader of any shard or by the consumer
+     */
+    public <T> void mergeSorted(final BiConsumer<Integer, Consumer<T>> reader, final Comparator<T> order, final int bufferSize, final Consumer<T> consumer) {
+        if (!isSharded()) {
+            reader.accept(0, consumer);
+            return;
+        }
+
+        this.fanOuts.incrementAndGet();
+        final int shardCount = this.shardNames.size();
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        final List<BlockingQueue<Object>> queues = new ArrayList<>(shardCount);
+        final List<Future<?>> futures = new ArrayList<>(shardCount);
+        for (int shard = 0; shard < shardCount; shard++) {
+            final int readShard = shard;
+            final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(bufferSize);
+            queues.add(queue);
+            futures.add(this.executor.submit(() -> onShard(readShard, () -> {
+                try {
+                    reader.accept(readShard, item -> put(queue, item, cancelled));
+                } finally {
+                    if (!cancelled.get()) put(queue, END_OF_SHARD, cancelled);
+                }
+                return null;
+            })));
+        }
+
+        try {
+            final PriorityQueue<Head<T>> heads = new PriorityQueue<>(shardCount, (first, second) -> order.compare(first.item, second.item));
+            for (int shard = 0; shard < shardCount; shard++) ShardRouting.<T>take(queues, futures, shard).ifPresent(heads::add);
+            while (!heads.isEmpty()) {
+                final Head<T> head = heads.poll();
+                consumer.accept(head.item);
+                ShardRouting.<T>take(queues, futures, head.shard).ifPresent(heads::add);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("interrupted while merging shards");
+        } finally {
+            cancelled.set(true);
+            for (Future<?> future : futures) awaitQuietly(future);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (this.executor != null) this.executor.shutdownNow();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("user.sharding.fan-outs", this.fanOuts, AtomicLong::get).description("Operations run on several shards in parallel").register(registry);
+    }
+
+    /**
+     * Utility function that runs an action on each of the given shards, on the calling thread if it is only one.
+     * Several shards all run on the pool, as the calling thread might be within a transaction on a shard already.
+     */
+    private <T> List<T> run(final int[] shards, final IntFunction<T> action) {
+        final List<T> results = new ArrayList<>(Collections.nCopies(this.shardNames.size(), null));
+        if (shards.length == 0) return results;
+        if (shards.length == 1) {
+            results.set(shards[0], onShard(shards[0], () -> action.apply(shards[0])));
+            return results;
+        }
+
+        this.fanOuts.incrementAndGet();
+        final List<Future<T>> futures = new ArrayList<>(shards.length);
+        for (int shard : shards) {
+            futures.add(this.executor.submit(() -> onShard(shard, () -> action.apply(shard))));
+        }
+
+        RuntimeException failure = null;
+        for (int i = 0; i < shards.length; i++) {
+            try {
+                results.set(shards[i], futures.get(i).get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                futures.forEach(future -> future.cancel(true));
+                throw new CancellationException("interrupted while waiting for shards");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Error) throw (Error) e.getCause();
+                if (failure == null) failure = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new IllegalStateException(e.getCause());
+            }
+        }
+        if (failure != null) throw failure;
+
+        return results;
+    }
+
+    /**
+     * Utility function that takes the next item of a shard for {@link #mergeSorted(BiConsumer, Comparator, int, Consumer)}.
+     * @return Optional of the next item; empty Optional once the shard was read completely
+     * @throws RuntimeException thrown by the reader of the shard
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> Optional<Head<T>> take(final List<BlockingQueue<Object>> queues, final List<Future<?>> futures, final int shard)
+            throws InterruptedException {
+        final Object item = queues.get(shard).take();
+        if (item != END_OF_SHARD) return Optional.of(new Head<>((T) item, shard));
+
+        try {
+            futures.get(shard).get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Error) throw (Error) e.getCause();
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new IllegalStateException(e.getCause());
+        }
+        return Optional.empty();
+    }
+
+    private static void put(final BlockingQueue<Object> queue, final Object item, final AtomicBoolean cancelled) {
+        try {
+            while (cancelled.get() || !queue.offer(item, 100, TimeUnit.MILLISECONDS)) {
+                if (cancelled.get()) throw new CancellationException("merge of shards was cancelled");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("interrupted while reading shard");
+        }
+    }
+
+    private static void awaitQuietly(final Future<?> future) {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | CancellationException e) {
+            // already reported by the merge or caused by its cancellation
+        }
+    }
+
+    /**
+     * Position on the ring: the first 8 bytes of the MD5 digest of the UTF-8 encoding, which is stable across versions and platforms.
+     */
+    private static long hash(final String key) {
+        final byte[] digest = MD5.get().digest(key.getBytes(StandardCharsets.UTF_8));
+        long hash = 0;
+        for (int i = 0; i < Long.BYTES; i++) hash = (hash << 8) | (digest[i] & 0xff);
+        return hash;
+    }
+
+    private static final class Head<T> {
+        private final T item;
+
+        private final int shard;
+
+        private Head(T item, int shard) {
+            this.item = item;
+            this.shard = shard;
+        }
+    }
+
+    private static final class ShardThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            final Thread thread = new Thread(runnable, "user-shard-" + this.count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
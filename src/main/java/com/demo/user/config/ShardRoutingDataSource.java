@@ -0,0 +1,87 @@
+package com.demo.user.config;
+
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.metrics.micrometer.MicrometerMetricsTrackerFactory;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.datasource.AbstractDataSource;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out connections of the shard that {@link ShardRouting} bound to the current thread.
+ * Connections taken outside of any shard, such as by Hibernate's startup and the health check, come from the first shard.
+ * Every shard is a pool of its own, named after the shard, which is closed together with this data source.
+ * As the pools are no beans, their connection pool metrics are registered here as well.
+ */
+public class ShardRoutingDataSource extends AbstractDataSource implements MeterBinder {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ShardRoutingDataSource.class);
+
+    private final List<String> shardNames;
+
+    private final List<DataSource> shards;
+
+    private final List<AtomicLong> connections = new ArrayList<>();
+
+    /**
+     * @param shards pools of the shards by their names, in the order of their numbers
+     */
+    public ShardRoutingDataSource(Map<String, DataSource> shards) {
+        this.shardNames = List.copyOf(shards.keySet());
+        this.shards = List.copyOf(shards.values());
+        for (int i = 0; i < this.shards.size(); i++) this.connections.add(new AtomicLong());
+    }
+
+    public List<String> getShardNames() {
+        return this.shardNames;
+    }
+
+    public List<DataSource> getShards() {
+        return this.shards;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        final int shard = ShardRouting.getCurrentShard();
+        this.connections.get(shard).incrementAndGet();
+        return this.shards.get(shard).getConnection();
+    }
+
+    @Override
+    public Connection getConnection(final String username, final String password) throws SQLException {
+        throw new SQLException("Routing data source only hands out connections of its configured pools");
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        for (int shard = 0; shard < this.shards.size(); shard++) {
+            FunctionCounter.builder("user.datasource.connections", this.connections.get(shard), AtomicLong::get).tag("target", this.shardNames.get(shard)).register(registry);
+            if (this.shards.get(shard) instanceof HikariDataSource) {
+                ((HikariDataSource) this.shards.get(shard)).setMetricsTrackerFactory(new MicrometerMetricsTrackerFactory(registry));
+            }
+        }
+    }
+
+    /**
+     * Closes the pools of all shards.
+     */
+    public void close() {
+        for (int shard = 0; shard < this.shards.size(); shard++) {
+            if (!(this.shards.get(shard) instanceof AutoCloseable)) continue;
+            try {
+                ((AutoCloseable) this.shards.get(shard)).close();
+            } catch (Exception e) {
+                LOGGER.warn("Could not close pool of shard {}", this.shardNames.get(shard), e);
+            }
+        }
+    }
+}
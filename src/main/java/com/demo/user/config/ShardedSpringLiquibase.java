@@ -0,0 +1,56 @@
+package com.demo.user.config;
+
+import liquibase.exception.LiquibaseException;
+import liquibase.integration.spring.SpringLiquibase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Runs the Liquibase changelog on every shard of {@link ShardRoutingDataSource} in turn, each keeping its own changelog tables.
+ * Afterwards every PostgreSQL shard is checked to sort by the C collation, i.e. by the bytes of the usernames,
+ * as listings and exports merge the pages of all shards in that order.
+ * Being a {@link SpringLiquibase}, it replaces the single run of Spring Boot and still precedes JPA.
+ */
+public class ShardedSpringLiquibase extends SpringLiquibase {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ShardedSpringLiquibase.class);
+
+    private final List<String> shardNames;
+
+    private final List<DataSource> shards;
+
+    public ShardedSpringLiquibase(ShardRoutingDataSource shardRoutingDataSource) {
+        this.shardNames = shardRoutingDataSource.getShardNames();
+        this.shards = shardRoutingDataSource.getShards();
+    }
+
+    @Override
+    public void afterPropertiesSet() throws LiquibaseException {
+        for (int shard = 0; shard < this.shards.size(); shard++) {
+            LOGGER.info("Running changelog on shard {}", this.shardNames.get(shard));
+            setDataSource(this.shards.get(shard));
+            super.afterPropertiesSet();
+            checkCollation(this.shardNames.get(shard), this.shards.get(shard));
+        }
+    }
+
+    private static void checkCollation(final String shardName, final DataSource shard) {
+        final String product;
+        try (Connection connection = shard.getConnection()) {
+            product = connection.getMetaData().getDatabaseProductName();
+        } catch (SQLException e) {
+            throw new IllegalStateException("Could not connect to shard " + shardName, e);
+        }
+        if (!"PostgreSQL".equals(product)) return;
+
+        final String collation = new JdbcTemplate(shard).queryForObject("SELECT datcollate FROM pg_database WHERE datname = current_database()", String.class);
+        if (!"C".equals(collation) && !"POSIX".equals(collation)) {
+            throw new IllegalStateException("Shard " + shardName + " sorts by collation " + collation + ", but shards have to be created with LC_COLLATE 'C'");
+        }
+    }
+}
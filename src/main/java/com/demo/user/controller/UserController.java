@@ -1,17 +1,45 @@
 package com.demo.user.controller;
 
+import com.demo.user.dto.UserBatchDTO;
+import com.demo.user.dto.UserBulkResultDTO;
+import com.demo.user.dto.UserChangeBatchDTO;
 import com.demo.user.dto.UserDTO;
+import com.demo.user.dto.UserImportStatusDTO;
+import com.demo.user.dto.UserMigrationStatusDTO;
+import com.demo.user.dto.UserPageDTO;
+import com.demo.user.dto.UserVersionTag;
 import com.demo.user.entity.UserEntity;
+import com.demo.user.service.UserChangeFeed;
+import com.demo.user.service.UserImportService;
+import com.demo.user.service.UserMigrationService;
 import com.demo.user.service.UserService;
+import com.demo.user.service.UserWriteBehindBuffer;
+import com.demo.user.validation.UsernameValidator;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.context.request.async.WebAsyncTask;
 
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URI;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Optional;
-import java.util.regex.Pattern;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Presentation layer of the user-service.
@@ -19,28 +47,274 @@ import java.util.regex.Pattern;
  */
 @Controller
 public class UserController {
+    private static final MediaType APPLICATION_NDJSON = MediaType.parseMediaType("application/x-ndjson");
+
+    private static final Duration CHANGES_TIMEOUT_MARGIN = Duration.ofSeconds(5);
+
     private final UserService userService;
 
-    public UserController(UserService userService) {
+    private final UserMigrationService userMigrationService;
+
+    private final UserChangeFeed userChangeFeed;
+
+    private final UserImportService userImportService;
+
+    private final ObjectMapper objectMapper;
+
+    private final Counter movedPermanentlyCounter;
+
+    private final Counter permanentRedirectCounter;
+
+    private final int bulkMaxSize;
+
+    private final int batchMaxSize;
+
+    private final int pageMaxSize;
+
+    private final int suggestMaxSize;
+
+    private final int changesMaxSize;
+
+    private final Duration changesMaxWait;
+
+    private final Duration exportTimeout;
+
+    public UserController(UserService userService, UserMigrationService userMigrationService, UserChangeFeed userChangeFeed,
+                          UserImportService userImportService, ObjectMapper objectMapper, MeterRegistry meterRegistry,
+                          @Value("${user.bulk.max-size:10000}") int bulkMaxSize, @Value("${user.batch.max-size:100}") int batchMaxSize,
+                          @Value("${user.page.max-size:1000}") int pageMaxSize,
+                          @Value("${user.suggest.max-size:100}") int suggestMaxSize,
+                          @Value("${user.changes.max-size:1000}") int changesMaxSize,
+                          @Value("${user.changes.max-wait:PT60S}") Duration changesMaxWait,
+                          @Value("${user.export.timeout:PT1H}") Duration exportTimeout) {
         this.userService = userService;
+        this.userMigrationService = userMigrationService;
+        this.userChangeFeed = userChangeFeed;
+        this.userImportService = userImportService;
+        this.objectMapper = objectMapper;
+        this.movedPermanentlyCounter = Counter.builder("user.redirects").tag("status", "301").description("Requests for deprecated version 1").register(meterRegistry);
+        this.permanentRedirectCounter = Counter.builder("user.redirects").tag("status", "308").description("Requests for deprecated version 1").register(meterRegistry);
+        this.bulkMaxSize = bulkMaxSize;
+        this.batchMaxSize = batchMaxSize;
+        this.pageMaxSize = pageMaxSize;
+        this.suggestMaxSize = suggestMaxSize;
+        this.changesMaxSize = changesMaxSize;
+        this.changesMaxWait = changesMaxWait;
+        this.exportTimeout = exportTimeout;
     }
 
     /**
      * Calls {@link UserService#findUser(String, String)}.
+     * The response carries ETag and Last-Modified headers, so that If-None-Match and If-Modified-Since are answered with 304 without a body.
      * @param username identifying username as path variable
      * @param version specified version as request parameter
+     * @param ifNoneMatch entity tags of which none may be current as If-None-Match header; might be null
      * @return {@link ResponseEntity} with {@link HttpStatus}-Code:
      *      301 with {@link UserDTO} of a GET request to new version specified in the Location header
      *      200 with {@link UserDTO} of {@link UserEntity} with given username
+     *      304 if the representation matches If-None-Match, including {@code *}, or was not modified since If-Modified-Since
      *      404 if {@link UserEntity} with given username does not exist
      */
     @GetMapping(value = "user/{username}")
-    public ResponseEntity<UserDTO> getUser(@PathVariable("username") final String username, @RequestParam(required = false) final String version) {
+    public ResponseEntity<UserDTO> getUser(@PathVariable("username") final String username, @RequestParam(required = false) final String version,
+                                           @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) final String ifNoneMatch) {
         if (version != null && version.equals("1")) return getMovedPermanentlyResponseEntity(username);
 
         Optional<UserDTO> optUserDTO = this.userService.findUser(username, version);
 
-        return getUserDTOResponseEntity(optUserDTO);
+        final ResponseEntity<UserDTO> userDTOResponseEntity = getUserDTOResponseEntity(optUserDTO);
+        // Spring compares the listed entity tags only, while * matches any current representation
+        if (ifNoneMatch != null && ifNoneMatch.trim().equals("*") && userDTOResponseEntity.getStatusCode().equals(HttpStatus.OK)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).headers(userDTOResponseEntity.getHeaders()).build();
+        }
+
+        return userDTOResponseEntity;
+    }
+
+    /**
+     * Calls {@link UserService#findUsers(java.util.Collection, String)} to look up many users in one query.
+     * @param usernames identifying usernames as repeated request parameter
+     * @param version specified version as request parameter
+     * @return {@link ResponseEntity} with {@link HttpStatus}-Code:
+     *      200 with {@link UserBatchDTO} of the found users and the missing usernames
+     *      400 if more usernames than allowed are requested
+     */
+    @GetMapping(value = "users", params = "username")
+    public ResponseEntity<UserBatchDTO> getUsers(@RequestParam("username") final List<String> usernames, @RequestParam(required = false) final String version) {
+        if (usernames.size() > this.batchMaxSize) return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+
+        return new ResponseEntity<>(this.userService.findUsers(usernames, version), HttpStatus.OK);
+    }
+
+    /**
+     * Lists users ordered by username, one page at a time, by calling {@link UserService#listUsers(String, int)}.
+     * @param after opaque cursor of the next page as returned with the previous page; absent for the first page
+     * @param limit maximum number of users on the page
+     * @return {@link ResponseEntity} with {@link HttpStatus}-Code:
+     *      200 with {@link UserPageDTO} of the requested page
+     *      400 if the cursor is malformed or the limit is out of range
+     */
+    @GetMapping(value = "users")
+    public ResponseEntity<UserPageDTO> listUsers(@RequestParam(required = false) final String after, @RequestParam(defaultValue = "100") final int limit) {
+        if (limit < 1 || limit > this.pageMaxSize) return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+
+        final Optional<UserPageDTO> optUserPageDTO = this.userService.listUsers(after, limit);
+
+        if (optUserPageDTO.isEmpty()) return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+
+        return new ResponseEntity<>(optUserPageDTO.get(), HttpStatus.OK);
+    }
+
+    /**
+     * Suggests usernames for type-ahead by calling {@link UserService#suggestUsernames(String, int)}, which answers from memory.
+     * @param prefix case-sensitive prefix of the usernames
+     * @param limit maximum number of usernames
+     * @return {@link ResponseEntity} with {@link HttpStatus}-Code:
+     *      200 with the matching usernames in ascending order
+     *      400 if the prefix is too long or the limit is out of range
+     *      404 if suggestions are disabled
+     *      500 if the usernames could not be loaded; the load is retried in the background
+     *      503 with Retry-After header if the usernames are still being loaded
+     */
+    @GetMapping(value = "users/suggest")
+    public ResponseEntity<List<String>> suggestUsers(@RequestParam final String prefix, @RequestParam(defaultValue = "10") final int limit) {
+        if (prefix.length() > 20 || limit < 1 || limit > this.suggestMaxSize) return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+
+        final Optional<List<String>> optUsernames = this.userService.suggestUsernames(prefix, limit);
+
+        if (optUsernames.isEmpty()) {
+            switch (this.userService.getSuggestionState()) {
+                case DISABLED:
+                    return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+                case FAILED:
+                    return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
+                default:
+                    return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, "5").build();
+            }
+        }
+
+        return new ResponseEntity<>(optUsernames.get(), HttpStatus.OK);
+    }
+
+    /**
+     * Streams all users as newline-delimited JSON by calling {@link UserService#exportUsers(java.util.function.Consumer)}.
+     * Every user is written to the response as soon as it is read, so memory usage does not depend on the number of users.
+     * The export runs asynchronously with its own timeout, as it takes far longer than any other request.
+     * @param response response the users are written to
+     * @return {@link WebAsyncTask} writing the response with {@link HttpStatus}-Code:
+     *      200 with one {@link UserDTO} per line
+     */
+    @GetMapping(value = "users/export")
+    @ResponseBody
+    public WebAsyncTask<Void> exportUsers(final HttpServletResponse response) {
+        return new WebAsyncTask<>(this.exportTimeout.toMillis(), () -> {
+            response.setStatus(HttpStatus.OK.value());
+            response.setContentType(APPLICATION_NDJSON.toString());
+            try (JsonGenerator generator = this.objectMapper.createGenerator(response.getOutputStream()).setRootValueSeparator(null)) {
+                this.userService.exportUsers(userDTO -> {
+                    try {
+                        generator.writeObject(userDTO);
+                        generator.writeRaw('\n');
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Reads the changes of users since a cursor by calling {@link UserChangeFeed#awaitChanges(String, int, Duration)}, waiting up to the given time if there are none.
+     * Without a cursor, answers with a cursor at the current end of the change log, after which consumers export all users once.
+     * The request times out shortly after the waiting time, which the change feed never exceeds.
+     * @param after cursor returned with the previous batch
+     * @param limit maximum number of changes
+     * @param wait seconds to wait for changes if there are none
+     * @return {@link DeferredResult} of a {@link ResponseEntity} with {@link HttpStatus}-Code:
+     *      200 with {@link UserChangeBatchDTO} of the changes and the cursor to continue with; no changes if none arrived while waiting
+     *      400 if the cursor is malformed or the limit or waiting time is out of range
+     *      410 if the cursor is older than the retention of the change log, so that the consumer has to start over
+     */
+    @GetMapping(value = "users/changes")
+    public DeferredResult<ResponseEntity<UserChangeBatchDTO>> getChanges(@RequestParam(required = false) final String after,
+                                                                      @RequestParam(defaultValue = "100") final int limit,
+                                                                      @RequestParam(defaultValue = "0") final long wait) {
+        if (limit < 1 || limit > this.changesMaxSize || wait < 0 || wait > this.changesMaxWait.toSeconds()) {
+            return getDeferredResult(new ResponseEntity<>(HttpStatus.BAD_REQUEST));
+        }
+
+        final Optional<CompletableFuture<UserChangeBatchDTO>> optFutureBatch;
+        try {
+            optFutureBatch = this.userChangeFeed.awaitChanges(after, limit, Duration.ofSeconds(wait));
+        } catch (UserChangeFeed.CursorExpiredException e) {
+            return getDeferredResult(new ResponseEntity<>(HttpStatus.GONE));
+        }
+
+        if (optFutureBatch.isEmpty()) return getDeferredResult(new ResponseEntity<>(HttpStatus.BAD_REQUEST));
+
+        final DeferredResult<ResponseEntity<UserChangeBatchDTO>> deferredResult = new DeferredResult<>(Duration.ofSeconds(wait).plus(CHANGES_TIMEOUT_MARGIN).toMillis());
+        optFutureBatch.get().whenComplete((batch, failure) -> {
+            if (failure != null) {
+                deferredResult.setErrorResult(failure);
+            } else {
+                deferredResult.setResult(new ResponseEntity<>(batch, HttpStatus.OK));
+            }
+        });
+        return deferredResult;
+    }
+
+    /**
+     * Starts the migration of legacy users into the name table in the background by calling {@link UserMigrationService#migrateUsers()}.
+     * @return {@link ResponseEntity} with {@link HttpStatus}-Code:
+     *      202 with {@link UserMigrationStatusDTO} if the migration was started
+     *      409 with {@link UserMigrationStatusDTO} if a migration is already running
+     */
+    @PostMapping(value = "users/migrate")
+    public ResponseEntity<UserMigrationStatusDTO> migrateUsers() {
+        final boolean started = this.userMigrationService.migrateUsers();
+
+        return new ResponseEntity<>(this.userMigrationService.getStatus(), started ? HttpStatus.ACCEPTED : HttpStatus.CONFLICT);
+    }
+
+    /**
+     * Calls {@link UserMigrationService#getStatus()}.
+     * @return {@link ResponseEntity} with {@link HttpStatus}-Code:
+     *      200 with {@link UserMigrationStatusDTO} of the current or last migration
+     */
+    @GetMapping(value = "users/migrate")
+    public ResponseEntity<UserMigrationStatusDTO> getMigrationStatus() {
+        return new ResponseEntity<>(this.userMigrationService.getStatus(), HttpStatus.OK);
+    }
+
+    /**
+     * Starts the import of users from a CSV file in the import directory in the background by calling {@link UserImportService#importUsers(Path, boolean)}.
+     * @param file path of the file relative to the import directory as request parameter
+     * @param header whether the first line of the file is a header as request parameter
+     * @return {@link ResponseEntity} with {@link HttpStatus}-Code:
+     *      202 with {@link UserImportStatusDTO} if the import was started
+     *      409 with {@link UserImportStatusDTO} if an import is already running
+     *      400 if the file is outside the import directory or does not exist
+     */
+    @PostMapping(value = "users/import")
+    public ResponseEntity<UserImportStatusDTO> importUsers(@RequestParam final String file, @RequestParam(defaultValue = "true") final boolean header) {
+        final Optional<Path> optPath = this.userImportService.resolve(file);
+
+        if (optPath.isEmpty()) return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+
+        final boolean started = this.userImportService.importUsers(optPath.get(), header);
+
+        return new ResponseEntity<>(this.userImportService.getStatus(), started ? HttpStatus.ACCEPTED : HttpStatus.CONFLICT);
+    }
+
+    /**
+     * Calls {@link UserImportService#getStatus()}.
+     * @return {@link ResponseEntity} with {@link HttpStatus}-Code:
+     *      200 with {@link UserImportStatusDTO} of the current or last import
+     */
+    @GetMapping(value = "users/import")
+    public ResponseEntity<UserImportStatusDTO> getImportStatus() {
+        return new ResponseEntity<>(this.userImportService.getStatus(), HttpStatus.OK);
     }
 
     /**
@@ -58,15 +332,13 @@ public class UserController {
     @PostMapping(value = "user/{username}")
     public ResponseEntity<UserDTO> postUser(@PathVariable("username") final String username, @RequestParam(required = false) final String version, @RequestBody final UserDTO userDTO) {
         if (version != null && version.equals("1")) {
+            this.permanentRedirectCounter.increment();
             HttpHeaders headers = new HttpHeaders();
             headers.setLocation(URI.create("user/" + username + "?version=2"));
             return new ResponseEntity<>(headers, HttpStatus.PERMANENT_REDIRECT);
         }
 
-        // check for valid username (beginning with a letter, alphanumeric, minimum length: 3, maximum length: 20)
-        String usernameRegex = "^([a-zA-Z])+([\\w]{2,19})+$";
-        Pattern usernamePattern = Pattern.compile(usernameRegex);
-        if (!usernamePattern.matcher(username).matches()) return new ResponseEntity<>(HttpStatus.FORBIDDEN);
+        if (!UsernameValidator.isValid(username)) return new ResponseEntity<>(HttpStatus.FORBIDDEN);
 
         String perceivedVersion = validateRequestByVersion("POST", username, version, userDTO);
 
@@ -78,30 +350,88 @@ public class UserController {
 
         HttpHeaders headers = new HttpHeaders();
         headers.setLocation(URI.create("user/" + username));
+        final UserVersionTag versionTag = optUserDTO.get().getVersionTag();
+        if (versionTag != null) headers.setETag(versionTag.toString());
 
         return new ResponseEntity<>(optUserDTO.get(), headers, HttpStatus.CREATED);
     }
 
     /**
-     * Checks request for validity and (perceived) version before calling {@link UserService#updateUser(String, String, UserDTO)}.
+     * Creates many users at once. Every entry is checked by the same rules as {@link #postUser(String, String, UserDTO)},
+     * with the username taken from the entry itself, before the valid entries are passed to {@link UserService#createUsers(List)}.
+     * @param userDTOs user data to create as request body
+     * @return {@link ResponseEntity} with {@link HttpStatus}-Code:
+     *      200 with a {@link UserBulkResultDTO} per entry, in request order
+     *      400 if the request body exceeds the maximum number of entries
+     */
+    @PostMapping(value = "users")
+    public ResponseEntity<List<UserBulkResultDTO>> postUsers(@RequestBody final List<UserDTO> userDTOs) {
+        if (userDTOs.size() > this.bulkMaxSize) return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+
+        final boolean[] valid = new boolean[userDTOs.size()];
+        final List<UserDTO> validUserDTOs = new ArrayList<>(userDTOs.size());
+        for (int index = 0; index < userDTOs.size(); index++) {
+            valid[index] = isValidBulkEntry(userDTOs.get(index));
+            if (valid[index]) validUserDTOs.add(userDTOs.get(index));
+        }
+
+        final Iterator<UserBulkResultDTO> createdResults = this.userService.createUsers(validUserDTOs).iterator();
+
+        final List<UserBulkResultDTO> results = new ArrayList<>(userDTOs.size());
+        for (int index = 0; index < userDTOs.size(); index++) {
+            final UserDTO userDTO = userDTOs.get(index);
+            if (valid[index]) {
+                results.add(createdResults.next());
+            } else {
+                results.add(new UserBulkResultDTO(userDTO == null ? null : userDTO.getUsername(), UserBulkResultDTO.Status.INVALID));
+            }
+        }
+
+        return new ResponseEntity<>(results, HttpStatus.OK);
+    }
+
+    /**
+     * Checks request for validity and (perceived) version before calling {@link UserService#updateUser(String, String, UserDTO, List)}.
      * @param username identifying username as path variable
      * @param version specified version as request parameter
+     * @param ifMatch entity tags of which one has to be current as If-Match header; might be null
      * @param userDTO appended user data as request body
      * @return {@link ResponseEntity} with {@link HttpStatus}-Code:
      *      301 with {@link UserDTO} of a GET request to new version specified in the Location header
      *      200 with {@link UserDTO} of the updated {@link UserEntity} if successful
      *      404 if {@link UserEntity} with given username does not exist
-     *      400 if request body is not valid
+     *      400 if request body or If-Match header is not valid
+     *      412 with the current ETag if none of the entity tags in If-Match is current; without ETag if If-Match is {@code *} and the user does not exist
+     *      503 with Retry-After header if updates are buffered and the buffer is full
      */
     @PutMapping(value = "user/{username}")
-    public ResponseEntity<UserDTO> putUser(@PathVariable("username") final String username, @RequestParam(required = false) final String version, @RequestBody final UserDTO userDTO) {
+    public ResponseEntity<UserDTO> putUser(@PathVariable("username") final String username, @RequestParam(required = false) final String version,
+                                           @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) final String ifMatch, @RequestBody final UserDTO userDTO) {
         if (version != null && version.equals("1")) return getMovedPermanentlyResponseEntity(username);
 
         String perceivedVersion = validateRequestByVersion("PUT", username, version, userDTO);
 
         if (perceivedVersion.equals("-1")) return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
 
-        final Optional<UserDTO> optUserDTO = this.userService.updateUser(username, perceivedVersion, userDTO);
+        // * only requires a current representation, which a missing user doesn't have
+        final boolean mustExist = ifMatch != null && ifMatch.trim().equals("*");
+        List<UserVersionTag> expectedVersionTags = null;
+        if (ifMatch != null && !mustExist) {
+            final Optional<List<UserVersionTag>> optExpectedVersionTags = UserVersionTag.parseAll(ifMatch);
+            if (optExpectedVersionTags.isEmpty()) return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+            expectedVersionTags = optExpectedVersionTags.get();
+        }
+
+        final Optional<UserDTO> optUserDTO;
+        try {
+            optUserDTO = this.userService.updateUser(username, perceivedVersion, userDTO, expectedVersionTags);
+        } catch (UserWriteBehindBuffer.BufferFullException e) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, "1").build();
+        } catch (UserService.PreconditionFailedException e) {
+            return getPreconditionFailedResponseEntity(e);
+        }
+
+        if (optUserDTO.isEmpty() && mustExist) return new ResponseEntity<>(HttpStatus.PRECONDITION_FAILED);
 
         return getUserDTOResponseEntity(optUserDTO);
     }
@@ -112,30 +442,87 @@ public class UserController {
      * @return {@link ResponseEntity} with {@link HttpStatus}-Code:
      *      301 with {@link UserDTO} of a GET request to new version specified in the Location header
      *      200 with {@link UserDTO} of deleted {@link UserEntity} if successful
+     *      400 if If-Match header is not valid
      *      404 if {@link UserEntity} with given username does not exist
+     *      412 with the current ETag if none of the entity tags in If-Match is current; without ETag if If-Match is {@code *} and the user does not exist
      */
     @DeleteMapping(value = "user/{username}")
-    public ResponseEntity<UserDTO> deleteUser(@PathVariable("username") final String username, @RequestParam(required = false) final String version) {
+    public ResponseEntity<UserDTO> deleteUser(@PathVariable("username") final String username, @RequestParam(required = false) final String version,
+                                              @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) final String ifMatch) {
         if (version != null && version.equals("1")) return getMovedPermanentlyResponseEntity(username);
 
-        final Optional<UserDTO> optUserDTO = this.userService.deleteUser(username, version);
+        // * only requires a current representation, which a missing user doesn't have
+        final boolean mustExist = ifMatch != null && ifMatch.trim().equals("*");
+        List<UserVersionTag> expectedVersionTags = null;
+        if (ifMatch != null && !mustExist) {
+            final Optional<List<UserVersionTag>> optExpectedVersionTags = UserVersionTag.parseAll(ifMatch);
+            if (optExpectedVersionTags.isEmpty()) return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+            expectedVersionTags = optExpectedVersionTags.get();
+        }
+
+        final Optional<UserDTO> optUserDTO;
+        try {
+            optUserDTO = this.userService.deleteUser(username, version, expectedVersionTags);
+        } catch (UserService.PreconditionFailedException e) {
+            return getPreconditionFailedResponseEntity(e);
+        }
+
+        if (optUserDTO.isEmpty() && mustExist) return new ResponseEntity<>(HttpStatus.PRECONDITION_FAILED);
 
         return getUserDTOResponseEntity(optUserDTO);
     }
 
     /**
-     * Utility function to get a {@link ResponseEntity} for {@link UserController#getUser(String, String)}, {@link UserController#putUser(String, String, UserDTO)} and {@link UserController#deleteUser(String, String)}.
+     * Utility function to get a {@link ResponseEntity} for {@link UserController#getUser(String, String, String)}, {@link UserController#putUser(String, String, String, UserDTO)} and {@link UserController#deleteUser(String, String, String)}.
+     * Sets ETag and Last-Modified if the version of the stored representation is known, which lets a GET be answered with 304 before the body is written.
      * @param optUserDTO {@link UserDTO} from {@link UserService}
      * @return {@link ResponseEntity} with corresponding {@link UserDTO}
      */
     private ResponseEntity<UserDTO> getUserDTOResponseEntity(Optional<UserDTO> optUserDTO) {
         if (optUserDTO.isEmpty()) return new ResponseEntity<>(HttpStatus.NOT_FOUND);
 
-        return new ResponseEntity<>(optUserDTO.get(), HttpStatus.OK);
+        final UserVersionTag versionTag = optUserDTO.get().getVersionTag();
+        if (versionTag == null) return new ResponseEntity<>(optUserDTO.get(), HttpStatus.OK);
+
+        return ResponseEntity.ok().eTag(versionTag.toString()).lastModified(versionTag.getLastModified()).body(optUserDTO.get());
+    }
+
+    /**
+     * Utility function to get a {@link ResponseEntity} for a conditional write whose precondition failed.
+     * @param e {@link UserService.PreconditionFailedException} carrying the current version
+     * @return {@link ResponseEntity} with {@link HttpStatus}-Code 412 and the current ETag, if known
+     */
+    private ResponseEntity<UserDTO> getPreconditionFailedResponseEntity(UserService.PreconditionFailedException e) {
+        final UserVersionTag versionTag = e.getCurrentVersionTag();
+        if (versionTag == null) return new ResponseEntity<>(HttpStatus.PRECONDITION_FAILED);
+
+        return ResponseEntity.status(HttpStatus.PRECONDITION_FAILED).eTag(versionTag.toString()).build();
+    }
+
+    /**
+     * Utility function to get an already completed {@link DeferredResult} for {@link #getChanges(String, int, long)}.
+     * @param responseEntity {@link ResponseEntity} to answer with
+     * @return {@link DeferredResult} holding the given {@link ResponseEntity}
+     */
+    private DeferredResult<ResponseEntity<UserChangeBatchDTO>> getDeferredResult(ResponseEntity<UserChangeBatchDTO> responseEntity) {
+        final DeferredResult<ResponseEntity<UserChangeBatchDTO>> deferredResult = new DeferredResult<>();
+        deferredResult.setResult(responseEntity);
+        return deferredResult;
+    }
+
+    /**
+     * Utility function that checks a single entry of {@link #postUsers(List)} like a POST request for {@link #postUser(String, String, UserDTO)}.
+     * @param userDTO entry of the request body
+     * @return true if the entry is valid
+     */
+    private boolean isValidBulkEntry(UserDTO userDTO) {
+        if (userDTO == null || userDTO.getUsername() == null || !UsernameValidator.isValid(userDTO.getUsername())) return false;
+
+        return !validateRequestByVersion("POST", userDTO.getUsername(), null, userDTO).equals("-1");
     }
 
     /**
-     * Utility function that determines the (perceived) version of the request and the validity of a given request body by version for {@link #postUser(String, String, UserDTO)} and {@link #putUser(String, String, UserDTO)}.
+     * Utility function that determines the (perceived) version of the request and the validity of a given request body by version for {@link #postUser(String, String, UserDTO)} and {@link #putUser(String, String, String, UserDTO)}.
      * Allows for detection of the perceived resource representation version by the content of the request, in case none was specified as a request parameter.
      * The fullName-attribute has to contain a whitespace.
      * Using a perceived version, the lower layers don't have to seek out the version again.
@@ -168,9 +555,10 @@ public class UserController {
      * @return {@link ResponseEntity} with {@link HttpStatus}-Code: 301 with URL for updated version and {@link UserDTO} of GET request
      */
     private ResponseEntity<UserDTO> getMovedPermanentlyResponseEntity(String username) {
+        this.movedPermanentlyCounter.increment();
         HttpHeaders headers = new HttpHeaders();
         headers.setLocation(URI.create("user/" + username + "?version=2"));
-        ResponseEntity<UserDTO> userDTOResponseEntity = this.getUser(username, "2");
+        ResponseEntity<UserDTO> userDTOResponseEntity = this.getUser(username, "2", null);
         if (userDTOResponseEntity.getStatusCode().equals(HttpStatus.OK)) {
             return new ResponseEntity<>(userDTOResponseEntity.getBody(), headers, HttpStatus.MOVED_PERMANENTLY);
         }
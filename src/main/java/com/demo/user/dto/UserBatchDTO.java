@@ -0,0 +1,29 @@
+package com.demo.user.dto;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Result of a lookup of many users at once, separating found users from unknown usernames.
+ */
+public class UserBatchDTO implements Serializable {
+    private final List<UserDTO> users;
+
+    private final List<String> missing;
+
+    @JsonCreator
+    public UserBatchDTO(List<UserDTO> users, List<String> missing) {
+        this.users = users;
+        this.missing = missing;
+    }
+
+    public List<UserDTO> getUsers() {
+        return this.users;
+    }
+
+    public List<String> getMissing() {
+        return this.missing;
+    }
+}
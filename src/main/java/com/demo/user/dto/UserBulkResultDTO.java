@@ -0,0 +1,36 @@
+package com.demo.user.dto;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.io.Serializable;
+
+/**
+ * Per-item result of a bulk creation of users.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class UserBulkResultDTO implements Serializable {
+    public enum Status {
+        CREATED,
+        CONFLICT,
+        INVALID
+    }
+
+    private final String username;
+
+    private final Status status;
+
+    @JsonCreator
+    public UserBulkResultDTO(String username, Status status) {
+        this.username = username;
+        this.status = status;
+    }
+
+    public String getUsername() {
+        return this.username;
+    }
+
+    public Status getStatus() {
+        return this.status;
+    }
+}
@@ -0,0 +1,30 @@
+package com.demo.user.dto;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Batch of the change feed of users, ordered by their writing transactions.
+ * The cursor is opaque to clients and always present; passing it to the next request continues after the last change of this batch.
+ */
+public class UserChangeBatchDTO implements Serializable {
+    private final List<UserChangeDTO> changes;
+
+    private final String cursor;
+
+    @JsonCreator
+    public UserChangeBatchDTO(List<UserChangeDTO> changes, String cursor) {
+        this.changes = changes;
+        this.cursor = cursor;
+    }
+
+    public List<UserChangeDTO> getChanges() {
+        return this.changes;
+    }
+
+    public String getCursor() {
+        return this.cursor;
+    }
+}
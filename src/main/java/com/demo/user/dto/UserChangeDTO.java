@@ -0,0 +1,43 @@
+package com.demo.user.dto;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+
+import java.io.Serializable;
+import java.time.Instant;
+
+/**
+ * Entry of the change feed of users, telling which username was created, updated or deleted.
+ * Consumers read the current state of changed users by batch lookup, so entries carry no user data.
+ */
+public class UserChangeDTO implements Serializable {
+    public enum Operation {
+        CREATE,
+        UPDATE,
+        DELETE
+    }
+
+    private final String username;
+
+    private final Operation operation;
+
+    private final Instant changeTime;
+
+    @JsonCreator
+    public UserChangeDTO(String username, Operation operation, Instant changeTime) {
+        this.username = username;
+        this.operation = operation;
+        this.changeTime = changeTime;
+    }
+
+    public String getUsername() {
+        return this.username;
+    }
+
+    public Operation getOperation() {
+        return this.operation;
+    }
+
+    public Instant getChangeTime() {
+        return this.changeTime;
+    }
+}
@@ -1,9 +1,11 @@
 package com.demo.user.dto;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonInclude;
 
 import java.io.Serializable;
+import java.util.Date;
 
 @JsonInclude(JsonInclude.Include.NON_NULL)
 public class UserDTO implements Serializable {
@@ -13,11 +15,28 @@ public class UserDTO implements Serializable {
 
     private final String lastName;
 
+    /**
+     * Version of the stored representation, not part of the JSON body; null if not read from the database as a whole.
+     */
+    private final UserVersionTag versionTag;
+
     @JsonCreator
     public UserDTO(String username, String firstName, String lastName) {
+        this(username, firstName, lastName, null);
+    }
+
+    public UserDTO(String username, String firstName, String lastName, UserVersionTag versionTag) {
         this.username = username;
         this.firstName = firstName;
         this.lastName = lastName;
+        this.versionTag = versionTag;
+    }
+
+    /**
+     * Used by the constructor expressions of the queries in {@code UserRepository}.
+     */
+    public UserDTO(String username, String firstName, String lastName, Date userUpdateTime, Date nameUpdateTime, Long nameVersion) {
+        this(username, firstName, lastName, UserVersionTag.of(userUpdateTime, nameUpdateTime, nameVersion == null ? 0 : nameVersion));
     }
 
     public String getUsername() {
@@ -31,4 +50,9 @@ public class UserDTO implements Serializable {
     public String getLastName() {
         return this.lastName;
     }
+
+    @JsonIgnore
+    public UserVersionTag getVersionTag() {
+        return this.versionTag;
+    }
 }
@@ -0,0 +1,72 @@
+package com.demo.user.dto;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.io.Serializable;
+
+/**
+ * Progress of the bulk import of users from a CSV file.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class UserImportStatusDTO implements Serializable {
+    public enum State {
+        IDLE,
+        RUNNING,
+        FINISHED,
+        FAILED
+    }
+
+    private final State state;
+
+    private final String file;
+
+    private final String errorFile;
+
+    private final long readRows;
+
+    private final long importedRows;
+
+    private final long rejectedRows;
+
+    private final long rowsPerSecond;
+
+    @JsonCreator
+    public UserImportStatusDTO(State state, String file, String errorFile, long readRows, long importedRows, long rejectedRows, long rowsPerSecond) {
+        this.state = state;
+        this.file = file;
+        this.errorFile = errorFile;
+        this.readRows = readRows;
+        this.importedRows = importedRows;
+        this.rejectedRows = rejectedRows;
+        this.rowsPerSecond = rowsPerSecond;
+    }
+
+    public State getState() {
+        return this.state;
+    }
+
+    public String getFile() {
+        return this.file;
+    }
+
+    public String getErrorFile() {
+        return this.errorFile;
+    }
+
+    public long getReadRows() {
+        return this.readRows;
+    }
+
+    public long getImportedRows() {
+        return this.importedRows;
+    }
+
+    public long getRejectedRows() {
+        return this.rejectedRows;
+    }
+
+    public long getRowsPerSecond() {
+        return this.rowsPerSecond;
+    }
+}
@@ -0,0 +1,58 @@
+package com.demo.user.dto;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.io.Serializable;
+
+/**
+ * Progress of the migration of legacy users into the name table.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class UserMigrationStatusDTO implements Serializable {
+    public enum State {
+        IDLE,
+        RUNNING,
+        FINISHED,
+        FAILED
+    }
+
+    private final State state;
+
+    private final long migratedRows;
+
+    private final long totalRows;
+
+    private final String checkpoint;
+
+    private final long rowsPerSecond;
+
+    @JsonCreator
+    public UserMigrationStatusDTO(State state, long migratedRows, long totalRows, String checkpoint, long rowsPerSecond) {
+        this.state = state;
+        this.migratedRows = migratedRows;
+        this.totalRows = totalRows;
+        this.checkpoint = checkpoint;
+        this.rowsPerSecond = rowsPerSecond;
+    }
+
+    public State getState() {
+        return this.state;
+    }
+
+    public long getMigratedRows() {
+        return this.migratedRows;
+    }
+
+    public long getTotalRows() {
+        return this.totalRows;
+    }
+
+    public String getCheckpoint() {
+        return this.checkpoint;
+    }
+
+    public long getRowsPerSecond() {
+        return this.rowsPerSecond;
+    }
+}
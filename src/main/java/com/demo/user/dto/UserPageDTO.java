@@ -0,0 +1,32 @@
+package com.demo.user.dto;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Page of a keyset-paginated listing of users.
+ * The next-cursor is opaque to clients and absent on the last page.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class UserPageDTO implements Serializable {
+    private final List<UserDTO> users;
+
+    private final String next;
+
+    @JsonCreator
+    public UserPageDTO(List<UserDTO> users, String next) {
+        this.users = users;
+        this.next = next;
+    }
+
+    public List<UserDTO> getUsers() {
+        return this.users;
+    }
+
+    public String getNext() {
+        return this.next;
+    }
+}
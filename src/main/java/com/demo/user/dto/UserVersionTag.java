@@ -0,0 +1,106 @@
+package com.demo.user.dto;
+
+import java.io.Serializable;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Version of the stored representation of a user, sent as strong ETag and Last-Modified header.
+ * Derived from the later of the update times of {@code user_data} and {@code name} in microseconds and the version of {@code name},
+ * which tells apart two writes within the same microsecond.
+ */
+public final class UserVersionTag implements Serializable {
+    private final long lastModifiedMicros;
+
+    private final long revision;
+
+    public UserVersionTag(long lastModifiedMicros, long revision) {
+        this.lastModifiedMicros = lastModifiedMicros;
+        this.revision = revision;
+    }
+
+    /**
+     * Creates the tag of a user from its update times as read from the database.
+     * @param userUpdateTime update time of {@code user_data}; might be null
+     * @param nameUpdateTime update time of {@code name}; might be null
+     * @param revision version of {@code name}
+     * @return {@link UserVersionTag} of the user
+     *      null if neither update time is known
+     */
+    public static UserVersionTag of(final Date userUpdateTime, final Date nameUpdateTime, final long revision) {
+        if (userUpdateTime == null && nameUpdateTime == null) return null;
+
+        final long micros = Math.max(toMicros(userUpdateTime), toMicros(nameUpdateTime));
+        return new UserVersionTag(micros, revision);
+    }
+
+    /**
+     * Parses the value of an If-Match header other than {@code *}.
+     * Weak and foreign tags are skipped, as they never match.
+     * @param header comma-separated list of entity tags
+     * @return Optional of the tags in the header that could match
+     *      empty Optional if the header is malformed
+     */
+    public static Optional<List<UserVersionTag>> parseAll(final String header) {
+        final List<UserVersionTag> tags = new ArrayList<>();
+        for (String entry : header.split(",")) {
+            final String value = entry.trim();
+            // weak tags never match in the strong comparison required by If-Match
+            if (value.startsWith("W/")) continue;
+            if (value.length() < 2 || value.charAt(0) != '"' || value.charAt(value.length() - 1) != '"') return Optional.empty();
+
+            final String[] parts = value.substring(1, value.length() - 1).split("-", -1);
+            if (parts.length != 2) continue;
+            try {
+                tags.add(new UserVersionTag(Long.parseUnsignedLong(parts[0], 16), Long.parseUnsignedLong(parts[1], 16)));
+            } catch (NumberFormatException e) {
+                // foreign tags simply don't match
+            }
+        }
+
+        return Optional.of(tags);
+    }
+
+    public long getLastModifiedMicros() {
+        return this.lastModifiedMicros;
+    }
+
+    public Instant getLastModified() {
+        return Instant.ofEpochSecond(Math.floorDiv(this.lastModifiedMicros, 1_000_000L), Math.floorMod(this.lastModifiedMicros, 1_000_000L) * 1000L);
+    }
+
+    public long getRevision() {
+        return this.revision;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof UserVersionTag)) return false;
+        final UserVersionTag other = (UserVersionTag) o;
+        return this.lastModifiedMicros == other.lastModifiedMicros && this.revision == other.revision;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(this.lastModifiedMicros) * 31 + Long.hashCode(this.revision);
+    }
+
+    /**
+     * @return the quoted entity tag as sent in the ETag header
+     */
+    @Override
+    public String toString() {
+        return "\"" + Long.toHexString(this.lastModifiedMicros) + "-" + Long.toHexString(this.revision) + "\"";
+    }
+
+    private static long toMicros(final Date date) {
+        if (date == null) return Long.MIN_VALUE;
+
+        final Instant instant = date.toInstant();
+        return instant.getEpochSecond() * 1_000_000L + instant.getNano() / 1000;
+    }
+}
@@ -34,6 +34,10 @@ public class NameEntity {
     @Temporal(TemporalType.TIMESTAMP)
     private Date updateTime;
 
+    @Version
+    @Column(name = "version", nullable = false)
+    private long version;
+
     protected NameEntity() {
 
     }
@@ -76,6 +80,10 @@ public class NameEntity {
         return this.updateTime;
     }
 
+    public long getVersion() {
+        return this.version;
+    }
+
     /**
      * Updates {@link NameEntity#updateTime} entry for every write on the entity.
      */
@@ -1,5 +1,6 @@
 package com.demo.user.entity;
 
+import com.demo.user.validation.NameNormalizer;
 import org.hibernate.annotations.CreationTimestamp;
 import org.hibernate.annotations.UpdateTimestamp;
 
@@ -35,6 +36,10 @@ public class UserEntity {
     @Temporal(TemporalType.TIMESTAMP)
     private Date updateTime;
 
+    @Version
+    @Column(name = "version", nullable = false)
+    private long version;
+
     protected UserEntity() {
 
     }
@@ -49,9 +54,7 @@ public class UserEntity {
      */
     public UserEntity(String username, String firstName, String lastName) {
         this.username = username;
-        firstName = firstName.trim().replaceAll(" +", " ");
-        lastName = lastName.trim().replaceAll(" +", " ");
-        this.nameEntity = new NameEntity(firstName, lastName);
+        this.nameEntity = new NameEntity(NameNormalizer.normalize(firstName), NameNormalizer.normalize(lastName));
     }
 
     public UUID getId() {
@@ -77,6 +80,10 @@ public class UserEntity {
         return this.updateTime;
     }
 
+    public long getVersion() {
+        return this.version;
+    }
+
     /**
      * Updates {@link UserEntity#updateTime} entry for every write on the entity.
      */
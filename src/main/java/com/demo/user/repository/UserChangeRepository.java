@@ -0,0 +1,196 @@
+package com.demo.user.repository;
+
+import com.demo.user.dto.UserChangeDTO;
+import com.demo.user.entity.UserEntity;
+import com.demo.user.service.UserChangeFeed;
+import io.micrometer.core.annotation.Timed;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Data layer of the user-service for the append-only log of changes of {@link UserEntity} entries in {@code user_change}.
+ * Responsible for appending changes on behalf of the write paths and reading and compacting them on behalf of {@link UserChangeFeed}.
+ * Every entry records the id of its writing transaction, which {@link #findChangesAfter(long, long, int)} uses to only return changes of completed transactions.
+ * Reading relies on PostgreSQL's transaction id snapshots.
+ */
+@Repository
+public class UserChangeRepository {
+    private final JdbcTemplate jdbcTemplate;
+
+    public UserChangeRepository(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Appends a change for each given username using one JDBC batch.
+     * Has to be called within the transaction that writes the changed users.
+     * @param usernames changed usernames
+     * @param operation operation applied to all of them
+     */
+    @Timed("user.repository.jdbc")
+    public void insertChanges(final Collection<String> usernames, final UserChangeDTO.Operation operation) {
+        if (usernames.isEmpty()) return;
+
+        final Timestamp now = Timestamp.from(Instant.now());
+        final List<Object[]> rows = new ArrayList<>(usernames.size());
+        for (String username : usernames) {
+            rows.add(new Object[]{username, operation.name(), now});
+        }
+
+        this.jdbcTemplate.batchUpdate("INSERT INTO user_change (username, operation, change_time) VALUES (?, ?, ?)", rows);
+    }
+
+    /**
+     * Reads the changes following the given position in the order of their transaction ids and sequence numbers.
+     * Only changes of transactions older than the oldest running transaction are returned, as all of them are complete and visible.
+     * Changes of running transactions follow in a later read, so that a position never skips a change committed after it was read.
+     * @param transactionId transaction id of the position, exclusive together with the sequence number
+     * @param seq sequence number of the position
+     * @param limit maximum number of changes
+     * @return {@link Changes} with the changes in order and the id of the oldest running transaction
+     */
+    @Timed("user.repository.jdbc")
+    public Changes findChangesAfter(final long transactionId, final long seq, final int limit) {
+        final Changes changes = new Changes(0);
+        this.jdbcTemplate.query(
+                "WITH s AS (SELECT txid_snapshot_xmin(txid_current_snapshot()) AS horizon)"
+                        + " SELECT s.horizon, c.transaction_id, c.seq, c.username, c.operation, c.change_time FROM s LEFT JOIN LATERAL ("
+                        + " SELECT transaction_id, seq, username, operation, change_time FROM user_change"
+                        + " WHERE (transaction_id, seq) > (?, ?) AND transaction_id < s.horizon ORDER BY transaction_id, seq LIMIT ?"
+                        + ") c ON true",
+                resultSet -> {
+                    changes.horizon = resultSet.getLong(1);
+                    if (resultSet.getObject(2) == null) return;
+                    changes.add(resultSet.getLong(2), resultSet.getLong(3), new UserChangeDTO(resultSet.getString(4), UserChangeDTO.Operation.valueOf(resultSet.getString(5)),
+                            resultSet.getTimestamp(6).toInstant()));
+                },
+                transactionId, seq, limit);
+
+        return changes;
+    }
+
+    /**
+     * Finds the id of the oldest running transaction, before which all changes are complete.
+     * @return transaction id to start reading changes at
+     */
+    @Timed("user.repository.jdbc")
+    public long findHorizon() {
+        final Long horizon = this.jdbcTemplate.queryForObject("SELECT txid_snapshot_xmin(txid_current_snapshot())", Long.class);
+        return horizon == null ? 0 : horizon;
+    }
+
+    /**
+     * Deletes the changes among the next ones after the given sequence number that are followed by a later change of the same username,
+     * as consumers read the current state of a changed user anyway. Scanning the log in batches keeps every statement and its transaction short.
+     * @param afterSeq sequence number to continue after, exclusive; 0 to start at the first change
+     * @param batchSize number of changes to scan
+     * @return {@link DeletedBatch} with the last scanned sequence number and the number of deleted changes
+     */
+    @Timed("user.repository.jdbc")
+    public DeletedBatch deleteSupersededChanges(final long afterSeq, final int batchSize) {
+        final DeletedBatch deletedBatch = new DeletedBatch();
+        this.jdbcTemplate.query(
+                "WITH b AS (SELECT seq FROM user_change WHERE seq > ? ORDER BY seq LIMIT ?),"
+                        + " d AS (DELETE FROM user_change c USING b WHERE c.seq = b.seq"
+                        + " AND EXISTS (SELECT 1 FROM user_change l WHERE l.username = c.username AND l.seq > c.seq) RETURNING c.seq)"
+                        + " SELECT max(b.seq), (SELECT count(*) FROM d) FROM b",
+                resultSet -> {
+                    deletedBatch.lastSeq = resultSet.getLong(1);
+                    deletedBatch.deleted = resultSet.getInt(2);
+                },
+                afterSeq, batchSize);
+
+        return deletedBatch;
+    }
+
+    /**
+     * Deletes the first changes before the given time, in the order of their sequence numbers, so that every statement and its transaction stay short.
+     * @param before exclusive upper bound of the change time
+     * @param batchSize maximum number of changes to delete
+     * @return number of deleted changes; less than the batch size once all changes before the time are deleted
+     */
+    @Timed("user.repository.jdbc")
+    public int deleteChangesBefore(final Instant before, final int batchSize) {
+        return this.jdbcTemplate.update("DELETE FROM user_change WHERE seq IN (SELECT seq FROM user_change WHERE change_time < ? ORDER BY seq LIMIT ?)",
+                Timestamp.from(before), batchSize);
+    }
+
+    /**
+     * Result of {@link #findChangesAfter(long, long, int)}.
+     */
+    public static class Changes {
+        private final List<UserChangeDTO> userChangeDTOs = new ArrayList<>();
+
+        private final List<long[]> positions = new ArrayList<>();
+
+        private long horizon;
+
+        public Changes(long horizon) {
+            this.horizon = horizon;
+        }
+
+        /**
+         * Appends a change read at the given position.
+         * @param transactionId transaction id of the change
+         * @param seq sequence number of the change
+         * @param userChangeDTO the change
+         */
+        public void add(final long transactionId, final long seq, final UserChangeDTO userChangeDTO) {
+            this.positions.add(new long[]{transactionId, seq});
+            this.userChangeDTOs.add(userChangeDTO);
+        }
+
+        public List<UserChangeDTO> getUserChangeDTOs() {
+            return this.userChangeDTOs;
+        }
+
+        /**
+         * @return id of the oldest running transaction; all changes before it are complete
+         */
+        public long getHorizon() {
+            return this.horizon;
+        }
+
+        /**
+         * @param index index of a change
+         * @return transaction id of the change
+         */
+        public long getTransactionId(final int index) {
+            return this.positions.get(index)[0];
+        }
+
+        /**
+         * @param index index of a change
+         * @return sequence number of the change
+         */
+        public long getSeq(final int index) {
+            return this.positions.get(index)[1];
+        }
+    }
+
+    /**
+     * Result of {@link #deleteSupersededChanges(long, int)}.
+     */
+    public static class DeletedBatch {
+        private long lastSeq;
+
+        private int deleted;
+
+        /**
+         * @return last scanned sequence number; 0 if there were no changes to scan
+         */
+        public long getLastSeq() {
+            return this.lastSeq;
+        }
+
+        public int getDeleted() {
+            return this.deleted;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.demo.user.repository;
+
+import com.demo.user.dto.UserDTO;
+import com.demo.user.entity.NameEntity;
+import com.demo.user.entity.UserEntity;
+import com.demo.user.service.UserImportService;
+import io.micrometer.core.annotation.Timed;
+import org.postgresql.PGConnection;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.sql.Timestamp;
+import java.time.Instant;
+
+/**
+ * Data layer of the user-service for bulk imports of {@link UserEntity} entries on behalf of {@link UserImportService}.
+ * Rows are streamed into a temporary staging table with {@code COPY} and merged into {@code user_data} and {@code name} by a single set-based statement.
+ * The staging table lives per connection, is not written to the WAL and is emptied at every commit.
+ * All methods have to be called within the same transaction, as PostgreSQL only sees the staging table on the connection that created it.
+ */
+@Repository
+public class UserImportRepository {
+    private final JdbcTemplate jdbcTemplate;
+
+    public UserImportRepository(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Receives the staged rows that were not imported.
+     */
+    @FunctionalInterface
+    public interface RejectHandler {
+        /**
+         * @param lineNumber line of the row in the imported file
+         * @param userDTO user data of the row
+         * @param duplicate true if an earlier line of the same chunk was imported with the username, false if it already existed
+         */
+        void reject(long lineNumber, UserDTO userDTO, boolean duplicate);
+    }
+
+    /**
+     * Creates the staging table on the current connection, unless it already exists.
+     */
+    public void createStagingTable() {
+        this.jdbcTemplate.execute("CREATE TEMPORARY TABLE IF NOT EXISTS user_import"
+                + " (line_number bigint, username text, first_name text, last_name text) ON COMMIT DELETE ROWS");
+    }
+
+    /**
+     * Streams rows into the staging table with {@code COPY}, bypassing the parsing and planning of an INSERT per row.
+     * @param csv rows of line number, username, first name and last name in CSV format, where an unquoted empty field is null
+     * @return number of staged rows
+     */
+    @Timed("user.repository.jdbc")
+    public long copyToStagingTable(final InputStream csv) {
+        final Long count = this.jdbcTemplate.execute((ConnectionCallback<Long>) connection -> {
+            try {
+                return connection.unwrap(PGConnection.class).getCopyAPI()
+                        .copyIn("COPY user_import (line_number, username, first_name, last_name) FROM STDIN (FORMAT csv)", csv);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * Creates a {@link UserEntity} and its {@link NameEntity} for every staged username that is not taken and appends the creations to the change log, in a single statement.
+     * Of several staged rows with the same username, the one of the first line is imported.
+     * @param rejectHandler receives every staged row that was not imported
+     * @return number of staged rows that were not imported
+     */
+    @Timed("user.repository.jdbc")
+    public long mergeStagingTable(final RejectHandler rejectHandler) {
+        final Timestamp now = Timestamp.from(Instant.now());
+        final long[] rejected = {0};
+        this.jdbcTemplate.query(
+                "WITH d AS ("
+                        + " SELECT DISTINCT ON (username) line_number, username, first_name, last_name FROM user_import ORDER BY username, line_number"
+                        + "), u AS ("
+                        + " INSERT INTO user_data (id, username, name_id, creation_time, update_time, version)"
+                        + " SELECT gen_random_uuid(), username, gen_random_uuid(), ?, ?, 0 FROM d"
+                        + " ON CONFLICT (username) DO NOTHING RETURNING username, name_id"
+                        + "), n AS ("
+                        + " INSERT INTO name (id, first_name, last_name, creation_time, update_time, version)"
+                        + " SELECT u.name_id, d.first_name, d.last_name, ?, ?, 0 FROM u JOIN d ON d.username = u.username"
+                        + "), c AS ("
+                        + " INSERT INTO user_change (username, operation, change_time) SELECT username, 'CREATE', ? FROM u"
+                        + ")"
+                        + " SELECT s.line_number, s.username, s.first_name, s.last_name, u.username IS NOT NULL FROM user_import s"
+                        + " LEFT JOIN u ON u.username = s.username LEFT JOIN d ON d.line_number = s.line_number"
+                        + " WHERE u.username IS NULL OR d.line_number IS NULL",
+                resultSet -> {
+                    rejected[0]++;
+                    rejectHandler.reject(resultSet.getLong(1), new UserDTO(resultSet.getString(2), resultSet.getString(3), resultSet.getString(4)), resultSet.getBoolean(5));
+                },
+                now, now, now, now, now);
+
+        return rejected[0];
+    }
+}
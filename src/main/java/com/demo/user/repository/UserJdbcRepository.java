@@ -0,0 +1,321 @@
+package com.demo.user.repository;
+
+import com.demo.user.dto.UserDTO;
+import com.demo.user.dto.UserVersionTag;
+import com.demo.user.entity.NameEntity;
+import com.demo.user.entity.UserEntity;
+import com.demo.user.service.UserService;
+import io.micrometer.core.annotation.Timed;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.SqlParameterValue;
+import org.springframework.stereotype.Repository;
+
+import java.sql.Array;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Data layer of the user-service for set-based operations on {@link UserEntity} and {@link NameEntity} that bypass JPA.
+ * Responsible for batched JDBC access on behalf of {@link UserService}.
+ */
+@Repository
+public class UserJdbcRepository {
+    private final JdbcTemplate jdbcTemplate;
+
+    public UserJdbcRepository(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Finds which of the given usernames already exist with a single query.
+     * @param usernames usernames to check
+     * @return Set of the given usernames that already exist
+     */
+    @Timed("user.repository.jdbc")
+    public Set<String> findExistingUsernames(final Collection<String> usernames) {
+        final Set<String> existingUsernames = new HashSet<>();
+        if (usernames.isEmpty()) return existingUsernames;
+
+        this.jdbcTemplate.query(
+                "SELECT username FROM user_data WHERE username = ANY(?)",
+                preparedStatement -> {
+                    final Array array = preparedStatement.getConnection().createArrayOf("varchar", usernames.toArray());
+                    preparedStatement.setArray(1, array);
+                },
+                resultSet -> {
+                    existingUsernames.add(resultSet.getString(1));
+                });
+
+        return existingUsernames;
+    }
+
+    /**
+     * Inserts the given users into {@code name} and {@code user_data} using one JDBC batch per table.
+     * Usernames that were created concurrently in the meantime are skipped and their {@code name} rows removed again.
+     * Has to be called within a transaction.
+     * @param userDTOs users to insert with already normalized names
+     * @return Set of usernames that were actually inserted
+     */
+    @Timed("user.repository.jdbc")
+    public Set<String> insertUsers(final List<UserDTO> userDTOs) {
+        final Set<String> insertedUsernames = new HashSet<>();
+        if (userDTOs.isEmpty()) return insertedUsernames;
+
+        final Timestamp now = Timestamp.from(Instant.now());
+        final List<Object[]> nameRows = new ArrayList<>(userDTOs.size());
+        final List<Object[]> userRows = new ArrayList<>(userDTOs.size());
+        for (UserDTO userDTO : userDTOs) {
+            final UUID nameId = UUID.randomUUID();
+            nameRows.add(new Object[]{nameId, userDTO.getFirstName(), userDTO.getLastName(), now, now});
+            userRows.add(new Object[]{UUID.randomUUID(), userDTO.getUsername(), nameId, now, now});
+        }
+
+        this.jdbcTemplate.batchUpdate(
+                "INSERT INTO name (id, first_name, last_name, creation_time, update_time, version) VALUES (?, ?, ?, ?, ?, 0)",
+                nameRows);
+        final int[] userCounts = this.jdbcTemplate.batchUpdate(
+                "INSERT INTO user_data (id, username, name_id, creation_time, update_time, version) VALUES (?, ?, ?, ?, ?, 0) ON CONFLICT (username) DO NOTHING",
+                userRows);
+
+        final List<Object[]> orphanedNameIds = new ArrayList<>();
+        for (int i = 0; i < userCounts.length; i++) {
+            if (userCounts[i] == 0) {
+                orphanedNameIds.add(new Object[]{userRows.get(i)[2]});
+            } else {
+                insertedUsernames.add(userDTOs.get(i).getUsername());
+            }
+        }
+        if (!orphanedNameIds.isEmpty()) {
+            this.jdbcTemplate.batchUpdate("DELETE FROM name WHERE id = ?", orphanedNameIds);
+        }
+
+        return insertedUsernames;
+    }
+
+    /**
+     * Creates a {@link UserEntity} and its {@link NameEntity} in a single statement, unless the username is taken.
+     * Both rows and the entry of the change log are inserted by one data-modifying query; the foreign key is checked at its end.
+     * @param username identifying username
+     * @param firstName already normalized first name
+     * @param lastName already normalized last name
+     * @return Optional of {@link UserDTO} of the created {@link UserEntity} with its {@link UserVersionTag}
+     *      empty Optional if a {@link UserEntity} with given username already exists
+     */
+    @Timed("user.repository.jdbc")
+    public Optional<UserDTO> insertUser(final String username, final String firstName, final String lastName) {
+        final Timestamp now = Timestamp.from(Instant.now());
+        final List<UserDTO> userDTOs = this.jdbcTemplate.query(
+                "WITH u AS ("
+                        + " INSERT INTO user_data (id, username, name_id, creation_time, update_time, version) VALUES (?, ?, ?, ?, ?, 0)"
+                        + " ON CONFLICT (username) DO NOTHING RETURNING username, name_id, update_time"
+                        + "), n AS ("
+                        + " INSERT INTO name (id, first_name, last_name, creation_time, update_time, version)"
+                        + " SELECT name_id, ?, ?, ?, ?, 0 FROM u RETURNING id, first_name, last_name, update_time, version"
+                        + "), c AS ("
+                        + " INSERT INTO user_change (username, operation, change_time) SELECT username, 'CREATE', ? FROM u"
+                        + ")"
+                        + " SELECT u.username, n.first_name, n.last_name, u.update_time, n.update_time, n.version FROM u JOIN n ON n.id = u.name_id",
+                (resultSet, rowNum) -> mapVersionedUser(resultSet),
+                UUID.randomUUID(), username, UUID.randomUUID(), now, now,
+                firstName, lastName, now, now, now);
+
+        return userDTOs.stream().findFirst();
+    }
+
+    /**
+     * Updates the {@link NameEntity} of the {@link UserEntity} with given username in a single statement and increments its version.
+     * The same statement appends the update to the change log.
+     * If expected versions are given, the row is only updated if its current {@link UserVersionTag} is one of them, as a compare-and-set without a prior read.
+     * @param username identifying username
+     * @param firstName new first name; null to keep the current one
+     * @param lastName new last name; null to keep the current one
+     * @param expectedVersionTags versions of which one has to be current; null to update unconditionally
+     * @return Optional of {@link UserDTO} of the updated {@link UserEntity} with its new {@link UserVersionTag}
+     *      empty Optional if {@link UserEntity} not found or none of the expected versions is current
+     */
+    @Timed("user.repository.jdbc")
+    public Optional<UserDTO> updateName(final String username, final String firstName, final String lastName, final List<UserVersionTag> expectedVersionTags) {
+        if (expectedVersionTags != null && expectedVersionTags.isEmpty()) return Optional.empty();
+
+        final List<Object> parameters = new ArrayList<>();
+        parameters.add(new SqlParameterValue(Types.VARCHAR, firstName));
+        parameters.add(new SqlParameterValue(Types.VARCHAR, lastName));
+        final Timestamp now = Timestamp.from(Instant.now());
+        parameters.add(now);
+        parameters.add(username);
+        final String condition = versionCondition(expectedVersionTags, parameters);
+        parameters.add(now);
+        final List<UserDTO> userDTOs = this.jdbcTemplate.query(
+                "WITH n AS ("
+                        + " UPDATE name n SET first_name = COALESCE(?, n.first_name), last_name = COALESCE(?, n.last_name), update_time = ?, version = n.version + 1"
+                        + " FROM user_data u WHERE u.name_id = n.id AND u.username = ?" + condition
+                        + " RETURNING u.username, n.first_name, n.last_name, u.update_time AS user_update_time, n.update_time AS name_update_time, n.version"
+                        + "), c AS ("
+                        + " INSERT INTO user_change (username, operation, change_time) SELECT username, 'UPDATE', ? FROM n"
+                        + ")"
+                        + " SELECT username, first_name, last_name, user_update_time, name_update_time, version FROM n",
+                (resultSet, rowNum) -> mapVersionedUser(resultSet),
+                parameters.toArray());
+
+        return userDTOs.stream().findFirst();
+    }
+
+    /**
+     * Applies partial updates of the {@link NameEntity} of many {@link UserEntity} entries using one JDBC batch.
+     * Updates of usernames that no longer exist affect no rows.
+     * Has to be called within a transaction.
+     * @param updates usernames with the new first and last name; a null name is kept
+     * @return Set of usernames that were actually updated
+     */
+    @Timed("user.repository.jdbc")
+    public Set<String> updateNames(final List<UserDTO> updates) {
+        final Set<String> updatedUsernames = new HashSet<>();
+        if (updates.isEmpty()) return updatedUsernames;
+
+        final Timestamp now = Timestamp.from(Instant.now());
+        final List<Object[]> rows = new ArrayList<>(updates.size());
+        for (UserDTO update : updates) {
+            rows.add(new Object[]{new SqlParameterValue(Types.VARCHAR, update.getFirstName()), new SqlParameterValue(Types.VARCHAR, update.getLastName()), now, update.getUsername()});
+        }
+
+        final int[] counts = this.jdbcTemplate.batchUpdate(
+                "UPDATE name n SET first_name = COALESCE(?, n.first_name), last_name = COALESCE(?, n.last_name), update_time = ?, version = n.version + 1"
+                        + " FROM user_data u WHERE u.name_id = n.id AND u.username = ?",
+                rows);
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] != 0) updatedUsernames.add(updates.get(i).getUsername());
+        }
+
+        return updatedUsernames;
+    }
+
+    /**
+     * Deletes the {@link UserEntity} with given username and its {@link NameEntity} in a single statement, which also appends the deletion to the change log.
+     * If expected versions are given, the rows are only deleted if the current {@link UserVersionTag} is one of them.
+     * @param username identifying username
+     * @param expectedVersionTags versions of which one has to be current; null to delete unconditionally
+     * @return Optional of {@link UserDTO} of the deleted {@link UserEntity}
+     *      empty Optional if {@link UserEntity} not found or none of the expected versions is current
+     */
+    @Timed("user.repository.jdbc")
+    public Optional<UserDTO> deleteUser(final String username, final List<UserVersionTag> expectedVersionTags) {
+        if (expectedVersionTags != null && expectedVersionTags.isEmpty()) return Optional.empty();
+
+        final List<Object> parameters = new ArrayList<>();
+        parameters.add(username);
+        final String deleteUserData = expectedVersionTags == null
+                ? " DELETE FROM user_data u WHERE u.username = ? RETURNING u.username, u.name_id"
+                : " DELETE FROM user_data u USING name n WHERE n.id = u.name_id AND u.username = ?" + versionCondition(expectedVersionTags, parameters)
+                        + " RETURNING u.username, u.name_id";
+        parameters.add(Timestamp.from(Instant.now()));
+        final List<UserDTO> userDTOs = this.jdbcTemplate.query(
+                "WITH u AS ("
+                        + deleteUserData
+                        + "), n AS ("
+                        + " DELETE FROM name WHERE id IN (SELECT name_id FROM u) RETURNING id, first_name, last_name"
+                        + "), c AS ("
+                        + " INSERT INTO user_change (username, operation, change_time) SELECT username, 'DELETE', ? FROM u"
+                        + ")"
+                        + " SELECT u.username, n.first_name, n.last_name FROM u LEFT JOIN n ON n.id = u.name_id",
+                (resultSet, rowNum) -> new UserDTO(resultSet.getString(1), resultSet.getString(2), resultSet.getString(3)),
+                parameters.toArray());
+
+        return userDTOs.stream().findFirst();
+    }
+
+    /**
+     * Streams all users joined with their names ordered by username through a server-side cursor.
+     * Only one fetch of rows is held in memory at a time; nothing is attached to a persistence context.
+     * Has to be called within a transaction, as PostgreSQL only uses a cursor without auto-commit.
+     * @param fetchSize number of rows fetched per round trip
+     * @param consumer receives each user as {@link UserDTO}
+     * @return number of streamed users
+     */
+    @Timed("user.repository.jdbc")
+    public long streamUsers(final int fetchSize, final Consumer<UserDTO> consumer) {
+        final long[] count = {0};
+        this.jdbcTemplate.query(
+                connection -> {
+                    final PreparedStatement preparedStatement = connection.prepareStatement(
+                            "SELECT u.username, n.first_name, n.last_name FROM user_data u JOIN name n ON n.id = u.name_id ORDER BY u.username",
+                            ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                    preparedStatement.setFetchSize(fetchSize);
+                    return preparedStatement;
+                },
+                resultSet -> {
+                    consumer.accept(new UserDTO(resultSet.getString(1), resultSet.getString(2), resultSet.getString(3)));
+                    count[0]++;
+                });
+
+        return count[0];
+    }
+
+    /**
+     * Counts all users.
+     * @return number of entries in {@code user_data}
+     */
+    @Timed("user.repository.jdbc")
+    public long countUsers() {
+        final Long count = this.jdbcTemplate.queryForObject("SELECT count(*) FROM user_data", Long.class);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * Streams all usernames through a server-side cursor.
+     * Has to be called within a transaction, as PostgreSQL only uses a cursor without auto-commit.
+     * @param fetchSize number of rows fetched per round trip
+     * @param ordered true to stream in the byte order of the UTF-8 encoding, false for no particular order
+     * @param consumer receives each username
+     */
+    @Timed("user.repository.jdbc")
+    public void streamUsernames(final int fetchSize, final boolean ordered, final Consumer<String> consumer) {
+        this.jdbcTemplate.query(
+                connection -> {
+                    final PreparedStatement preparedStatement = connection.prepareStatement(
+                            ordered ? "SELECT username FROM user_data ORDER BY username COLLATE \"C\"" : "SELECT username FROM user_data",
+                            ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                    preparedStatement.setFetchSize(fetchSize);
+                    return preparedStatement;
+                },
+                resultSet -> {
+                    consumer.accept(resultSet.getString(1));
+                });
+    }
+
+    /**
+     * Utility function that restricts a statement on {@code user_data u} and {@code name n} to the given versions.
+     * @param versionTags versions of which one has to be current; null for no restriction
+     * @param parameters parameters of the statement, to which the versions are appended
+     * @return SQL condition to append to the WHERE clause
+     */
+    private static String versionCondition(final List<UserVersionTag> versionTags, final List<Object> parameters) {
+        if (versionTags == null) return "";
+
+        final StringBuilder condition = new StringBuilder(" AND (greatest(u.update_time, n.update_time), n.version) IN (");
+        for (int i = 0; i < versionTags.size(); i++) {
+            if (i > 0) condition.append(", ");
+            condition.append("(?, ?)");
+            parameters.add(Timestamp.from(versionTags.get(i).getLastModified()));
+            parameters.add(versionTags.get(i).getRevision());
+        }
+
+        return condition.append(")").toString();
+    }
+
+    private static UserDTO mapVersionedUser(final ResultSet resultSet) throws SQLException {
+        return new UserDTO(resultSet.getString(1), resultSet.getString(2), resultSet.getString(3),
+                UserVersionTag.of(resultSet.getTimestamp(4), resultSet.getTimestamp(5), resultSet.getLong(6)));
+    }
+}
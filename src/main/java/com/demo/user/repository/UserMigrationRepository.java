@@ -0,0 +1,142 @@
+package com.demo.user.repository;
+
+import com.demo.user.entity.NameEntity;
+import com.demo.user.entity.UserEntity;
+import com.demo.user.service.UserMigrationService;
+import io.micrometer.core.annotation.Timed;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Data layer of the user-service for the migration of legacy {@link UserEntity} entries without {@link NameEntity}.
+ * Responsible for chunked, set-based migration queries and checkpoints on behalf of {@link UserMigrationService}.
+ * Depending on the schema version, the names of legacy entries are read from {@code first_name} and {@code last_name} or split from {@code full_name}.
+ */
+@Repository
+public class UserMigrationRepository {
+    private final JdbcTemplate jdbcTemplate;
+
+    private volatile String[] legacyNameExpressions;
+
+    public UserMigrationRepository(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Counts {@link UserEntity} entries where the foreign key is null.
+     * @return number of entries to be migrated
+     */
+    public long countUnmigrated() {
+        final Long count = this.jdbcTemplate.queryForObject("SELECT count(*) FROM user_data WHERE name_id IS NULL", Long.class);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * Finds the username that closes the next chunk of entries to be migrated in username order.
+     * @param after exclusive lower bound of the chunk; null for the first chunk
+     * @param chunkSize number of entries per chunk
+     * @return Optional of the inclusive upper bound of the chunk
+     *      empty Optional if fewer than chunkSize entries are left, so that the chunk is open-ended
+     */
+    @Timed("user.repository.jdbc")
+    public Optional<String> findChunkUpperBound(final String after, final int chunkSize) {
+        final List<String> usernames = this.jdbcTemplate.queryForList(
+                "SELECT username FROM user_data WHERE name_id IS NULL AND username > ? ORDER BY username LIMIT 1 OFFSET ?",
+                String.class, after == null ? "" : after, chunkSize - 1);
+
+        return usernames.stream().findFirst();
+    }
+
+    /**
+     * Creates a {@link NameEntity} for every unmigrated {@link UserEntity} in the given username range and links it in a single statement.
+     * The {@link NameEntity} reuses the id of its {@link UserEntity}, which makes retrying a chunk idempotent.
+     * @param after exclusive lower bound of the chunk; null for the first chunk
+     * @param upTo inclusive upper bound of the chunk; null for an open-ended chunk
+     * @return number of migrated entries
+     */
+    @Timed("user.repository.jdbc")
+    public int migrateChunk(final String after, final String upTo) {
+        final String[] nameExpressions = getLegacyNameExpressions();
+        final Timestamp now = Timestamp.from(Instant.now());
+        final String sql = "WITH src AS ("
+                + " SELECT id, " + nameExpressions[0] + " AS first_name, " + nameExpressions[1] + " AS last_name FROM user_data"
+                + " WHERE name_id IS NULL AND username > ?" + (upTo == null ? "" : " AND username <= ?")
+                + " FOR UPDATE"
+                + "), ins AS ("
+                + " INSERT INTO name (id, first_name, last_name, creation_time, update_time, version)"
+                + " SELECT id, first_name, last_name, ?, ?, 0 FROM src ON CONFLICT (id) DO NOTHING"
+                + ")"
+                + " UPDATE user_data u SET name_id = src.id, update_time = ? FROM src WHERE u.id = src.id";
+
+        if (upTo == null) return this.jdbcTemplate.update(sql, after == null ? "" : after, now, now, now);
+        return this.jdbcTemplate.update(sql, after == null ? "" : after, upTo, now, now, now);
+    }
+
+    /**
+     * Finds the last username of the contiguous range that has been migrated by a previous, unfinished run.
+     * @param name name of the migration
+     * @return Optional of the checkpointed username
+     */
+    public Optional<String> findCheckpoint(final String name) {
+        return this.jdbcTemplate.queryForList("SELECT last_username FROM migration_checkpoint WHERE name = ?", String.class, name)
+                .stream().findFirst();
+    }
+
+    /**
+     * Records that all entries up to and including the given username have been migrated.
+     * @param name name of the migration
+     * @param lastUsername last username of the contiguous migrated range
+     * @param migratedRows number of entries migrated so far by the current run
+     */
+    public void saveCheckpoint(final String name, final String lastUsername, final long migratedRows) {
+        this.jdbcTemplate.update(
+                "INSERT INTO migration_checkpoint (name, last_username, migrated_rows, update_time) VALUES (?, ?, ?, ?)"
+                        + " ON CONFLICT (name) DO UPDATE SET last_username = EXCLUDED.last_username, migrated_rows = EXCLUDED.migrated_rows, update_time = EXCLUDED.update_time",
+                name, lastUsername, migratedRows, Timestamp.from(Instant.now()));
+    }
+
+    /**
+     * Removes the checkpoint of a finished migration, so that a later run starts over.
+     * @param name name of the migration
+     */
+    public void deleteCheckpoint(final String name) {
+        this.jdbcTemplate.update("DELETE FROM migration_checkpoint WHERE name = ?", name);
+    }
+
+    /**
+     * Utility function that determines the SQL expressions of first and last name of legacy entries by the columns still present in {@code user_data}.
+     * @return SQL expressions for first name and last name
+     */
+    private String[] getLegacyNameExpressions() {
+        if (this.legacyNameExpressions != null) return this.legacyNameExpressions;
+
+        final Set<String> columns = new HashSet<>(this.jdbcTemplate.queryForList(
+                "SELECT column_name FROM information_schema.columns WHERE table_name = 'user_data' AND table_schema = current_schema()",
+                String.class));
+
+        // full_name of version 1.0.0 is split at its first whitespace
+        final String fullName = "btrim(full_name)";
+        final String firstOfFullName = "NULLIF(split_part(" + fullName + ", ' ', 1), '')";
+        final String lastOfFullName = "NULLIF(btrim(substr(" + fullName + ", length(split_part(" + fullName + ", ' ', 1)) + 1)), '')";
+
+        String firstName = "NULL";
+        String lastName = "NULL";
+        if (columns.contains("first_name") && columns.contains("last_name")) {
+            firstName = columns.contains("full_name") ? "COALESCE(first_name, " + firstOfFullName + ")" : "first_name";
+            lastName = columns.contains("full_name") ? "COALESCE(last_name, " + lastOfFullName + ")" : "last_name";
+        } else if (columns.contains("full_name")) {
+            firstName = firstOfFullName;
+            lastName = lastOfFullName;
+        }
+
+        this.legacyNameExpressions = new String[]{firstName, lastName};
+        return this.legacyNameExpressions;
+    }
+}
@@ -0,0 +1,161 @@
+package com.demo.user.repository;
+
+import com.demo.user.entity.NameEntity;
+import com.demo.user.entity.UserEntity;
+import com.demo.user.service.UserShardRebalancer;
+import io.micrometer.core.annotation.Timed;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.SqlParameterValue;
+import org.springframework.stereotype.Repository;
+
+import java.sql.Array;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Data layer of the user-service for moving {@link UserEntity} entries with their {@link NameEntity} between shards.
+ * Copies the rows as they are, keeping ids, timestamps and versions, so that moved users keep their version tags.
+ * Responsible for JDBC access on behalf of {@link UserShardRebalancer}.
+ */
+@Repository
+public class UserRebalanceRepository {
+    private final JdbcTemplate jdbcTemplate;
+
+    public UserRebalanceRepository(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Finds the next users after the given username in the order of their usernames, for a keyset scan of the current shard.
+     * @param after username to continue after; null to start at the first one
+     * @param limit maximum number of users to find
+     * @return List of the rows of the found users, ordered by username
+     */
+    @Timed("user.repository.jdbc")
+    public List<StoredUser> findUsersAfter(final String after, final int limit) {
+        return this.jdbcTemplate.query(
+                "SELECT u.id, u.username, u.creation_time, u.update_time, u.version, n.id, n.first_name, n.last_name, n.creation_time, n.update_time, n.version"
+                        + " FROM user_data u JOIN name n ON n.id = u.name_id WHERE ? IS NULL OR u.username > ? ORDER BY u.username LIMIT ?",
+                (resultSet, rowNum) -> new StoredUser(resultSet.getObject(1, UUID.class), resultSet.getString(2), resultSet.getTimestamp(3), resultSet.getTimestamp(4), resultSet.getLong(5),
+                        resultSet.getObject(6, UUID.class), resultSet.getString(7), resultSet.getString(8), resultSet.getTimestamp(9), resultSet.getTimestamp(10), resultSet.getLong(11)),
+                new SqlParameterValue(Types.VARCHAR, after), new SqlParameterValue(Types.VARCHAR, after), limit);
+    }
+
+    /**
+     * Inserts copies of the given users into the current shard using one JDBC batch per table.
+     * Users already copied by an earlier, interrupted run are skipped; so are usernames taken by another user, whose {@code name} rows are removed again.
+     * Has to be called within a transaction.
+     * @param storedUsers rows of the users to copy
+     * @return Set of the usernames whose users exist in the current shard afterwards, under the same id
+     */
+    @Timed("user.repository.jdbc")
+    public Set<String> insertUsers(final List<StoredUser> storedUsers) {
+        final Set<String> copiedUsernames = new HashSet<>();
+        if (storedUsers.isEmpty()) return copiedUsernames;
+
+        final List<Object[]> nameRows = new ArrayList<>(storedUsers.size());
+        final List<Object[]> userRows = new ArrayList<>(storedUsers.size());
+        for (StoredUser storedUser : storedUsers) {
+            nameRows.add(new Object[]{storedUser.nameId, storedUser.firstName, storedUser.lastName, storedUser.nameCreationTime, storedUser.nameUpdateTime, storedUser.nameVersion});
+            userRows.add(new Object[]{storedUser.userId, storedUser.username, storedUser.nameId, storedUser.userCreationTime, storedUser.userUpdateTime, storedUser.userVersion});
+        }
+
+        this.jdbcTemplate.batchUpdate(
+                "INSERT INTO name (id, first_name, last_name, creation_time, update_time, version) VALUES (?, ?, ?, ?, ?, ?) ON CONFLICT DO NOTHING",
+                nameRows);
+        this.jdbcTemplate.batchUpdate(
+                "INSERT INTO user_data (id, username, name_id, creation_time, update_time, version) VALUES (?, ?, ?, ?, ?, ?) ON CONFLICT DO NOTHING",
+                userRows);
+
+        this.jdbcTemplate.query(
+                "SELECT username FROM user_data WHERE id = ANY(?)",
+                preparedStatement -> {
+                    final Array array = preparedStatement.getConnection().createArrayOf("uuid", storedUsers.stream().map(storedUser -> storedUser.userId).toArray());
+                    preparedStatement.setArray(1, array);
+                },
+                resultSet -> {
+                    copiedUsernames.add(resultSet.getString(1));
+                });
+
+        final List<Object[]> orphanedNameIds = new ArrayList<>();
+        for (StoredUser storedUser : storedUsers) {
+            if (!copiedUsernames.contains(storedUser.username)) orphanedNameIds.add(new Object[]{storedUser.nameId, storedUser.nameId});
+        }
+        if (!orphanedNameIds.isEmpty()) {
+            this.jdbcTemplate.batchUpdate("DELETE FROM name WHERE id = ? AND NOT EXISTS (SELECT 1 FROM user_data WHERE name_id = ?)", orphanedNameIds);
+        }
+
+        return copiedUsernames;
+    }
+
+    /**
+     * Deletes the given users and their names from the current shard using one JDBC batch per table.
+     * Has to be called within a transaction.
+     * @param storedUsers rows of the users to delete
+     */
+    @Timed("user.repository.jdbc")
+    public void deleteUsers(final List<StoredUser> storedUsers) {
+        if (storedUsers.isEmpty()) return;
+
+        final List<Object[]> userIds = new ArrayList<>(storedUsers.size());
+        final List<Object[]> nameIds = new ArrayList<>(storedUsers.size());
+        for (StoredUser storedUser : storedUsers) {
+            userIds.add(new Object[]{storedUser.userId});
+            nameIds.add(new Object[]{storedUser.nameId});
+        }
+
+        this.jdbcTemplate.batchUpdate("DELETE FROM user_data WHERE id = ?", userIds);
+        this.jdbcTemplate.batchUpdate("DELETE FROM name WHERE id = ?", nameIds);
+    }
+
+    /**
+     * Row of {@code user_data} joined with its row of {@code name}, as stored.
+     */
+    public static final class StoredUser {
+        private final UUID userId;
+
+        private final String username;
+
+        private final Timestamp userCreationTime;
+
+        private final Timestamp userUpdateTime;
+
+        private final long userVersion;
+
+        private final UUID nameId;
+
+        private final String firstName;
+
+        private final String lastName;
+
+        private final Timestamp nameCreationTime;
+
+        private final Timestamp nameUpdateTime;
+
+        private final long nameVersion;
+
+        public StoredUser(UUID userId, String username, Timestamp userCreationTime, Timestamp userUpdateTime, long userVersion,
+                          UUID nameId, String firstName, String lastName, Timestamp nameCreationTime, Timestamp nameUpdateTime, long nameVersion) {
+            this.userId = userId;
+            this.username = username;
+            this.userCreationTime = userCreationTime;
+            this.userUpdateTime = userUpdateTime;
+            this.userVersion = userVersion;
+            this.nameId = nameId;
+            this.firstName = firstName;
+            this.lastName = lastName;
+            this.nameCreationTime = nameCreationTime;
+            this.nameUpdateTime = nameUpdateTime;
+            this.nameVersion = nameVersion;
+        }
+
+        public String getUsername() {
+            return this.username;
+        }
+    }
+}
@@ -1,11 +1,16 @@
 package com.demo.user.repository;
 
+import com.demo.user.dto.UserDTO;
 import com.demo.user.entity.UserEntity;
 import com.demo.user.service.UserService;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
-import javax.transaction.Transactional;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
@@ -26,17 +31,39 @@ public interface UserRepository extends JpaRepository<UserEntity, UUID> {
     Optional<UserEntity> findByUsername(String username);
 
     /**
-     * Deletes and returns {@link UserEntity} by given username.
+     * Finds {@link UserEntity} by given username and projects it together with its {@link com.demo.user.entity.NameEntity} into a {@link UserDTO} in a single joined query.
+     * No entities are hydrated or tracked by the persistence context.
      * @param username identifying username
-     * @return deleted {@link UserEntity}
+     * @return {@link UserDTO} of found {@link UserEntity}
      */
-    List<UserEntity> deleteByUsername(String username);
+    @Transactional(readOnly = true)
+    @Query("select new com.demo.user.dto.UserDTO(u.username, n.firstName, n.lastName, u.updateTime, n.updateTime, n.version) from UserEntity u join u.nameEntity n where u.username = :username")
+    Optional<UserDTO> findUserDTOByUsername(@Param("username") String username);
+
+    /**
+     * Finds all {@link UserEntity} with one of the given usernames and projects them into {@link UserDTO} in a single joined query.
+     * @param usernames identifying usernames
+     * @return List of {@link UserDTO} of found {@link UserEntity}, in no particular order
+     */
+    @Transactional(readOnly = true)
+    @Query("select new com.demo.user.dto.UserDTO(u.username, n.firstName, n.lastName, u.updateTime, n.updateTime, n.version) from UserEntity u join u.nameEntity n where u.username in :usernames")
+    List<UserDTO> findUserDTOsByUsernameIn(@Param("usernames") Collection<String> usernames);
 
+    /**
+     * Finds the page of users following the given username in username order and projects them into {@link UserDTO}.
+     * Seeks into the unique index on {@code user_data.username}, so the cost does not depend on the position of the page.
+     * @param after exclusive lower bound of the page; empty String for the first page
+     * @param pageable page size as limit, to be requested unsorted and with page number 0
+     * @return List of {@link UserDTO} ordered by username
+     */
+    @Transactional(readOnly = true)
+    @Query("select new com.demo.user.dto.UserDTO(u.username, n.firstName, n.lastName) from UserEntity u join u.nameEntity n where u.username > :after order by u.username")
+    List<UserDTO> findUserDTOsAfter(@Param("after") String after, Pageable pageable);
 
     /**
-     * Finds all {@link UserEntity} entries where the foreign key is null.
-     * Called by {@link UserService#migrateUsers()} to migrate old {@link UserEntity} entries.
-     * @return List of {@link UserEntity} entries to be migrated
+     * Deletes and returns {@link UserEntity} by given username.
+     * @param username identifying username
+     * @return deleted {@link UserEntity}
      */
-    List<UserEntity> getByNameEntityIsNull();
+    List<UserEntity> deleteByUsername(String username);
 }
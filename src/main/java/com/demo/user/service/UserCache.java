@@ -0,0 +1,178 @@
+package com.demo.user.service;
+
+import com.demo.user.dto.UserDTO;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded in-process read-through cache of {@link UserDTO} keyed by username, used by {@link UserService}.
+ * Entries are evicted in least-recently-used order once the maximum size is reached and expire after a fixed time-to-live.
+ * Only existing users are cached; lookups of unknown usernames always fall through to the database.
+ * Writes only invalidate their username, as nothing orders the cache updates of concurrent writers after their commits;
+ * the next read then loads the committed state.
+ * Hits, misses, evictions and size are exported as metrics.
+ */
+@Component
+public class UserCache implements MeterBinder {
+    private final int maxSize;
+
+    private final long ttlNanos;
+
+    private final Map<String, Entry> entries;
+
+    /**
+     * Minimum number of usernames whose write epochs are kept, so that they are kept even if the cache is disabled, for {@link UserLookupCoalescer}.
+     */
+    private static final int MIN_WRITE_EPOCHS = 1024;
+
+    /**
+     * Epoch of the last write of every recently written username, so that a read started before a write of its username can't repopulate the cache
+     * with a stale value, while reads of other usernames still fill it. Usernames without an entry are at the floor epoch.
+     * Once the map outgrows the cache, it is cleared and the floor is raised above all dropped epochs, which only discards the fills in flight.
+     * Guarded by the lock of {@link #entries}.
+     */
+    private final Map<String, Long> writeEpochs = new HashMap<>();
+
+    private long floorEpoch;
+
+    private long lastWriteEpoch;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    public UserCache(@Value("${user.cache.max-size:10000}") final int maxSize, @Value("${user.cache.ttl:PT5M}") final Duration ttl) {
+        this.maxSize = maxSize;
+        this.ttlNanos = ttl.toNanos();
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() <= UserCache.this.maxSize) return false;
+                UserCache.this.evictions.incrementAndGet();
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached {@link UserDTO} for the given username, if present and not expired.
+     * @param username identifying username
+     * @return Optional of cached {@link UserDTO}
+     *      empty Optional on a cache miss
+     */
+    public Optional<UserDTO> get(final String username) {
+        if (this.maxSize <= 0) return Optional.empty();
+
+        final Entry entry;
+        synchronized (this.entries) {
+            entry = this.entries.get(username);
+            if (entry != null && entry.isExpired(System.nanoTime())) {
+                this.entries.remove(username);
+                this.evictions.incrementAndGet();
+                this.misses.incrementAndGet();
+                return Optional.empty();
+            }
+        }
+
+        if (entry == null) {
+            this.misses.incrementAndGet();
+            return Optional.empty();
+        }
+        this.hits.incrementAndGet();
+        return Optional.of(entry.userDTO);
+    }
+
+    /**
+     * Returns the current write epoch of a username, to be passed to {@link #putIfUnchanged(UserDTO, long)} after loading the user from the database.
+     * @param username identifying username
+     * @return current write epoch of the username
+     */
+    public long currentEpoch(final String username) {
+        synchronized (this.entries) {
+            return this.writeEpochs.getOrDefault(username, this.floorEpoch);
+        }
+    }
+
+    /**
+     * Fills the cache after a read, unless the user was written since the given epoch was taken.
+     * @param userDTO {@link UserDTO} loaded from the database
+     * @param epoch write epoch of its username taken before the database read
+     */
+    public void putIfUnchanged(final UserDTO userDTO, final long epoch) {
+        if (this.maxSize <= 0) return;
+
+        synchronized (this.entries) {
+            if (this.writeEpochs.getOrDefault(userDTO.getUsername(), this.floorEpoch) != epoch) return;
+            this.entries.put(userDTO.getUsername(), new Entry(userDTO, System.nanoTime() + this.ttlNanos));
+        }
+    }
+
+    /**
+     * Removes the given username from the cache after it was created, changed or deleted.
+     * @param username identifying username
+     */
+    public void invalidate(final String username) {
+        synchronized (this.entries) {
+            if (this.writeEpochs.size() >= Math.max(this.maxSize, MIN_WRITE_EPOCHS)) {
+                this.writeEpochs.clear();
+                this.floorEpoch = this.lastWriteEpoch;
+            }
+            this.writeEpochs.put(username, ++this.lastWriteEpoch);
+            this.entries.remove(username);
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("user.cache.requests", this, UserCache::getHits).tag("result", "hit").register(registry);
+        FunctionCounter.builder("user.cache.requests", this, UserCache::getMisses).tag("result", "miss").register(registry);
+        FunctionCounter.builder("user.cache.evictions", this, UserCache::getEvictions).register(registry);
+        Gauge.builder("user.cache.size", this, UserCache::size).register(registry);
+    }
+
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    public long getEvictions() {
+        return this.evictions.get();
+    }
+
+    public int size() {
+        synchronized (this.entries) {
+            return this.entries.size();
+        }
+    }
+
+    private static final class Entry {
+        private final UserDTO userDTO;
+
+        private final long expiresAtNanos;
+
+        private Entry(UserDTO userDTO, long expiresAtNanos) {
+            this.userDTO = userDTO;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+
+        private boolean isExpired(long nowNanos) {
+            return nowNanos - this.expiresAtNanos > 0;
+        }
+    }
+}
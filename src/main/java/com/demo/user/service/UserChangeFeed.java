@@ -0,0 +1,432 @@
+package com.demo.user.service;
+
+import com.demo.user.config.ShardRouting;
+import com.demo.user.dto.UserChangeBatchDTO;
+import com.demo.user.dto.UserChangeDTO;
+import com.demo.user.repository.UserChangeRepository;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+/**
+ * Incremental feed of user changes from the change log of {@link UserChangeRepository}, so that consumers mirroring users only read what changed.
+ * A cursor marks the position of a consumer and is only advanced past changes of completed transactions, so no change is ever skipped.
+ * Requests without new changes may wait for them; waiting requests are answered by a background poll, which reads the change log once for all of them.
+ * The log is compacted periodically in batches: changes followed by a later change of the same username are dropped, and all changes after the retention.
+ * A consumer starts by requesting a cursor at the current end of the log and then exports all users, which already contain every change before it.
+ * Cursors older than the retention are rejected, as the changes after them might be gone; such consumers have to start over the same way.
+ * With sharding, every shard keeps the log of its users and a cursor holds a position per shard. A batch is made up of the changes of all shards,
+ * read in parallel, so changes are in order per username but not across shards. Cursors of a different number of shards are rejected like expired ones.
+ */
+@Component
+public class UserChangeFeed implements MeterBinder {
+    private static final Logger LOGGER = LoggerFactory.getLogger(UserChangeFeed.class);
+
+    private final UserChangeRepository userChangeRepository;
+
+    private final ShardRouting shardRouting;
+
+    private final Duration retention;
+
+    private final Duration pollInterval;
+
+    private final Duration compactionInterval;
+
+    private final int compactionBatchSize;
+
+    private final Queue<Waiter> waiters = new ConcurrentLinkedQueue<>();
+
+    private final AtomicLong compactedChanges = new AtomicLong();
+
+    private ScheduledExecutorService scheduler;
+
+    public UserChangeFeed(UserChangeRepository userChangeRepository, ShardRouting shardRouting,
+                          @Value("${user.changes.retention:P7D}") Duration retention,
+                          @Value("${user.changes.poll-interval:PT0.2S}") Duration pollInterval,
+                          @Value("${user.changes.compaction-interval:PT1H}") Duration compactionInterval,
+                          @Value("${user.changes.compaction-batch-size:10000}") int compactionBatchSize) {
+        this.userChangeRepository = userChangeRepository;
+        this.shardRouting = shardRouting;
+        this.retention = retention;
+        this.pollInterval = pollInterval;
+        this.compactionInterval = compactionInterval;
+        this.compactionBatchSize = compactionBatchSize;
+    }
+
+    /**
+     * Starts polling for waiting requests and schedules the compaction.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "user-change-feed");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.scheduleWithFixedDelay(this::pollWaiters, this.pollInterval.toMillis(), this.pollInterval.toMillis(), TimeUnit.MILLISECONDS);
+        this.scheduler.scheduleWithFixedDelay(this::compact, this.compactionInterval.toMillis(), this.compactionInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Answers all waiting requests with what they have, so that they finish before the server stops.
+     */
+    @PreDestroy
+    public void shutdown() {
+        if (this.scheduler != null) this.scheduler.shutdownNow();
+
+        Waiter waiter;
+        while ((waiter = this.waiters.poll()) != null) waiter.complete();
+    }
+
+    /**
+     * Reads the changes after a cursor, waiting for new ones up to the given time if there are none.
+     * Without a cursor, answers right away with an empty batch and a cursor at the current end of the log.
+     * @param after cursor returned with the previous batch; null for a cursor at the current end of the log
+     * @param limit maximum number of changes in the batch
+     * @param wait how long to wait for changes if there are none; zero to answer right away
+     * @return Optional of the future {@link UserChangeBatchDTO}, which is empty only if nothing changed within the waiting time
+     *      empty Optional if the cursor is malformed
+     * @throws CursorExpiredException if the cursor is older than the retention of the change log or of a different number of shards
+     */
+    public Optional<CompletableFuture<UserChangeBatchDTO>> awaitChanges(final String after, final int limit, final Duration wait) {
+        if (after == null) {
+            final List<Long> horizons = this.shardRouting.onEachShard(shard -> this.userChangeRepository.findHorizon());
+            final Cursor end = new Cursor(horizons.stream().mapToLong(Long::longValue).toArray(), new long[horizons.size()], System.currentTimeMillis());
+            return Optional.of(CompletableFuture.completedFuture(new UserChangeBatchDTO(List.of(), end.encode())));
+        }
+
+        final Optional<Cursor> optCursor = Cursor.decode(after);
+        if (optCursor.isEmpty()) return Optional.empty();
+        if (optCursor.get().positionMillis < System.currentTimeMillis() - this.retention.toMillis()) throw new CursorExpiredException();
+        if (optCursor.get().transactionIds.length != this.shardRouting.getShardCount()) throw new CursorExpiredException();
+
+        final Waiter waiter = new Waiter(optCursor.get(), limit, System.nanoTime() + wait.toNanos());
+        read(List.of(waiter));
+        if (!waiter.changes.isEmpty() || wait.isZero()) {
+            waiter.complete();
+        } else {
+            this.waiters.add(waiter);
+        }
+
+        return Optional.of(waiter.future);
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("user.changes.waiters", this.waiters, Queue::size).description("Requests waiting for changes").register(registry);
+        FunctionCounter.builder("user.changes.compacted", this.compactedChanges, AtomicLong::get).description("Changes removed from the change log").register(registry);
+    }
+
+    /**
+     * Utility function that reads the next batches of changes of the given waiters and moves their cursors behind them.
+     * Every shard is read once from the lowest position of the waiters, up to the largest share of any of them, and each waiter takes the changes after its own position.
+     * Waiters ahead of all changes of a full read are read again from the lowest of their positions.
+     * The limit of a waiter is split evenly among the shards, each reading at least one change. The position on a shard after a full share keeps the time of its last change,
+     * one that caught up the current time, and the cursor keeps the earliest time of all shards.
+     * @param waiters waiters to read for, whose cursors all hold a position per shard
+     */
+    private void read(final List<Waiter> waiters) {
+        final int shardCount = this.shardRouting.getShardCount();
+        final long now = System.currentTimeMillis();
+        final List<ShardChanges[]> shardChanges = this.shardRouting.onEachShard(shard -> readShard(shard, shardCount, waiters, now));
+
+        for (int index = 0; index < waiters.size(); index++) {
+            final List<UserChangeDTO> changes = new ArrayList<>();
+            final long[] transactionIds = new long[shardCount];
+            final long[] seqs = new long[shardCount];
+            long positionMillis = now;
+            for (int shard = 0; shard < shardCount; shard++) {
+                final ShardChanges changesOfShard = shardChanges.get(shard)[index];
+                changes.addAll(changesOfShard.userChangeDTOs);
+                transactionIds[shard] = changesOfShard.transactionId;
+                seqs[shard] = changesOfShard.seq;
+                positionMillis = Math.min(positionMillis, changesOfShard.positionMillis);
+            }
+            final Waiter waiter = waiters.get(index);
+            waiter.changes = changes;
+            waiter.cursor = new Cursor(transactionIds, seqs, positionMillis);
+        }
+    }
+
+    /**
+     * Utility function that reads the changes of one shard for the given waiters, running on that shard.
+     * @param shard number of the shard
+     * @param shardCount number of shards
+     * @param waiters waiters to read for
+     * @param now current time
+     * @return the changes of the shard and the following position for every waiter, indexed like the waiters
+     */
+    private ShardChanges[] readShard(final int shard, final int shardCount, final List<Waiter> waiters, final long now) {
+        final ShardChanges[] shardChanges = new ShardChanges[waiters.size()];
+        List<Integer> pending = IntStream.range(0, waiters.size()).boxed()
+                .sorted(Comparator.<Integer>comparingLong(index -> waiters.get(index).cursor.transactionIds[shard]).thenComparingLong(index -> waiters.get(index).cursor.seqs[shard]))
+                .toList();
+        while (!pending.isEmpty()) {
+            final Cursor lowest = waiters.get(pending.get(0)).cursor;
+            final int readLimit = pending.stream().mapToInt(index -> waiters.get(index).getShardLimit(shard, shardCount)).max().orElse(1);
+            final UserChangeRepository.Changes changes = this.userChangeRepository.findChangesAfter(lowest.transactionIds[shard], lowest.seqs[shard], readLimit);
+            final List<UserChangeDTO> userChangeDTOs = changes.getUserChangeDTOs();
+            final boolean full = userChangeDTOs.size() == readLimit;
+
+            final List<Integer> ahead = new ArrayList<>();
+            for (int index : pending) {
+                final Cursor cursor = waiters.get(index).cursor;
+                int from = 0;
+                while (from < userChangeDTOs.size() && !isAfter(changes, from, cursor.transactionIds[shard], cursor.seqs[shard])) from++;
+                if (full && from == userChangeDTOs.size()) {
+                    ahead.add(index);
+                    continue;
+                }
+
+                final int shardLimit = waiters.get(index).getShardLimit(shard, shardCount);
+                final int to = Math.min(userChangeDTOs.size(), from + shardLimit);
+                final List<UserChangeDTO> changesOfWaiter = userChangeDTOs.subList(from, to);
+                if (to - from == shardLimit || full) {
+                    // a full share, or the end of a full read after which more changes may follow
+                    shardChanges[index] = new ShardChanges(changesOfWaiter, changes.getTransactionId(to - 1), changes.getSeq(to - 1),
+                            changesOfWaiter.get(changesOfWaiter.size() - 1).getChangeTime().toEpochMilli());
+                } else if (changes.getHorizon() > cursor.transactionIds[shard]) {
+                    // caught up, all changes before the oldest running transaction were read
+                    shardChanges[index] = new ShardChanges(changesOfWaiter, changes.getHorizon(), 0, now);
+                } else {
+                    shardChanges[index] = new ShardChanges(changesOfWaiter, cursor.transactionIds[shard], cursor.seqs[shard], now);
+                }
+            }
+            pending = ahead;
+        }
+
+        return shardChanges;
+    }
+
+    /**
+     * Utility function that tells whether a read change follows the given position.
+     * @param changes read changes
+     * @param index index of the change
+     * @param transactionId transaction id of the position
+     * @param seq sequence number of the position
+     * @return true if the change is after the position
+     */
+    private static boolean isAfter(final UserChangeRepository.Changes changes, final int index, final long transactionId, final long seq) {
+        return changes.getTransactionId(index) > transactionId || (changes.getTransactionId(index) == transactionId && changes.getSeq(index) > seq);
+    }
+
+    /**
+     * Utility function that answers the waiting requests past their waiting time, reads for the others at once and answers those with changes.
+     * A failed read leaves the requests waiting for the next poll.
+     */
+    private void pollWaiters() {
+        final List<Waiter> reading = new ArrayList<>();
+        final Iterator<Waiter> iterator = this.waiters.iterator();
+        while (iterator.hasNext()) {
+            final Waiter waiter = iterator.next();
+            if (System.nanoTime() - waiter.deadlineNanos >= 0) {
+                iterator.remove();
+                complete(waiter);
+            } else {
+                reading.add(waiter);
+            }
+        }
+        if (reading.isEmpty()) return;
+
+        try {
+            read(reading);
+        } catch (RuntimeException e) {
+            LOGGER.warn("Could not read changes for {} waiting requests", reading.size(), e);
+            return;
+        }
+
+        // requests that started waiting meanwhile have no changes yet
+        final Iterator<Waiter> answered = this.waiters.iterator();
+        while (answered.hasNext()) {
+            final Waiter waiter = answered.next();
+            if (!waiter.changes.isEmpty()) {
+                answered.remove();
+                complete(waiter);
+            }
+        }
+    }
+
+    /**
+     * Utility function that answers a waiting request, logging a failure instead of passing it on, so that the other requests are still answered.
+     * @param waiter waiter to answer
+     */
+    private static void complete(final Waiter waiter) {
+        try {
+            waiter.complete();
+        } catch (RuntimeException e) {
+            LOGGER.warn("Could not answer a request waiting for changes", e);
+        }
+    }
+
+    /**
+     * Utility function that removes superseded changes and changes after the retention from the change log, in batches of their own transactions.
+     */
+    private void compact() {
+        try {
+            final long startNanos = System.nanoTime();
+            final Instant before = Instant.now().minus(this.retention);
+            final long superseded = this.shardRouting.onEachShard(shard -> deleteSupersededChanges()).stream().mapToLong(Long::longValue).sum();
+            final long expired = this.shardRouting.onEachShard(shard -> deleteChangesBefore(before)).stream().mapToLong(Long::longValue).sum();
+            this.compactedChanges.addAndGet(superseded + expired);
+            LOGGER.info("Compacted change log by {} superseded and {} expired changes in {} ms",
+                    superseded, expired, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        } catch (RuntimeException e) {
+            LOGGER.error("Could not compact change log", e);
+        }
+    }
+
+    /**
+     * Utility function that scans the change log of the current shard batch by batch and deletes superseded changes.
+     * @return number of deleted changes
+     */
+    private long deleteSupersededChanges() {
+        long deleted = 0;
+        long afterSeq = 0;
+        while (true) {
+            final UserChangeRepository.DeletedBatch deletedBatch = this.userChangeRepository.deleteSupersededChanges(afterSeq, this.compactionBatchSize);
+            if (deletedBatch.getLastSeq() == 0) return deleted;
+            deleted += deletedBatch.getDeleted();
+            afterSeq = deletedBatch.getLastSeq();
+        }
+    }
+
+    /**
+     * Utility function that deletes the changes before the given time from the current shard batch by batch.
+     * @param before exclusive upper bound of the change time
+     * @return number of deleted changes
+     */
+    private long deleteChangesBefore(final Instant before) {
+        long deleted = 0;
+        int deletedBatch;
+        do {
+            deletedBatch = this.userChangeRepository.deleteChangesBefore(before, this.compactionBatchSize);
+            deleted += deletedBatch;
+        } while (deletedBatch == this.compactionBatchSize);
+        return deleted;
+    }
+
+    /**
+     * Position in the change log of every shard, exclusive, together with the time up to which its consumer has seen all changes.
+     * Encoded as Base64url, so that it stays opaque to clients; the positions of several shards are separated by commas.
+     */
+    private static class Cursor {
+        private final long[] transactionIds;
+
+        private final long[] seqs;
+
+        private final long positionMillis;
+
+        private Cursor(long[] transactionIds, long[] seqs, long positionMillis) {
+            this.transactionIds = transactionIds;
+            this.seqs = seqs;
+            this.positionMillis = positionMillis;
+        }
+
+        private static Optional<Cursor> decode(final String encoded) {
+            try {
+                final String[] parts = new String(Base64.getUrlDecoder().decode(encoded), StandardCharsets.UTF_8).split(":");
+                if (parts.length != 3) return Optional.empty();
+                final long[] transactionIds = Arrays.stream(parts[0].split(",")).mapToLong(Long::parseLong).toArray();
+                final long[] seqs = Arrays.stream(parts[1].split(",")).mapToLong(Long::parseLong).toArray();
+                if (transactionIds.length != seqs.length) return Optional.empty();
+                return Optional.of(new Cursor(transactionIds, seqs, Long.parseLong(parts[2])));
+            } catch (IllegalArgumentException e) {
+                return Optional.empty();
+            }
+        }
+
+        private String encode() {
+            final StringBuilder cursor = new StringBuilder();
+            for (int shard = 0; shard < this.transactionIds.length; shard++) cursor.append(shard == 0 ? "" : ",").append(this.transactionIds[shard]);
+            cursor.append(':');
+            for (int shard = 0; shard < this.seqs.length; shard++) cursor.append(shard == 0 ? "" : ",").append(this.seqs[shard]);
+            cursor.append(':').append(this.positionMillis);
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(cursor.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Request for changes, answered right away or once the poll finds changes or its waiting time passed.
+     */
+    private static class Waiter {
+        private final CompletableFuture<UserChangeBatchDTO> future = new CompletableFuture<>();
+
+        private final int limit;
+
+        private final long deadlineNanos;
+
+        private volatile Cursor cursor;
+
+        private volatile List<UserChangeDTO> changes = List.of();
+
+        private Waiter(Cursor cursor, int limit, long deadlineNanos) {
+            this.cursor = cursor;
+            this.limit = limit;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        private int getShardLimit(final int shard, final int shardCount) {
+            return Math.max(1, this.limit / shardCount + (shard < this.limit % shardCount ? 1 : 0));
+        }
+
+        private void complete() {
+            this.future.complete(new UserChangeBatchDTO(this.changes, this.cursor.encode()));
+        }
+    }
+
+    /**
+     * Changes of one shard read for a waiter, with the position on the shard and its time after them.
+     */
+    private static class ShardChanges {
+        private final List<UserChangeDTO> userChangeDTOs;
+
+        private final long transactionId;
+
+        private final long seq;
+
+        private final long positionMillis;
+
+        private ShardChanges(List<UserChangeDTO> userChangeDTOs, long transactionId, long seq, long positionMillis) {
+            this.userChangeDTOs = userChangeDTOs;
+            this.transactionId = transactionId;
+            this.seq = seq;
+            this.positionMillis = positionMillis;
+        }
+    }
+
+    /**
+     * Thrown for cursors older than the retention of the change log, to be answered with 410 Gone.
+     */
+    public static class CursorExpiredException extends RuntimeException {
+        public CursorExpiredException() {
+            super("cursor is older than the retention of the change log");
+        }
+    }
+}
@@ -0,0 +1,451 @@
+package com.demo.user.service;
+
+import com.demo.user.config.ShardRouting;
+import com.demo.user.controller.UserController;
+import com.demo.user.dto.UserDTO;
+import com.demo.user.dto.UserImportStatusDTO;
+import com.demo.user.entity.UserEntity;
+import com.demo.user.repository.UserImportRepository;
+import com.demo.user.validation.NameNormalizer;
+import com.demo.user.validation.UsernameValidator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Domain Layer of the user-service for bulk imports of {@link UserEntity} entries from CSV files, e.g. exports of the legacy system.
+ * A file holds one user per line as {@code username,first_name,last_name} in CSV format, where a quoted field may contain commas and doubled quotes.
+ * The file is read sequentially through a large buffer and every row is validated like a POST request for {@link UserController#postUser(String, String, UserDTO)}.
+ * Valid rows are collected into chunks, each of which is streamed into a staging table with {@code COPY} and merged by a single statement in its own transaction,
+ * on a pool of workers, so that the index maintenance of several chunks proceeds in parallel while the file is read on.
+ * Rejected rows, invalid ones as well as those of taken usernames, are written to an error file next to the imported one with their line number and reason.
+ * Imports are restricted to files within the configured import directory.
+ * With sharding, the rows are collected into separate chunks per shard, each merged on the shard of its usernames.
+ * As an aborted import keeps its committed chunks, importing the same file again rejects those rows as taken and imports the rest.
+ */
+@Service
+public class UserImportService {
+    private static final Logger LOGGER = LoggerFactory.getLogger(UserImportService.class);
+
+    private static final int READ_BUFFER_SIZE = 1 << 20;
+
+    private static final int FIELD_COUNT = 3;
+
+    /**
+     * Maximum length of first and last name, as stored in {@code name}; longer names would fail the whole chunk.
+     */
+    private static final int MAX_NAME_LENGTH = 255;
+
+    private static final long PROGRESS_LOG_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    static final String MALFORMED_RECORD = "malformed record";
+
+    static final String INVALID_USERNAME = "invalid username";
+
+    static final String MISSING_NAME = "missing first or last name";
+
+    static final String NAME_TOO_LONG = "name too long";
+
+    static final String USERNAME_TAKEN = "username taken";
+
+    static final String DUPLICATE_USERNAME = "duplicate username";
+
+    private final UserImportRepository userImportRepository;
+
+    private final UsernameBloomFilter usernameBloomFilter;
+
+    private final UsernameIndex usernameIndex;
+
+    private final ShardRouting shardRouting;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final Path directory;
+
+    private final int chunkSize;
+
+    private final int workers;
+
+    private final AtomicReference<UserImportStatusDTO.State> state = new AtomicReference<>(UserImportStatusDTO.State.IDLE);
+
+    private final AtomicLong readRows = new AtomicLong();
+
+    private final AtomicLong importedRows = new AtomicLong();
+
+    private final AtomicLong rejectedRows = new AtomicLong();
+
+    private volatile Path file;
+
+    private volatile Path errorFile;
+
+    private volatile long startNanos;
+
+    private volatile long endNanos;
+
+    public UserImportService(UserImportRepository userImportRepository, UsernameBloomFilter usernameBloomFilter, UsernameIndex usernameIndex,
+                             ShardRouting shardRouting, PlatformTransactionManager transactionManager,
+                             @Value("${user.import.directory:import}") String directory,
+                             @Value("${user.import.chunk-size:100000}") int chunkSize,
+                             @Value("${user.import.workers:4}") int workers) {
+        this.userImportRepository = userImportRepository;
+        this.usernameBloomFilter = usernameBloomFilter;
+        this.usernameIndex = usernameIndex;
+        this.shardRouting = shardRouting;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.directory = Path.of(directory).toAbsolutePath().normalize();
+        this.chunkSize = chunkSize;
+        this.workers = workers;
+    }
+
+    /**
+     * Resolves the name of a file to import against the import directory.
+     * @param fileName path of the file relative to the import directory
+     * @return Optional of the path of the file
+     *      empty Optional if the file is outside the import directory or not a regular file
+     */
+    public Optional<Path> resolve(final String fileName) {
+        final Path resolved = this.directory.resolve(fileName).normalize();
+        if (!resolved.startsWith(this.directory) || !Files.isRegularFile(resolved)) return Optional.empty();
+
+        return Optional.of(resolved);
+    }
+
+    /**
+     * Called by {@link UserController#importUsers(String, boolean)} and starts the import of the given file in the background, unless an import is already running.
+     * @param file file resolved by {@link #resolve(String)}
+     * @param header true if the first line of the file is a header
+     * @return true if the import was started
+     */
+    public boolean importUsers(final Path file, final boolean header) {
+        final UserImportStatusDTO.State previousState = this.state.get();
+        if (previousState == UserImportStatusDTO.State.RUNNING || !this.state.compareAndSet(previousState, UserImportStatusDTO.State.RUNNING)) return false;
+
+        this.readRows.set(0);
+        this.importedRows.set(0);
+        this.rejectedRows.set(0);
+        this.file = file;
+        this.errorFile = file.resolveSibling(file.getFileName() + ".rejected.csv");
+        this.startNanos = System.nanoTime();
+        this.endNanos = 0;
+        final Thread thread = new Thread(() -> runImport(file, this.errorFile, header), "user-import");
+        thread.setDaemon(true);
+        thread.start();
+
+        return true;
+    }
+
+    /**
+     * Called by {@link UserController#getImportStatus()}.
+     * @return {@link UserImportStatusDTO} of the current or last import
+     */
+    public UserImportStatusDTO getStatus() {
+        final long read = this.readRows.get();
+        final long end = this.endNanos == 0 ? System.nanoTime() : this.endNanos;
+        final long rowsPerSecond = this.startNanos == 0 ? 0 : Math.round(read / (Math.max(end - this.startNanos, 1) / 1e9));
+
+        return new UserImportStatusDTO(this.state.get(), this.file == null ? null : this.directory.relativize(this.file).toString(),
+                this.errorFile == null ? null : this.directory.relativize(this.errorFile).toString(),
+                read, this.importedRows.get(), this.rejectedRows.get(), rowsPerSecond);
+    }
+
+    /**
+     * Utility function that runs the import on the calling thread.
+     * Reads and validates the file sequentially and hands every full chunk to the worker pool, keeping at most two chunks per worker in flight.
+     * As the merges lock the usernames of their chunk in ascending order, concurrent chunks with the same username wait for each other instead of deadlocking.
+     * The Bloom filter of usernames is suspended meanwhile, as it could not keep up with remembering every imported username.
+     * @param file file to import
+     * @param errorFile file to write rejected rows to
+     * @param header true if the first line of the file is a header
+     */
+    void runImport(final Path file, final Path errorFile, final boolean header) {
+        LOGGER.info("Importing users from {} in chunks of {} on {} workers, rejected rows go to {}", file, this.chunkSize, this.workers, errorFile);
+        final ExecutorService pool = Executors.newFixedThreadPool(this.workers, new WorkerThreadFactory());
+        final Semaphore inFlight = new Semaphore(this.workers * 2);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        this.usernameBloomFilter.suspend();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(Files.newInputStream(file), StandardCharsets.UTF_8), READ_BUFFER_SIZE);
+             BufferedWriter rejects = Files.newBufferedWriter(errorFile, StandardCharsets.UTF_8)) {
+            rejects.write("line,reason,record\n");
+
+            try {
+                final int shardCount = this.shardRouting.getShardCount();
+                final List<StringBuilder> csvs = new ArrayList<>(shardCount);
+                final List<List<String>> usernames = new ArrayList<>(shardCount);
+                for (int shard = 0; shard < shardCount; shard++) {
+                    csvs.add(new StringBuilder());
+                    usernames.add(new ArrayList<>(this.chunkSize));
+                }
+                long lineNumber = 0;
+                long lastProgressLogNanos = System.nanoTime();
+                if (header && reader.readLine() != null) lineNumber++;
+
+                String line;
+                while (failure.get() == null && (line = reader.readLine()) != null) {
+                    lineNumber++;
+                    if (line.isBlank()) continue;
+                    this.readRows.incrementAndGet();
+
+                    final String[] fields = parseRecord(line);
+                    final String reason = fields == null ? MALFORMED_RECORD : validate(fields);
+                    if (reason != null) {
+                        writeReject(rejects, formatReject(lineNumber, reason, line));
+                        continue;
+                    }
+
+                    final int shard = this.shardRouting.shardOf(fields[0]);
+                    appendCopyRow(csvs.get(shard), lineNumber, fields);
+                    usernames.get(shard).add(fields[0]);
+                    if (usernames.get(shard).size() < this.chunkSize) continue;
+
+                    submitChunk(pool, inFlight, failure, shard, csvs.get(shard), usernames.get(shard), rejects);
+                    usernames.set(shard, new ArrayList<>(this.chunkSize));
+                    final long now = System.nanoTime();
+                    if (now - lastProgressLogNanos >= PROGRESS_LOG_INTERVAL_NANOS) {
+                        lastProgressLogNanos = now;
+                        final UserImportStatusDTO status = getStatus();
+                        LOGGER.info("Read {} rows, imported {}, rejected {} ({} rows/s)", status.getReadRows(), status.getImportedRows(), status.getRejectedRows(), status.getRowsPerSecond());
+                    }
+                }
+                for (int shard = 0; shard < shardCount; shard++) {
+                    if (!usernames.get(shard).isEmpty()) submitChunk(pool, inFlight, failure, shard, csvs.get(shard), usernames.get(shard), rejects);
+                }
+            } finally {
+                awaitWorkers(pool);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure.compareAndSet(null, e);
+        } catch (IOException | RuntimeException e) {
+            failure.compareAndSet(null, e);
+        } finally {
+            pool.shutdown();
+            this.usernameBloomFilter.resume();
+        }
+
+        this.endNanos = System.nanoTime();
+        final UserImportStatusDTO status = getStatus();
+        if (failure.get() != null) {
+            this.state.set(UserImportStatusDTO.State.FAILED);
+            LOGGER.error("Import of {} failed after {} rows, imported {}, rejected {}", file, status.getReadRows(), status.getImportedRows(), status.getRejectedRows(), failure.get());
+            return;
+        }
+
+        this.state.set(UserImportStatusDTO.State.FINISHED);
+        LOGGER.info("Import of {} finished: read {} rows, imported {}, rejected {} ({} rows/s)",
+                file, status.getReadRows(), status.getImportedRows(), status.getRejectedRows(), status.getRowsPerSecond());
+    }
+
+    /**
+     * Utility function that lets the workers finish the submitted chunks, also after a failure, so that no chunk is merged after the import ended.
+     */
+    private static void awaitWorkers(final ExecutorService pool) {
+        pool.shutdown();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (pool.awaitTermination(1, TimeUnit.MINUTES)) break;
+                LOGGER.info("Waiting for import workers to finish");
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Utility function that hands a full chunk to the worker pool, waiting while too many chunks are in flight.
+     * @param shard number of the shard of the usernames of the chunk
+     * @param csv rows of the chunk in the format of {@link UserImportRepository#copyToStagingTable(java.io.InputStream)}; cleared afterwards
+     * @param usernames usernames of the chunk, owned by the worker afterwards
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private void submitChunk(final ExecutorService pool, final Semaphore inFlight, final AtomicReference<Throwable> failure,
+                             final int shard, final StringBuilder csv, final List<String> usernames, final Writer rejects) throws InterruptedException {
+        final byte[] bytes = csv.toString().getBytes(StandardCharsets.UTF_8);
+        csv.setLength(0);
+
+        inFlight.acquire();
+        pool.execute(() -> {
+            try {
+                importChunk(shard, bytes, usernames, rejects);
+            } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+            } finally {
+                inFlight.release();
+            }
+        });
+    }
+
+    /**
+     * Utility function that stages and merges one chunk in a single transaction and writes its rejected rows once it committed.
+     * Afterwards the usernames of the chunk are added to the {@link UsernameIndex}, including rejected ones, which exist anyway.
+     * @param shard number of the shard of the usernames of the chunk
+     * @param csv rows of the chunk
+     * @param usernames usernames of the chunk
+     * @param rejects writer of the error file
+     * @throws IOException if the error file could not be written
+     */
+    private void importChunk(final int shard, final byte[] csv, final List<String> usernames, final Writer rejects) throws IOException {
+        final List<String> rejectedRows = new ArrayList<>();
+        final Long staged = this.shardRouting.onShard(shard, () -> this.transactionTemplate.execute(status -> {
+            rejectedRows.clear();
+            this.userImportRepository.createStagingTable();
+            final long count = this.userImportRepository.copyToStagingTable(new ByteArrayInputStream(csv));
+            this.userImportRepository.mergeStagingTable((lineNumber, userDTO, duplicate) ->
+                    rejectedRows.add(formatReject(lineNumber, duplicate ? DUPLICATE_USERNAME : USERNAME_TAKEN, formatRecord(userDTO))));
+            return count;
+        }));
+
+        for (String rejectedRow : rejectedRows) {
+            writeReject(rejects, rejectedRow);
+        }
+        this.importedRows.addAndGet((staged == null ? 0 : staged) - rejectedRows.size());
+        usernames.forEach(this.usernameIndex::add);
+    }
+
+    private void writeReject(final Writer rejects, final String rejectedRow) throws IOException {
+        this.rejectedRows.incrementAndGet();
+        synchronized (rejects) {
+            rejects.write(rejectedRow);
+        }
+    }
+
+    /**
+     * Splits a line into the fields of a record. A field is either unquoted, where an empty one is null, or quoted, where a quote is escaped by another one.
+     * @param line line of the imported file
+     * @return username, first name and last name; null if the line is not a record of exactly these fields
+     */
+    static String[] parseRecord(final String line) {
+        final String[] fields = new String[FIELD_COUNT];
+        final int length = line.length();
+        int field = 0;
+        int i = 0;
+        while (true) {
+            if (field == FIELD_COUNT) return null;
+
+            if (i < length && line.charAt(i) == '"') {
+                final StringBuilder value = new StringBuilder();
+                i++;
+                while (true) {
+                    if (i >= length) return null;
+                    final char c = line.charAt(i++);
+                    if (c != '"') {
+                        value.append(c);
+                    } else if (i < length && line.charAt(i) == '"') {
+                        value.append('"');
+                        i++;
+                    } else {
+                        break;
+                    }
+                }
+                fields[field++] = value.toString();
+                if (i == length) break;
+                if (line.charAt(i++) != ',') return null;
+            } else {
+                final int comma = line.indexOf(',', i);
+                final int end = comma < 0 ? length : comma;
+                fields[field++] = end == i ? null : line.substring(i, end);
+                if (comma < 0) break;
+                i = comma + 1;
+            }
+        }
+
+        return field == FIELD_COUNT ? fields : null;
+    }
+
+    /**
+     * Validates a record like a POST request and normalizes its names in place, as {@link UserService#createUser(String, String, UserDTO)} does.
+     * @param fields username, first name and last name
+     * @return reason of the rejection; null if the record is valid
+     */
+    static String validate(final String[] fields) {
+        if (fields[0] == null || !UsernameValidator.isValid(fields[0])) return INVALID_USERNAME;
+        if (fields[1] == null || fields[2] == null) return MISSING_NAME;
+
+        fields[1] = NameNormalizer.normalize(fields[1]);
+        fields[2] = NameNormalizer.normalize(fields[2]);
+        if (exceedsMaxNameLength(fields[1]) || exceedsMaxNameLength(fields[2])) return NAME_TOO_LONG;
+
+        return null;
+    }
+
+    private static boolean exceedsMaxNameLength(final String name) {
+        return name.length() > MAX_NAME_LENGTH && name.codePointCount(0, name.length()) > MAX_NAME_LENGTH;
+    }
+
+    /**
+     * Appends a valid record as a row of the staging table. The username needs no quoting, the names are always quoted, so that an empty name is not null.
+     */
+    private static void appendCopyRow(final StringBuilder csv, final long lineNumber, final String[] fields) {
+        csv.append(lineNumber).append(',').append(fields[0]).append(',');
+        appendQuoted(csv, fields[1]);
+        csv.append(',');
+        appendQuoted(csv, fields[2]);
+        csv.append('\n');
+    }
+
+    /**
+     * Formats a line of the error file, holding the line number, the reason and the record as a single quoted field.
+     */
+    private static String formatReject(final long lineNumber, final String reason, final String record) {
+        final StringBuilder rejectedRow = new StringBuilder(record.length() + 32);
+        rejectedRow.append(lineNumber).append(',').append(reason).append(',');
+        appendQuoted(rejectedRow, record);
+        return rejectedRow.append('\n').toString();
+    }
+
+    private static String formatRecord(final UserDTO userDTO) {
+        final StringBuilder record = new StringBuilder();
+        record.append(userDTO.getUsername()).append(',');
+        appendQuoted(record, userDTO.getFirstName());
+        record.append(',');
+        appendQuoted(record, userDTO.getLastName());
+        return record.toString();
+    }
+
+    private static void appendQuoted(final StringBuilder target, final String value) {
+        target.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '"') target.append('"');
+            target.append(c);
+        }
+        target.append('"');
+    }
+
+    private static final class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            final Thread thread = new Thread(runnable, "user-import-worker-" + this.count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
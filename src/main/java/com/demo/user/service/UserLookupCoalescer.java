@@ -0,0 +1,111 @@
+package com.demo.user.service;
+
+import com.demo.user.config.ReplicaRouting;
+import com.demo.user.dto.UserDTO;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Single-flight of database lookups by username for {@link UserService#findUser(String, String)}, so that a burst of requests for the same user costs one query.
+ * The first caller runs the lookup, concurrent callers for the same username wait for and share its result, including its failure.
+ * A caller only joins a lookup that started at the same write epoch of its username in {@link UserCache}, as one started before a write of the user might miss it,
+ * while writes of other usernames don't split a flight.
+ * and only joins a lookup on the replica if the user wasn't recently written, as {@link ReplicaRouting} would send its own to the primary.
+ */
+@Component
+public class UserLookupCoalescer implements MeterBinder {
+    private final boolean enabled;
+
+    private final Map<String, Flight> flights = new ConcurrentHashMap<>();
+
+    private final AtomicLong lookups = new AtomicLong();
+
+    private final AtomicLong coalesced = new AtomicLong();
+
+    public UserLookupCoalescer(@Value("${user.coalescing.enabled:true}") boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Runs the given lookup, unless an equivalent one for the same username is in flight, whose result is returned instead.
+     * @param username identifying username
+     * @param epoch write epoch of the username in {@link UserCache} taken before the lookup
+     * @param onPrimary true if the lookup has to read from the primary
+     * @param lookup database lookup of the user
+     * @return Optional of {@link UserDTO} as returned by the lookup
+     * @throws RuntimeException thrown by the lookup, to every caller that shared it
+     */
+    public Optional<UserDTO> lookup(final String username, final long epoch, final boolean onPrimary, final Supplier<Optional<UserDTO>> lookup) {
+        if (!this.enabled) return lookup.get();
+
+        while (true) {
+            final Flight current = this.flights.get(username);
+            if (current != null && current.epoch == epoch && (current.onPrimary || !onPrimary)) {
+                this.coalesced.incrementAndGet();
+                return await(current.result);
+            }
+
+            final Flight flight = new Flight(epoch, onPrimary);
+            final boolean started = current == null ? this.flights.putIfAbsent(username, flight) == null : this.flights.replace(username, current, flight);
+            if (!started) continue;
+
+            this.lookups.incrementAndGet();
+            try {
+                final Optional<UserDTO> optUserDTO = lookup.get();
+                flight.result.complete(optUserDTO);
+                return optUserDTO;
+            } catch (RuntimeException | Error e) {
+                flight.result.completeExceptionally(e);
+                throw e;
+            } finally {
+                this.flights.remove(username, flight);
+            }
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("user.lookup.requests", this.lookups, AtomicLong::get).tag("result", "queried").description("Database lookups by username").register(registry);
+        FunctionCounter.builder("user.lookup.requests", this.coalesced, AtomicLong::get).tag("result", "coalesced").description("Database lookups by username").register(registry);
+        Gauge.builder("user.lookup.in-flight", this.flights, Map::size).description("Usernames with a lookup in flight").register(registry);
+    }
+
+    public long getCoalesced() {
+        return this.coalesced.get();
+    }
+
+    private static Optional<UserDTO> await(final CompletableFuture<Optional<UserDTO>> result) {
+        try {
+            return result.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error) throw (Error) e.getCause();
+            throw e;
+        }
+    }
+
+    private static final class Flight {
+        private final long epoch;
+
+        private final boolean onPrimary;
+
+        private final CompletableFuture<Optional<UserDTO>> result = new CompletableFuture<>();
+
+        private Flight(long epoch, boolean onPrimary) {
+            this.epoch = epoch;
+            this.onPrimary = onPrimary;
+        }
+    }
+}
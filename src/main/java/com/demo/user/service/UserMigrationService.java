@@ -0,0 +1,261 @@
+package com.demo.user.service;
+
+import com.demo.user.config.ShardRouting;
+import com.demo.user.controller.UserController;
+import com.demo.user.dto.UserMigrationStatusDTO;
+import com.demo.user.entity.NameEntity;
+import com.demo.user.entity.UserEntity;
+import com.demo.user.repository.UserMigrationRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Domain Layer of the user-service for the one-time migration of legacy {@link UserEntity} entries into {@link NameEntity} entries.
+ * Splits the legacy entries into fixed-size chunks by username, migrates the chunks in parallel on a worker pool and commits every chunk on its own.
+ * After every chunk the end of the contiguous migrated range is checkpointed, so that a restarted migration resumes there.
+ * With sharding, the shards are migrated one after another, each keeping its own checkpoint.
+ */
+@Service
+public class UserMigrationService {
+    private static final Logger LOGGER = LoggerFactory.getLogger(UserMigrationService.class);
+
+    private static final String MIGRATION_NAME = "user_data-name";
+
+    private static final long PROGRESS_LOG_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final UserMigrationRepository userMigrationRepository;
+
+    private final ShardRouting shardRouting;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final int chunkSize;
+
+    private final int workers;
+
+    private final long maxRowsPerSecond;
+
+    private final AtomicReference<UserMigrationStatusDTO.State> state = new AtomicReference<>(UserMigrationStatusDTO.State.IDLE);
+
+    private final AtomicLong migratedRows = new AtomicLong();
+
+    private volatile long totalRows;
+
+    private volatile String checkpoint;
+
+    private volatile long startNanos;
+
+    private volatile long endNanos;
+
+    public UserMigrationService(UserMigrationRepository userMigrationRepository, ShardRouting shardRouting, PlatformTransactionManager transactionManager,
+                                @Value("${user.migration.chunk-size:1000}") int chunkSize,
+                                @Value("${user.migration.workers:4}") int workers,
+                                @Value("${user.migration.max-rows-per-second:0}") long maxRowsPerSecond) {
+        this.userMigrationRepository = userMigrationRepository;
+        this.shardRouting = shardRouting;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.chunkSize = chunkSize;
+        this.workers = workers;
+        this.maxRowsPerSecond = maxRowsPerSecond;
+    }
+
+    /**
+     * Called by {@link UserController#migrateUsers()} and starts the migration in the background, unless it is already running.
+     * @return true if the migration was started
+     */
+    public boolean migrateUsers() {
+        final UserMigrationStatusDTO.State previousState = this.state.get();
+        if (previousState == UserMigrationStatusDTO.State.RUNNING || !this.state.compareAndSet(previousState, UserMigrationStatusDTO.State.RUNNING)) return false;
+
+        this.migratedRows.set(0);
+        this.startNanos = System.nanoTime();
+        this.endNanos = 0;
+        final Thread thread = new Thread(this::runMigration, "user-migration");
+        thread.setDaemon(true);
+        thread.start();
+
+        return true;
+    }
+
+    /**
+     * Called by {@link UserController#getMigrationStatus()}.
+     * @return {@link UserMigrationStatusDTO} of the current or last migration
+     */
+    public UserMigrationStatusDTO getStatus() {
+        final long migrated = this.migratedRows.get();
+        final long end = this.endNanos == 0 ? System.nanoTime() : this.endNanos;
+        final long rowsPerSecond = this.startNanos == 0 ? 0 : Math.round(migrated / (Math.max(end - this.startNanos, 1) / 1e9));
+
+        return new UserMigrationStatusDTO(this.state.get(), migrated, this.totalRows, this.checkpoint, rowsPerSecond);
+    }
+
+    /**
+     * Utility function that runs the migration on the calling thread, one shard after another.
+     */
+    private void runMigration() {
+        final ExecutorService pool = Executors.newFixedThreadPool(this.workers, new WorkerThreadFactory());
+        final Semaphore inFlight = new Semaphore(this.workers * 2);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        try {
+            this.totalRows = this.shardRouting.onEachShard(shard -> this.userMigrationRepository.countUnmigrated()).stream().mapToLong(Long::longValue).sum();
+            long chunkNumber = 0;
+            for (int shard = 0; shard < this.shardRouting.getShardCount() && failure.get() == null; shard++) {
+                chunkNumber = migrateShard(shard, chunkNumber, pool, inFlight, failure);
+            }
+
+            pool.shutdown();
+            while (!pool.awaitTermination(1, TimeUnit.MINUTES)) {
+                LOGGER.info("Waiting for migration workers to finish");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure.compareAndSet(null, e);
+        } catch (RuntimeException e) {
+            failure.compareAndSet(null, e);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        this.endNanos = System.nanoTime();
+        final UserMigrationStatusDTO status = getStatus();
+        if (failure.get() != null) {
+            this.state.set(UserMigrationStatusDTO.State.FAILED);
+            LOGGER.error("Migration failed after {} users ({} rows/s), resumable after {}", status.getMigratedRows(), status.getRowsPerSecond(), this.checkpoint, failure.get());
+            return;
+        }
+
+        try {
+            this.shardRouting.onEachShard(shard -> {
+                this.userMigrationRepository.deleteCheckpoint(MIGRATION_NAME);
+                return null;
+            });
+            this.checkpoint = null;
+        } catch (RuntimeException e) {
+            LOGGER.warn("Could not remove checkpoint of finished migration", e);
+        }
+        this.state.set(UserMigrationStatusDTO.State.FINISHED);
+        LOGGER.info("Migration finished: {} users ({} rows/s)", status.getMigratedRows(), status.getRowsPerSecond());
+    }
+
+    /**
+     * Utility function that migrates one shard, resuming after its checkpoint.
+     * Computes the chunk boundaries sequentially and hands the chunks to the worker pool, keeping at most two chunks per worker in flight.
+     * @param shard number of the shard to migrate
+     * @param firstChunk number of the first chunk of this shard, counting the chunks of all shards for the throttling
+     * @param pool worker pool migrating the chunks
+     * @param inFlight permits of the chunks that may be in flight
+     * @param failure first failure of any chunk, which stops submitting further chunks
+     * @return number of the first chunk of the next shard
+     * @throws InterruptedException if interrupted while throttled or waiting for a permit
+     */
+    private long migrateShard(final int shard, final long firstChunk, final ExecutorService pool, final Semaphore inFlight,
+                              final AtomicReference<Throwable> failure) throws InterruptedException {
+        final ChunkTracker chunkTracker = new ChunkTracker();
+        this.checkpoint = this.shardRouting.onShard(shard, () -> this.userMigrationRepository.findCheckpoint(MIGRATION_NAME)).orElse(null);
+        LOGGER.info("Migrating {} legacy users in chunks of {} on {} workers, starting on shard {} after {}",
+                this.totalRows, this.chunkSize, this.workers, this.shardRouting.getShardName(shard), this.checkpoint);
+
+        String after = this.checkpoint;
+        long chunkNumber = firstChunk;
+        while (failure.get() == null) {
+            final String chunkAfter = after;
+            final Optional<String> optUpTo = this.shardRouting.onShard(shard, () -> this.userMigrationRepository.findChunkUpperBound(chunkAfter, this.chunkSize));
+            final String chunkUpTo = optUpTo.orElse(null);
+            final long chunk = chunkNumber++;
+
+            throttle(chunk);
+            inFlight.acquire();
+            pool.execute(() -> {
+                try {
+                    this.shardRouting.onShard(shard, () -> {
+                        final Integer count = this.transactionTemplate.execute(status -> this.userMigrationRepository.migrateChunk(chunkAfter, chunkUpTo));
+                        this.migratedRows.addAndGet(count == null ? 0 : count);
+                        chunkTracker.complete(chunk - firstChunk, chunkUpTo);
+                        return null;
+                    });
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                } finally {
+                    inFlight.release();
+                }
+            });
+
+            if (chunkUpTo == null) break;
+            after = chunkUpTo;
+        }
+        return chunkNumber;
+    }
+
+    /**
+     * Utility function that delays the next chunk while the configured maximum throughput would be exceeded.
+     * @param chunk number of the chunk about to be submitted, counting from 0
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private void throttle(final long chunk) throws InterruptedException {
+        if (this.maxRowsPerSecond <= 0) return;
+
+        final long dueNanos = this.startNanos + (long) (chunk * this.chunkSize * 1e9 / this.maxRowsPerSecond);
+        final long waitNanos = dueNanos - System.nanoTime();
+        if (waitNanos > 0) TimeUnit.NANOSECONDS.sleep(waitNanos);
+    }
+
+    /**
+     * Tracks completed chunks of one shard, which may finish out of order, and advances the checkpoint of the shard over the contiguous completed prefix.
+     */
+    private final class ChunkTracker {
+        private final Map<Long, String> completedUpTo = new HashMap<>();
+
+        private long nextChunk;
+
+        private long lastProgressLogNanos = System.nanoTime();
+
+        private synchronized void complete(final long chunk, final String upTo) {
+            this.completedUpTo.put(chunk, upTo);
+
+            String contiguousUpTo = null;
+            while (this.completedUpTo.containsKey(this.nextChunk)) {
+                contiguousUpTo = this.completedUpTo.remove(this.nextChunk++);
+            }
+            if (contiguousUpTo == null) return;
+
+            final long migrated = UserMigrationService.this.migratedRows.get();
+            UserMigrationService.this.userMigrationRepository.saveCheckpoint(MIGRATION_NAME, contiguousUpTo, migrated);
+            UserMigrationService.this.checkpoint = contiguousUpTo;
+
+            final long now = System.nanoTime();
+            if (now - this.lastProgressLogNanos >= PROGRESS_LOG_INTERVAL_NANOS) {
+                this.lastProgressLogNanos = now;
+                final UserMigrationStatusDTO status = getStatus();
+                LOGGER.info("Migrated {} of {} users ({} rows/s), checkpoint {}", status.getMigratedRows(), status.getTotalRows(), status.getRowsPerSecond(), contiguousUpTo);
+            }
+        }
+    }
+
+    private static final class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            final Thread thread = new Thread(runnable, "user-migration-worker-" + this.count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -1,14 +1,42 @@
 package com.demo.user.service;
 
+import com.demo.user.config.ReplicaRouting;
+import com.demo.user.config.ShardRouting;
 import com.demo.user.controller.UserController;
+import com.demo.user.dto.UserBatchDTO;
+import com.demo.user.dto.UserBulkResultDTO;
+import com.demo.user.dto.UserChangeDTO;
 import com.demo.user.dto.UserDTO;
+import com.demo.user.dto.UserPageDTO;
+import com.demo.user.dto.UserVersionTag;
 import com.demo.user.entity.UserEntity;
 import com.demo.user.repository.NameRepository;
+import com.demo.user.repository.UserChangeRepository;
+import com.demo.user.repository.UserJdbcRepository;
 import com.demo.user.repository.UserRepository;
+import com.demo.user.validation.NameNormalizer;
+import io.micrometer.core.annotation.Timed;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.function.Consumer;
 
 /**
  * Domain Layer of the user-service.
@@ -16,100 +44,546 @@ import java.util.Optional;
  */
 @Service
 public class UserService {
+    private static final Logger LOGGER = LoggerFactory.getLogger(UserService.class);
+
     private final UserRepository userRepository;
 
     private final NameRepository nameRepository;
 
-    public UserService(UserRepository userRepository, NameRepository nameRepository) {
+    private final UserJdbcRepository userJdbcRepository;
+
+    private final UserChangeRepository userChangeRepository;
+
+    private final UserCache userCache;
+
+    private final UserLookupCoalescer userLookupCoalescer;
+
+    private final UserWriteBehindBuffer userWriteBehindBuffer;
+
+    private final UsernameIndex usernameIndex;
+
+    private final UsernameBloomFilter usernameBloomFilter;
+
+    private final ReplicaRouting replicaRouting;
+
+    private final ShardRouting shardRouting;
+
+    /**
+     * Transaction of the JPA write path, which appends to the change log in the same transaction as the write.
+     */
+    private final TransactionTemplate transactionTemplate;
+
+    private final TransactionTemplate readOnlyTransactionTemplate;
+
+    private final int exportFetchSize;
+
+    /**
+     * Whether single writes run as one native statement through {@link UserJdbcRepository} instead of JPA.
+     * The native statements rely on PostgreSQL's data-modifying common table expressions.
+     */
+    private final boolean nativeWritePath;
+
+    public UserService(UserRepository userRepository, NameRepository nameRepository, UserJdbcRepository userJdbcRepository,
+                       UserChangeRepository userChangeRepository, UserCache userCache, UserLookupCoalescer userLookupCoalescer,
+                       UserWriteBehindBuffer userWriteBehindBuffer, UsernameIndex usernameIndex,
+                       UsernameBloomFilter usernameBloomFilter, ReplicaRouting replicaRouting, ShardRouting shardRouting,
+                       PlatformTransactionManager transactionManager,
+                       @Value("${user.export.fetch-size:1000}") int exportFetchSize,
+                       @Value("${user.write-path:native}") String writePath) {
         this.userRepository = userRepository;
         this.nameRepository = nameRepository;
+        this.userJdbcRepository = userJdbcRepository;
+        this.userChangeRepository = userChangeRepository;
+        this.userCache = userCache;
+        this.userLookupCoalescer = userLookupCoalescer;
+        this.userWriteBehindBuffer = userWriteBehindBuffer;
+        this.usernameIndex = usernameIndex;
+        this.usernameBloomFilter = usernameBloomFilter;
+        this.replicaRouting = replicaRouting;
+        this.shardRouting = shardRouting;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.readOnlyTransactionTemplate = new TransactionTemplate(transactionManager);
+        this.readOnlyTransactionTemplate.setReadOnly(true);
+        this.exportFetchSize = exportFetchSize;
+        this.nativeWritePath = !"jpa".equalsIgnoreCase(writePath);
     }
 
     /**
-     * Called by {@link UserController#getUser(String, String)} and calls {@link UserRepository#findByUsername(String)}.
+     * Called by {@link UserController#getUser(String, String, String)} and calls {@link UserRepository#findUserDTOByUsername(String)}.
      * Performs a Dark Read in order to ensure data integrity.
+     * Served from {@link UserCache} if possible, which is filled on a miss.
+     * Concurrent misses for the same username share one query through {@link UserLookupCoalescer}.
+     * Usernames that {@link UsernameBloomFilter} rules out are answered as not found without querying the database.
+     * Updates still buffered by {@link UserWriteBehindBuffer} are applied to the result.
      * @param username identifying username
      * @param version specified resource representation version
      * @return Optional of {@link UserDTO} of found {@link UserEntity} if successful
      *      empty Optional if {@link UserEntity} not found
      */
+    @Timed("user.service")
     public Optional<UserDTO> findUser(final String username, final String version) {
-        final Optional<UserEntity> optUserEntity = this.userRepository.findByUsername(username);
-        if (optUserEntity.isEmpty()) return Optional.empty();
+        return findStoredUser(username).map(this.userWriteBehindBuffer::overlay);
+    }
 
-        UserEntity userEntity = optUserEntity.get();
+    /**
+     * Utility function that looks up a user in {@link UserCache} and falls back to {@link UserRepository#findUserDTOByUsername(String)}.
+     * The lookup reads from the primary if the user was written within the read-your-writes window of {@link ReplicaRouting}.
+     * Concurrent lookups of the same username since the last write share one query, which also fills the cache once.
+     * The query runs on the shard of the username.
+     * @param username identifying username
+     * @return Optional of {@link UserDTO} as stored in the database
+     *      empty Optional if {@link UserEntity} not found
+     */
+    private Optional<UserDTO> findStoredUser(final String username) {
+        if (!this.usernameBloomFilter.mightContain(username)) return Optional.empty();
 
-        return Optional.of(getUserDtoFromUserEntityByVersion(userEntity, version));
+        final Optional<UserDTO> optCachedUserDTO = this.userCache.get(username);
+        if (optCachedUserDTO.isPresent()) return optCachedUserDTO;
+
+        final long cacheEpoch = this.userCache.currentEpoch(username);
+        final boolean onPrimary = this.replicaRouting.isUsernameRecentlyWritten(username);
+        return this.userLookupCoalescer.lookup(username, cacheEpoch, onPrimary, () -> {
+            final Optional<UserDTO> optUserDTO = this.shardRouting.onShardOf(username, () -> onPrimary
+                    ? this.replicaRouting.onPrimary(() -> this.userRepository.findUserDTOByUsername(username))
+                    : this.userRepository.findUserDTOByUsername(username));
+            if (optUserDTO.isEmpty()) {
+                this.usernameBloomFilter.recordFalsePositive();
+                return optUserDTO;
+            }
+            this.userCache.putIfUnchanged(optUserDTO.get(), cacheEpoch);
+
+            return optUserDTO;
+        });
+    }
+
+    /**
+     * Called by {@link UserController#getUsers(List, String)} and calls {@link UserRepository#findUserDTOsByUsernameIn(Collection)} for all usernames not in {@link UserCache}
+     * and not ruled out by {@link UsernameBloomFilter}.
+     * The query reads from the primary if any of these users was written within the read-your-writes window of {@link ReplicaRouting}.
+     * With sharding, there is one query per shard of the usernames, run in parallel.
+     * @param usernames identifying usernames; duplicates are ignored
+     * @param version specified resource representation version
+     * @return {@link UserBatchDTO} with the found users and the missing usernames, both in request order
+     */
+    @Timed("user.service")
+    public UserBatchDTO findUsers(final Collection<String> usernames, final String version) {
+        final Set<String> requestedUsernames = new LinkedHashSet<>(usernames);
+        final Map<String, UserDTO> foundUserDTOs = new HashMap<>();
+
+        final List<String> uncachedUsernames = new ArrayList<>();
+        for (String username : requestedUsernames) {
+            if (!this.usernameBloomFilter.mightContain(username)) continue;
+
+            final Optional<UserDTO> optCachedUserDTO = this.userCache.get(username);
+            if (optCachedUserDTO.isPresent()) {
+                foundUserDTOs.put(username, optCachedUserDTO.get());
+            } else {
+                uncachedUsernames.add(username);
+            }
+        }
+
+        if (!uncachedUsernames.isEmpty()) {
+            final Map<String, Long> cacheEpochs = new HashMap<>();
+            for (String username : uncachedUsernames) cacheEpochs.put(username, this.userCache.currentEpoch(username));
+            final boolean onPrimary = uncachedUsernames.stream().anyMatch(this.replicaRouting::isUsernameRecentlyWritten);
+            final List<List<UserDTO>> loadedUserDTOs = this.shardRouting.fanOut(this.shardRouting.partition(uncachedUsernames, username -> username),
+                    (shard, shardUsernames) -> onPrimary
+                            ? this.replicaRouting.onPrimary(() -> this.userRepository.findUserDTOsByUsernameIn(shardUsernames))
+                            : this.userRepository.findUserDTOsByUsernameIn(shardUsernames));
+            for (List<UserDTO> shardUserDTOs : loadedUserDTOs) {
+                if (shardUserDTOs == null) continue;
+                for (UserDTO userDTO : shardUserDTOs) {
+                    foundUserDTOs.put(userDTO.getUsername(), userDTO);
+                    final Long cacheEpoch = cacheEpochs.get(userDTO.getUsername());
+                    if (cacheEpoch != null) this.userCache.putIfUnchanged(userDTO, cacheEpoch);
+                }
+            }
+        }
+
+        final List<UserDTO> users = new ArrayList<>(foundUserDTOs.size());
+        final List<String> missing = new ArrayList<>();
+        for (String username : requestedUsernames) {
+            final UserDTO userDTO = foundUserDTOs.get(username);
+            if (userDTO != null) {
+                users.add(this.userWriteBehindBuffer.overlay(userDTO));
+            } else {
+                missing.add(username);
+            }
+        }
+
+        return new UserBatchDTO(users, missing);
+    }
+
+    /**
+     * Called by {@link UserController#listUsers(String, int)} and calls {@link UserRepository#findUserDTOsAfter(String, org.springframework.data.domain.Pageable)}.
+     * The cursor is the Base64url-encoded last username of the previous page.
+     * With sharding, every shard is asked for a full page in parallel and the first users of all of them make up the page,
+     * which relies on the C collation of the shards checked by {@link com.demo.user.config.ShardedSpringLiquibase}.
+     * @param after cursor returned with the previous page; null for the first page
+     * @param limit maximum number of users on the page
+     * @return Optional of {@link UserPageDTO} with the users of the page and the cursor of the next page, if there is one
+     *      empty Optional if the cursor is malformed
+     */
+    @Timed("user.service")
+    public Optional<UserPageDTO> listUsers(final String after, final int limit) {
+        String afterUsername = "";
+        if (after != null) {
+            try {
+                afterUsername = new String(Base64.getUrlDecoder().decode(after), StandardCharsets.UTF_8);
+            } catch (IllegalArgumentException e) {
+                return Optional.empty();
+            }
+        }
+
+        final String pageAfter = afterUsername;
+        final List<UserDTO> userDTOs = this.shardRouting.isSharded()
+                ? findUserDTOsAfterOnEachShard(pageAfter, limit + 1)
+                : this.userRepository.findUserDTOsAfter(pageAfter, PageRequest.of(0, limit + 1));
+        if (userDTOs.size() <= limit) return Optional.of(new UserPageDTO(userDTOs, null));
+
+        final List<UserDTO> page = userDTOs.subList(0, limit);
+        final byte[] lastUsername = page.get(limit - 1).getUsername().getBytes(StandardCharsets.UTF_8);
+
+        return Optional.of(new UserPageDTO(page, Base64.getUrlEncoder().withoutPadding().encodeToString(lastUsername)));
+    }
+
+    /**
+     * Utility function that reads a page from every shard in parallel and merges them in username order.
+     * @param after exclusive lower bound of the page
+     * @param limit maximum number of users
+     * @return List of up to the limit of {@link UserDTO} ordered by username
+     */
+    private List<UserDTO> findUserDTOsAfterOnEachShard(final String after, final int limit) {
+        final List<UserDTO> userDTOs = new ArrayList<>();
+        this.shardRouting.onEachShard(shard -> this.userRepository.findUserDTOsAfter(after, PageRequest.of(0, limit))).forEach(userDTOs::addAll);
+        userDTOs.sort(Comparator.comparing(UserDTO::getUsername));
+
+        return userDTOs.size() > limit ? userDTOs.subList(0, limit) : userDTOs;
+    }
+
+    /**
+     * Called by {@link UserController#suggestUsers(String, int)} and looks up usernames by prefix in {@link UsernameIndex} without querying the database.
+     * @param prefix case-sensitive prefix of the usernames
+     * @param limit maximum number of usernames
+     * @return Optional of the matching usernames in ascending order
+     *      empty Optional if {@link UsernameIndex} is not loaded, see {@link #getSuggestionState()}
+     */
+    @Timed("user.service")
+    public Optional<List<String>> suggestUsernames(final String prefix, final int limit) {
+        if (this.usernameIndex.getState() != UsernameIndex.State.READY) return Optional.empty();
+
+        return Optional.of(this.usernameIndex.findByPrefix(prefix, limit));
+    }
+
+    /**
+     * Called by {@link UserController#suggestUsers(String, int)} to tell why no usernames can be suggested.
+     * @return {@link UsernameIndex.State} of {@link UsernameIndex}
+     */
+    public UsernameIndex.State getSuggestionState() {
+        return this.usernameIndex.getState();
+    }
+
+    /**
+     * Called by {@link UserController#exportUsers(javax.servlet.http.HttpServletResponse)} and streams every user through {@link UserJdbcRepository#streamUsers(int, Consumer)}.
+     * Runs in a single read-only transaction, so that the database can keep its cursor open. Logs the throughput once done.
+     * With sharding, every shard is streamed in a transaction of its own and the streams are merged in username order.
+     * @param consumer receives each user as {@link UserDTO} in username order
+     * @return number of exported users
+     */
+    @Timed("user.service")
+    public long exportUsers(final Consumer<UserDTO> consumer) {
+        final long startNanos = System.nanoTime();
+        final long[] count = {0};
+        this.shardRouting.<UserDTO>mergeSorted(
+                (shard, shardConsumer) -> this.readOnlyTransactionTemplate.executeWithoutResult(status -> this.userJdbcRepository.streamUsers(this.exportFetchSize, shardConsumer)),
+                Comparator.comparing(UserDTO::getUsername), this.exportFetchSize,
+                userDTO -> {
+                    consumer.accept(userDTO);
+                    count[0]++;
+                });
+        final double seconds = Math.max(System.nanoTime() - startNanos, 1) / 1e9;
+        LOGGER.info("Exported {} users in {} s ({} rows/s)", count[0], String.format("%.3f", seconds), Math.round(count[0] / seconds));
+
+        return count[0];
     }
 
     /**
      * Creates new {@link UserEntity} by given username with the content of the appended {@link UserDTO} by specified version.
      * The corresponding attributes of the appended {@link UserDTO} by which to create the {@link UserEntity} can be assumed to be null-safe by version
      * as the request body is checked for validity in {@link UserController}.
+     * On the native write path, existence check and both inserts take a single round trip via {@link UserJdbcRepository#insertUser(String, String, String)}.
+     * On the JPA write path, the existence check is skipped for usernames that {@link UsernameBloomFilter} rules out.
+     * The username is added to {@link UsernameBloomFilter} before the insert, so that it never rules out a committed user.
+     * Either write path appends the creation to the change log of {@link UserChangeRepository} atomically with the insert, on the shard of the username.
      * @param username identifying username
      * @param version specified resource representation version
      * @param userDTO appended user data
      * @return Optional of {@link UserDTO} of created {@link UserEntity} if successful
      *      empty Optional if not
      */
+    @Timed("user.service")
     public Optional<UserDTO> createUser(final String username, final String version, final UserDTO userDTO) {
-        if (this.userRepository.findByUsername(username).isPresent()) return Optional.empty();
+        final boolean mightExist = this.usernameBloomFilter.mightContain(username);
+        this.usernameBloomFilter.add(username);
+
+        if (this.nativeWritePath) {
+            final Optional<UserDTO> optCreatedUserDTO = this.shardRouting.onShardOf(username, () -> this.userJdbcRepository.insertUser(username,
+                    NameNormalizer.normalize(userDTO.getFirstName()), NameNormalizer.normalize(userDTO.getLastName())));
+            optCreatedUserDTO.ifPresent(createdUserDTO -> this.userCache.invalidate(username));
+            optCreatedUserDTO.ifPresent(createdUserDTO -> this.usernameIndex.add(username));
+            optCreatedUserDTO.ifPresent(createdUserDTO -> this.replicaRouting.recordUsernameWrite(username));
+            return optCreatedUserDTO;
+        }
+
+        if (mightExist && this.shardRouting.onShardOf(username, () -> this.userRepository.findByUsername(username)).isPresent()) return Optional.empty();
 
         final UserEntity userEntity;
         userEntity = new UserEntity(username, userDTO.getFirstName(), userDTO.getLastName());
 
-        this.userRepository.save(userEntity);
+        final UserEntity savedUserEntity = this.shardRouting.onShardOf(username, () -> this.transactionTemplate.execute(status -> {
+            final UserEntity createdUserEntity = this.userRepository.save(userEntity);
+            this.userChangeRepository.insertChanges(List.of(username), UserChangeDTO.Operation.CREATE);
+            return createdUserEntity;
+        }));
 
-        return Optional.of(getUserDtoFromUserEntityByVersion(userEntity, version));
+        final UserDTO createdUserDTO = getUserDtoFromUserEntityByVersion(savedUserEntity, version);
+        this.userCache.invalidate(username);
+        this.usernameIndex.add(username);
+        this.replicaRouting.recordUsernameWrite(username);
+
+        return Optional.of(createdUserDTO);
+    }
+
+    /**
+     * Creates new {@link UserEntity} entries for all given {@link UserDTO} in one transaction, or with sharding in one transaction per shard, run in parallel.
+     * Called by {@link UserController#postUsers(List)}, which already marked invalid entries.
+     * Checks existence of the usernames not ruled out by {@link UsernameBloomFilter} with a single query and inserts with {@link UserJdbcRepository#insertUsers(List)}.
+     * The creations are appended to the change log within the same transaction.
+     * @param userDTOs valid user data to create, each carrying its username
+     * @return List of {@link UserBulkResultDTO} in the order of the given {@link UserDTO}
+     */
+    @Timed("user.service")
+    public List<UserBulkResultDTO> createUsers(final List<UserDTO> userDTOs) {
+        final Set<String> pendingUsernames = new HashSet<>();
+        final List<UserDTO> pendingUserDTOs = new ArrayList<>();
+        for (UserDTO userDTO : userDTOs) {
+            final String username = userDTO.getUsername();
+            if (!pendingUsernames.add(username)) continue;
+            pendingUserDTOs.add(new UserDTO(username, NameNormalizer.normalize(userDTO.getFirstName()), NameNormalizer.normalize(userDTO.getLastName())));
+        }
+
+        final Set<String> insertedUsernames = new HashSet<>();
+        this.shardRouting.fanOut(this.shardRouting.partition(pendingUserDTOs, UserDTO::getUsername),
+                        (shard, shardUserDTOs) -> this.transactionTemplate.execute(status -> insertNewUsers(shardUserDTOs)))
+                .forEach(shardInsertedUsernames -> {
+                    if (shardInsertedUsernames != null) insertedUsernames.addAll(shardInsertedUsernames);
+                });
+        insertedUsernames.forEach(this.usernameIndex::add);
+        insertedUsernames.forEach(this.replicaRouting::recordUsernameWrite);
+
+        final List<UserBulkResultDTO> results = new ArrayList<>(userDTOs.size());
+        for (UserDTO userDTO : userDTOs) {
+            final String username = userDTO.getUsername();
+            final boolean created = insertedUsernames.remove(username);
+            results.add(new UserBulkResultDTO(username, created ? UserBulkResultDTO.Status.CREATED : UserBulkResultDTO.Status.CONFLICT));
+        }
+
+        return results;
+    }
+
+    /**
+     * Utility function that inserts the given users of one shard, skipping existing usernames, and appends their creations to the change log.
+     * Has to be called within a transaction.
+     * @param userDTOs users with distinct usernames and normalized names
+     * @return Set of usernames that were actually inserted
+     */
+    private Set<String> insertNewUsers(final List<UserDTO> userDTOs) {
+        final Set<String> requestedUsernames = new HashSet<>();
+        for (UserDTO userDTO : userDTOs) {
+            if (this.usernameBloomFilter.mightContain(userDTO.getUsername())) requestedUsernames.add(userDTO.getUsername());
+        }
+        final Set<String> existingUsernames = this.userJdbcRepository.findExistingUsernames(requestedUsernames);
+
+        final List<UserDTO> newUserDTOs = new ArrayList<>();
+        for (UserDTO userDTO : userDTOs) {
+            if (existingUsernames.contains(userDTO.getUsername())) continue;
+            newUserDTOs.add(userDTO);
+            this.usernameBloomFilter.add(userDTO.getUsername());
+        }
+
+        final Set<String> insertedUsernames = this.userJdbcRepository.insertUsers(newUserDTOs);
+        this.userChangeRepository.insertChanges(insertedUsernames, UserChangeDTO.Operation.CREATE);
+        return insertedUsernames;
     }
 
     /**
      * Updates {@link UserEntity} by given username with the content of the appended {@link UserDTO} by specified version.
-     * Called by {@link UserController#putUser(String, String, UserDTO)}.
+     * Called by {@link UserController#putUser(String, String, String, UserDTO)}.
+     * On the native write path, lookup and update take a single round trip via {@link UserJdbcRepository#updateName(String, String, String, List)}.
+     * With write-behind enabled, an unconditional update is queued in {@link UserWriteBehindBuffer} and written later in a batch instead.
+     * A conditional update is only applied if one of the expected versions is current, which the native write path checks within its single statement.
+     * Written updates are appended to the change log in the same transaction, buffered ones once they are flushed.
      * @param username identifying username for updating of corresponding {@link UserEntity}
      * @param version  specified resource representation version
      * @param userDTO  appended user data to update {@link UserEntity} with
+     * @param expectedVersionTags versions of which one has to be current, as requested by If-Match; null to update unconditionally
      * @return {@link UserDTO} of the updated {@link UserEntity}
      *      empty Optional if {@link UserEntity} not found
+     * @throws UserWriteBehindBuffer.BufferFullException if write-behind is enabled and its buffer stays full
+     * @throws PreconditionFailedException if none of the expected versions is current
      */
-    public Optional<UserDTO> updateUser(final String username, final String version, final UserDTO userDTO) {
-        Optional<UserEntity> optUserEntity = this.userRepository.findByUsername(username);
+    @Timed("user.service")
+    public Optional<UserDTO> updateUser(final String username, final String version, final UserDTO userDTO, final List<UserVersionTag> expectedVersionTags) {
+        if (expectedVersionTags != null && this.userWriteBehindBuffer.isPending(username)) {
+            throw new PreconditionFailedException(null);
+        }
+
+        if (this.userWriteBehindBuffer.isEnabled() && expectedVersionTags == null) {
+            final Optional<UserDTO> optStoredUserDTO = findStoredUser(username);
+            if (optStoredUserDTO.isEmpty()) return Optional.empty();
+
+            this.userWriteBehindBuffer.enqueue(new UserDTO(username, userDTO.getFirstName(), userDTO.getLastName()));
+            return Optional.of(this.userWriteBehindBuffer.overlay(optStoredUserDTO.get()));
+        }
+
+        if (this.nativeWritePath) {
+            final Optional<UserDTO> optUpdatedUserDTO = this.shardRouting.onShardOf(username,
+                    () -> this.userJdbcRepository.updateName(username, userDTO.getFirstName(), userDTO.getLastName(), expectedVersionTags));
+            if (optUpdatedUserDTO.isEmpty() && expectedVersionTags != null) return checkPreconditionFailed(username);
+            optUpdatedUserDTO.ifPresent(updatedUserDTO -> this.userCache.invalidate(username));
+            optUpdatedUserDTO.ifPresent(updatedUserDTO -> this.replicaRouting.recordUsernameWrite(username));
+            return optUpdatedUserDTO;
+        }
+
+        Optional<UserEntity> optUserEntity = this.shardRouting.onShardOf(username, () -> this.userRepository.findByUsername(username));
 
         if (optUserEntity.isEmpty()) return Optional.empty();
 
         final UserEntity userEntity = optUserEntity.get();
+        checkVersionTag(userEntity, expectedVersionTags);
         if (userDTO.getFirstName() != null) userEntity.getNameEntity().setFirstName(userDTO.getFirstName());
         if (userDTO.getLastName() != null) userEntity.getNameEntity().setLastName(userDTO.getLastName());
 
-        this.userRepository.save(userEntity);
+        final UserEntity savedUserEntity = this.shardRouting.onShardOf(username, () -> this.transactionTemplate.execute(status -> {
+            final UserEntity updatedUserEntity = this.userRepository.save(userEntity);
+            this.userChangeRepository.insertChanges(List.of(username), UserChangeDTO.Operation.UPDATE);
+            return updatedUserEntity;
+        }));
 
-        return Optional.of(getUserDtoFromUserEntityByVersion(userEntity, version));
+        final UserDTO updatedUserDTO = getUserDtoFromUserEntityByVersion(savedUserEntity, version);
+        this.userCache.invalidate(username);
+        this.replicaRouting.recordUsernameWrite(username);
+
+        return Optional.of(updatedUserDTO);
     }
 
     /**
-     * Called by {@link UserController#deleteUser(String, String)} and calls {@link UserRepository#deleteByUsername(String)}.
+     * Called by {@link UserController#deleteUser(String, String, String)} and calls {@link UserJdbcRepository#deleteUser(String, List)}
+     * or {@link UserRepository#deleteByUsername(String)} depending on the write path.
+     * A conditional deletion is only applied if one of the expected versions is current.
+     * The deletion is appended to the change log in the same transaction.
      * @param username identifying username
+     * @param expectedVersionTags versions of which one has to be current, as requested by If-Match; null to delete unconditionally
      * @return Optional of {@link UserDTO} of the deleted {@link UserEntity} if successful
      *      empty Optional if user not found
+     * @throws PreconditionFailedException if none of the expected versions is current
      */
-    public Optional<UserDTO> deleteUser(final String username, final String version) {
-        List<UserEntity> userEntityList = this.userRepository.deleteByUsername(username);
+    @Timed("user.service")
+    public Optional<UserDTO> deleteUser(final String username, final String version, final List<UserVersionTag> expectedVersionTags) {
+        if (expectedVersionTags != null && this.userWriteBehindBuffer.isPending(username)) {
+            throw new PreconditionFailedException(null);
+        }
+
+        this.userWriteBehindBuffer.discard(username);
+        if (this.nativeWritePath) {
+            final Optional<UserDTO> optDeletedUserDTO = this.shardRouting.onShardOf(username, () -> this.userJdbcRepository.deleteUser(username, expectedVersionTags));
+            if (optDeletedUserDTO.isEmpty() && expectedVersionTags != null) return checkPreconditionFailed(username);
+            this.userCache.invalidate(username);
+            optDeletedUserDTO.ifPresent(deletedUserDTO -> this.usernameIndex.remove(username));
+            optDeletedUserDTO.ifPresent(deletedUserDTO -> this.replicaRouting.recordUsernameWrite(username));
+            return optDeletedUserDTO;
+        }
+
+        if (expectedVersionTags != null) {
+            final Optional<UserEntity> optUserEntity = this.shardRouting.onShardOf(username, () -> this.userRepository.findByUsername(username));
+            if (optUserEntity.isEmpty()) return Optional.empty();
+            checkVersionTag(optUserEntity.get(), expectedVersionTags);
+        }
+
+        final List<UserEntity> userEntityList = this.shardRouting.onShardOf(username, () -> this.transactionTemplate.execute(status -> {
+            final List<UserEntity> deletedUserEntities = this.userRepository.deleteByUsername(username);
+            if (!deletedUserEntities.isEmpty()) this.userChangeRepository.insertChanges(List.of(username), UserChangeDTO.Operation.DELETE);
+            return deletedUserEntities;
+        }));
+        this.userCache.invalidate(username);
 
         if (userEntityList.isEmpty()) return Optional.empty();
 
+        this.usernameIndex.remove(username);
+        this.replicaRouting.recordUsernameWrite(username);
         UserEntity userEntity = userEntityList.get(0);
 
         return Optional.of(getUserDtoFromUserEntityByVersion(userEntity, version));
     }
 
     /**
-     * Utility function that returns an abstraction of a given {@link UserEntity} as {@link UserDTO} to {@link UserController} by version for {@link #findUser(String, String)}, {@link #createUser(String, String, UserDTO)} and {@link #updateUser(String, String, UserDTO)}.
+     * Utility function that returns an abstraction of a given {@link UserEntity} as {@link UserDTO} to {@link UserController} by version for {@link #createUser(String, String, UserDTO)}, {@link #updateUser(String, String, UserDTO, List)} and {@link #deleteUser(String, String, List)}.
      * The version parameter serves as a placeholder for when there are different versions to be supported in parallel.
      * @param userEntity {@link UserEntity} for abstraction
      * @param version specified resource representation version
      * @return {@link UserDTO} as abstraction of {@link UserEntity} for given version
      */
     private UserDTO getUserDtoFromUserEntityByVersion(UserEntity userEntity, String version) {
-        return new UserDTO(userEntity.getUsername(), userEntity.getNameEntity().getFirstName(), userEntity.getNameEntity().getLastName());
+        return new UserDTO(userEntity.getUsername(), userEntity.getNameEntity().getFirstName(), userEntity.getNameEntity().getLastName(), getVersionTag(userEntity));
+    }
+
+    /**
+     * Utility function that tells apart a missing user from a failed precondition after a conditional write on the native write path affected no rows.
+     * Only runs when the write did not happen, so that successful conditional writes take a single round trip.
+     * @param username identifying username
+     * @return empty Optional if {@link UserEntity} not found
+     * @throws PreconditionFailedException if {@link UserEntity} exists
+     */
+    private Optional<UserDTO> checkPreconditionFailed(final String username) {
+        final Optional<UserDTO> optCurrentUserDTO = this.shardRouting.onShardOf(username, () -> this.userRepository.findUserDTOByUsername(username));
+        if (optCurrentUserDTO.isEmpty()) return Optional.empty();
+
+        throw new PreconditionFailedException(optCurrentUserDTO.get().getVersionTag());
+    }
+
+    /**
+     * Utility function that checks the precondition of a conditional write on the JPA write path.
+     * @param userEntity current {@link UserEntity}
+     * @param expectedVersionTags versions of which one has to be current; null for no precondition
+     * @throws PreconditionFailedException if none of the expected versions is current
+     */
+    private static void checkVersionTag(final UserEntity userEntity, final List<UserVersionTag> expectedVersionTags) {
+        if (expectedVersionTags == null) return;
+
+        final UserVersionTag versionTag = getVersionTag(userEntity);
+        if (!expectedVersionTags.contains(versionTag)) throw new PreconditionFailedException(versionTag);
+    }
+
+    private static UserVersionTag getVersionTag(final UserEntity userEntity) {
+        return UserVersionTag.of(userEntity.getUpdateTime(), userEntity.getNameEntity().getUpdateTime(), userEntity.getNameEntity().getVersion());
+    }
+
+    /**
+     * Thrown by conditional writes if none of the expected versions is current, to be answered with 412 Precondition Failed.
+     */
+    public static class PreconditionFailedException extends RuntimeException {
+        private final UserVersionTag currentVersionTag;
+
+        public PreconditionFailedException(UserVersionTag currentVersionTag) {
+            super("none of the expected versions is current");
+            this.currentVersionTag = currentVersionTag;
+        }
+
+        /**
+         * @return {@link UserVersionTag} of the current representation; null if it has pending changes
+         */
+        public UserVersionTag getCurrentVersionTag() {
+            return this.currentVersionTag;
+        }
     }
 }
@@ -0,0 +1,107 @@
+package com.demo.user.service;
+
+import com.demo.user.config.ShardRouting;
+import com.demo.user.repository.UserRebalanceRepository;
+import com.demo.user.repository.UserRebalanceRepository.StoredUser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Offline tool that moves every user to the shard {@link ShardRouting} places it on, run after adding a shard with {@code user.sharding.rebalance}.
+ * Scans every shard in parallel by username in chunks and moves the misplaced users of a chunk in two steps:
+ * first they are copied to their shard in one transaction there, then they are deleted from the scanned shard in one transaction here.
+ * An interrupted run leaves at most one chunk per shard on both shards and can simply be repeated, as copies that already exist are skipped.
+ * The service must not serve requests meanwhile. The change log stays on the shard it was written to and the cursors of the change feed,
+ * which hold a position per shard, expire with the new shard count, so that consumers resynchronize.
+ */
+@Component
+@ConditionalOnProperty(value = "user.sharding.rebalance", havingValue = "true")
+public class UserShardRebalancer implements ApplicationRunner {
+    private static final Logger LOGGER = LoggerFactory.getLogger(UserShardRebalancer.class);
+
+    private final UserRebalanceRepository userRebalanceRepository;
+
+    private final ShardRouting shardRouting;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final int chunkSize;
+
+    public UserShardRebalancer(UserRebalanceRepository userRebalanceRepository, ShardRouting shardRouting, PlatformTransactionManager transactionManager,
+                               @Value("${user.sharding.rebalance.chunk-size:1000}") int chunkSize) {
+        this.userRebalanceRepository = userRebalanceRepository;
+        this.shardRouting = shardRouting;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        rebalance();
+    }
+
+    /**
+     * Moves all misplaced users of all shards.
+     * @return number of moved users
+     */
+    public long rebalance() {
+        LOGGER.info("Rebalancing users across {} shards in chunks of {}", this.shardRouting.getShardCount(), this.chunkSize);
+        final long start = System.nanoTime();
+        final List<Long> moved = this.shardRouting.onEachShard(this::rebalanceShard);
+
+        final long total = moved.stream().mapToLong(Long::longValue).sum();
+        LOGGER.info("Rebalancing finished: moved {} users in {} ms", total, (System.nanoTime() - start) / 1_000_000);
+        return total;
+    }
+
+    /**
+     * Utility function that moves the misplaced users of one shard, running on that shard.
+     * @param shard number of the scanned shard
+     * @return number of moved users
+     */
+    private long rebalanceShard(final int shard) {
+        final String shardName = this.shardRouting.getShardName(shard);
+        long scanned = 0;
+        long moved = 0;
+        String after = null;
+        while (true) {
+            final List<StoredUser> storedUsers = this.userRebalanceRepository.findUsersAfter(after, this.chunkSize);
+            if (storedUsers.isEmpty()) break;
+            scanned += storedUsers.size();
+            after = storedUsers.get(storedUsers.size() - 1).getUsername();
+
+            final List<List<StoredUser>> targets = this.shardRouting.partition(storedUsers, StoredUser::getUsername);
+            final List<StoredUser> copied = new ArrayList<>();
+            for (int target = 0; target < targets.size(); target++) {
+                if (target == shard || targets.get(target).isEmpty()) continue;
+
+                final List<StoredUser> misplaced = targets.get(target);
+                final Set<String> copiedUsernames = this.shardRouting.onShard(target, () -> this.transactionTemplate.execute(status -> this.userRebalanceRepository.insertUsers(misplaced)));
+                for (StoredUser storedUser : misplaced) {
+                    if (copiedUsernames != null && copiedUsernames.contains(storedUser.getUsername())) {
+                        copied.add(storedUser);
+                    } else {
+                        LOGGER.warn("Username {} on shard {} is taken by another user on shard {}, keeping it", storedUser.getUsername(), shardName, this.shardRouting.getShardName(target));
+                    }
+                }
+            }
+
+            this.transactionTemplate.executeWithoutResult(status -> this.userRebalanceRepository.deleteUsers(copied));
+            moved += copied.size();
+        }
+
+        LOGGER.info("Shard {}: scanned {} users, moved {}", shardName, scanned, moved);
+        return moved;
+    }
+}
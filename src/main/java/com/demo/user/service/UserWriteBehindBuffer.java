@@ -0,0 +1,489 @@
+package com.demo.user.service;
+
+import com.demo.user.config.ReplicaRouting;
+import com.demo.user.config.ShardRouting;
+import com.demo.user.dto.UserChangeDTO;
+import com.demo.user.dto.UserDTO;
+import com.demo.user.repository.UserChangeRepository;
+import com.demo.user.repository.UserJdbcRepository;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Opt-in write-behind buffer for name updates of {@link UserService#updateUser(String, String, UserDTO, java.util.List)}.
+ * Pending updates are held in memory, coalesced per username and written by a background thread in batched transactions
+ * once either the maximum batch size is reached or the oldest pending update has waited for the flush interval.
+ * Updates are kept as partial changes, so that concurrent updates of different names of the same user are all applied.
+ * Pending and in-flight updates are laid over the stored state by {@link UserService#findUser(String, String)}, so that callers read their own writes.
+ * A full buffer blocks callers up to the offer timeout, counting updates that are being written; remaining updates are flushed on shutdown.
+ * Failed batches are queued again and retried after an exponentially growing backoff, during which the buffer fills up and sheds new updates.
+ */
+@Component
+public class UserWriteBehindBuffer implements MeterBinder {
+    private static final Logger LOGGER = LoggerFactory.getLogger(UserWriteBehindBuffer.class);
+
+    private static final long ERROR_LOG_INTERVAL_NANOS = Duration.ofMinutes(1).toNanos();
+
+    private final UserJdbcRepository userJdbcRepository;
+
+    private final UserChangeRepository userChangeRepository;
+
+    private final UserCache userCache;
+
+    private final ReplicaRouting replicaRouting;
+
+    private final ShardRouting shardRouting;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final boolean enabled;
+
+    private final int capacity;
+
+    private final int maxBatchSize;
+
+    private final long flushIntervalNanos;
+
+    private final long offerTimeoutNanos;
+
+    private final long retryBackoffNanos;
+
+    private final long maxRetryBackoffNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notFull = this.lock.newCondition();
+
+    private final Condition flushDue = this.lock.newCondition();
+
+    /**
+     * Pending updates by username in the order of their first update since the last flush.
+     */
+    private final LinkedHashMap<String, Pending> pending = new LinkedHashMap<>();
+
+    /**
+     * Updates taken by the running flush, visible to readers until their transaction is committed.
+     */
+    private final Map<String, UserDTO> inFlight = new HashMap<>();
+
+    private final AtomicLong coalesced = new AtomicLong();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    private final AtomicLong failedFlushes = new AtomicLong();
+
+    /**
+     * Failed flushes since the last logged one, to log at most one error per interval.
+     */
+    private final AtomicLong unloggedFailures = new AtomicLong();
+
+    private final AtomicLong lastErrorLogNanos = new AtomicLong(System.nanoTime() - ERROR_LOG_INTERVAL_NANOS);
+
+    /**
+     * Consecutive failed flushes and the time of the next attempt, only used by the background thread.
+     */
+    private int consecutiveFailures;
+
+    private long retryAtNanos;
+
+    private DistributionSummary batchSizes;
+
+    private volatile boolean running;
+
+    private Thread flusher;
+
+    public UserWriteBehindBuffer(UserJdbcRepository userJdbcRepository, UserChangeRepository userChangeRepository, UserCache userCache, ReplicaRouting replicaRouting,
+                                 ShardRouting shardRouting, PlatformTransactionManager transactionManager,
+                                 @Value("${user.write-behind.enabled:false}") boolean enabled,
+                                 @Value("${user.write-behind.capacity:10000}") int capacity,
+                                 @Value("${user.write-behind.max-batch-size:500}") int maxBatchSize,
+                                 @Value("${user.write-behind.flush-interval:PT0.05S}") Duration flushInterval,
+                                 @Value("${user.write-behind.offer-timeout:PT1S}") Duration offerTimeout,
+                                 @Value("${user.write-behind.retry-backoff:PT0.1S}") Duration retryBackoff,
+                                 @Value("${user.write-behind.max-retry-backoff:PT30S}") Duration maxRetryBackoff) {
+        this.userJdbcRepository = userJdbcRepository;
+        this.userChangeRepository = userChangeRepository;
+        this.userCache = userCache;
+        this.replicaRouting = replicaRouting;
+        this.shardRouting = shardRouting;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.enabled = enabled;
+        this.capacity = capacity;
+        this.maxBatchSize = maxBatchSize;
+        this.flushIntervalNanos = flushInterval.toNanos();
+        this.offerTimeoutNanos = offerTimeout.toNanos();
+        this.retryBackoffNanos = retryBackoff.toNanos();
+        this.maxRetryBackoffNanos = maxRetryBackoff.toNanos();
+
+        if (!enabled) return;
+        this.running = true;
+        this.flusher = new Thread(this::runFlusher, "user-write-behind");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    /**
+     * Lays the in-flight and pending updates of a user over its stored state.
+     * @param userDTO {@link UserDTO} as stored in the database or {@link UserCache}
+     * @return {@link UserDTO} as it will be stored once all updates are written
+     */
+    public UserDTO overlay(final UserDTO userDTO) {
+        if (!this.enabled) return userDTO;
+
+        final UserDTO inFlightUpdate;
+        final Pending pendingUpdate;
+        this.lock.lock();
+        try {
+            inFlightUpdate = this.inFlight.get(userDTO.getUsername());
+            pendingUpdate = this.pending.get(userDTO.getUsername());
+        } finally {
+            this.lock.unlock();
+        }
+        if (inFlightUpdate == null && pendingUpdate == null) return userDTO;
+
+        return merge(merge(userDTO, inFlightUpdate), pendingUpdate == null ? null : pendingUpdate.update);
+    }
+
+    /**
+     * Tells whether updates of the given username are pending or being written.
+     * @param username identifying username
+     * @return true if the stored state of the user is about to change
+     */
+    public boolean isPending(final String username) {
+        if (!this.enabled) return false;
+
+        this.lock.lock();
+        try {
+            return this.pending.containsKey(username) || this.inFlight.containsKey(username);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Queues a partial update of the names of a user and coalesces it with an update of the same username that is still pending.
+     * Blocks while the buffer is full, up to the offer timeout. Updates being written count towards the capacity, as they are queued again if the write fails.
+     * @param update username with the new first and last name; a null name is kept
+     * @throws BufferFullException if the buffer is still full after the offer timeout
+     */
+    public void enqueue(final UserDTO update) {
+        this.lock.lock();
+        try {
+            final Pending pendingUpdate = this.pending.get(update.getUsername());
+            if (pendingUpdate != null) {
+                pendingUpdate.update = merge(pendingUpdate.update, update);
+                this.coalesced.incrementAndGet();
+                return;
+            }
+
+            long remainingNanos = this.offerTimeoutNanos;
+            while (this.pending.size() + this.inFlight.size() >= this.capacity) {
+                if (remainingNanos <= 0 || !this.running) {
+                    this.rejected.incrementAndGet();
+                    throw new BufferFullException();
+                }
+                remainingNanos = this.notFull.awaitNanos(remainingNanos);
+            }
+
+            this.pending.put(update.getUsername(), new Pending(update, System.nanoTime()));
+            if (this.pending.size() == 1 || this.pending.size() >= this.maxBatchSize) this.flushDue.signal();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            this.rejected.incrementAndGet();
+            throw new BufferFullException();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Drops pending and in-flight updates of a deleted user, so that readers no longer see them.
+     * An in-flight update that is committed afterwards affects no rows.
+     * @param username identifying username
+     */
+    public void discard(final String username) {
+        if (!this.enabled) return;
+
+        this.lock.lock();
+        try {
+            final boolean removedPending = this.pending.remove(username) != null;
+            if (this.inFlight.remove(username) != null || removedPending) this.notFull.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Stops the background thread and writes all remaining updates.
+     */
+    @PreDestroy
+    public void shutdown() {
+        if (!this.enabled) return;
+
+        this.lock.lock();
+        try {
+            this.running = false;
+            this.flushDue.signal();
+            this.notFull.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+
+        try {
+            this.flusher.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (this.flusher.isAlive()) LOGGER.warn("Write-behind flusher did not finish, {} updates not written", size());
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        this.batchSizes = DistributionSummary.builder("user.write-behind.batch.size").register(registry);
+        Gauge.builder("user.write-behind.pending", this, UserWriteBehindBuffer::size).register(registry);
+        FunctionCounter.builder("user.write-behind.coalesced", this.coalesced, AtomicLong::get).register(registry);
+        FunctionCounter.builder("user.write-behind.rejected", this.rejected, AtomicLong::get).register(registry);
+        FunctionCounter.builder("user.write-behind.flush.failures", this.failedFlushes, AtomicLong::get).register(registry);
+    }
+
+    public int size() {
+        this.lock.lock();
+        try {
+            return this.pending.size();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Utility function that runs the flush loop on the background thread until shutdown and then drains the buffer.
+     */
+    private void runFlusher() {
+        while (true) {
+            final boolean draining;
+            final List<UserDTO> batch;
+            this.lock.lock();
+            try {
+                draining = !awaitFlushDue();
+                if (draining && this.pending.isEmpty()) return;
+                batch = takeBatch();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                this.lock.unlock();
+            }
+
+            final boolean written = flush(batch);
+            if (!written && draining) {
+                LOGGER.error("Giving up on {} buffered user updates on shutdown", size() + batch.size());
+                return;
+            }
+            backOff(written);
+        }
+    }
+
+    /**
+     * Utility function that schedules the next flush after a failed one, doubling the backoff with every consecutive failure up to its maximum.
+     * Runs on the background thread.
+     * @param written true if the last flush succeeded, which resets the backoff
+     */
+    private void backOff(final boolean written) {
+        if (written) {
+            if (this.consecutiveFailures > 0) LOGGER.info("Buffered user updates are written again after {} failed flushes", this.consecutiveFailures);
+            this.consecutiveFailures = 0;
+            return;
+        }
+
+        this.consecutiveFailures++;
+        final long backoffNanos = Math.min(this.retryBackoffNanos * (1L << Math.min(this.consecutiveFailures - 1, 20)), this.maxRetryBackoffNanos);
+        this.retryAtNanos = System.nanoTime() + backoffNanos;
+    }
+
+    /**
+     * Utility function that waits until the backoff after a failed flush has passed and then until the oldest pending update is due or a full batch is pending.
+     * Has to be called with the lock held.
+     * @return false once shut down
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private boolean awaitFlushDue() throws InterruptedException {
+        while (this.running) {
+            final long backoffNanos = this.consecutiveFailures == 0 ? 0 : this.retryAtNanos - System.nanoTime();
+            if (backoffNanos > 0) {
+                this.flushDue.awaitNanos(backoffNanos);
+                continue;
+            }
+            if (this.pending.size() >= this.maxBatchSize) return true;
+            if (this.pending.isEmpty()) {
+                this.flushDue.await();
+                continue;
+            }
+
+            final long waitNanos = this.pending.values().iterator().next().queuedAtNanos + this.flushIntervalNanos - System.nanoTime();
+            if (waitNanos <= 0) return true;
+            this.flushDue.awaitNanos(waitNanos);
+        }
+        return false;
+    }
+
+    /**
+     * Utility function that moves up to the maximum batch size of pending updates, oldest first, to the in-flight updates.
+     * Has to be called with the lock held.
+     * @return updates to write
+     */
+    private List<UserDTO> takeBatch() {
+        final List<UserDTO> batch = new ArrayList<>(Math.min(this.pending.size(), this.maxBatchSize));
+        final Iterator<Pending> iterator = this.pending.values().iterator();
+        while (iterator.hasNext() && batch.size() < this.maxBatchSize) {
+            final UserDTO userDTO = iterator.next().update;
+            iterator.remove();
+            this.inFlight.put(userDTO.getUsername(), userDTO);
+            batch.add(userDTO);
+        }
+
+        return batch;
+    }
+
+    /**
+     * Utility function that writes a batch and its entries of the change log in one transaction per shard, in parallel,
+     * and invalidates the cached users afterwards, pinning their next lookups to the primary.
+     * On failure, the updates of the failed shard are queued again in front of newer updates of the same username, unless they were discarded in the meantime.
+     * @param batch updates to write
+     * @return true if the batch was written on all shards
+     */
+    private boolean flush(final List<UserDTO> batch) {
+        final List<List<UserDTO>> shardBatches = this.shardRouting.partition(batch, UserDTO::getUsername);
+        final List<Boolean> written = this.shardRouting.fanOut(shardBatches, (shard, shardBatch) -> write(shardBatch));
+
+        boolean allWritten = true;
+        for (int shard = 0; shard < shardBatches.size(); shard++) {
+            if (shardBatches.get(shard).isEmpty()) continue;
+            complete(shardBatches.get(shard), written.get(shard));
+            allWritten &= written.get(shard);
+        }
+
+        return allWritten;
+    }
+
+    /**
+     * Utility function that writes the updates of one shard and their entries of the change log in one transaction.
+     * @param batch updates to write, all on the current shard
+     * @return true if the updates were written
+     */
+    private boolean write(final List<UserDTO> batch) {
+        try {
+            this.transactionTemplate.executeWithoutResult(status ->
+                    this.userChangeRepository.insertChanges(this.userJdbcRepository.updateNames(batch), UserChangeDTO.Operation.UPDATE));
+            if (this.batchSizes != null) this.batchSizes.record(batch.size());
+            return true;
+        } catch (RuntimeException e) {
+            this.failedFlushes.incrementAndGet();
+            logFailure(batch.size(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Utility function that logs a failed write with its stack trace at most once per interval, counting the failures in between.
+     * @param batchSize number of updates that were not written
+     * @param e cause of the failure
+     */
+    private void logFailure(final int batchSize, final RuntimeException e) {
+        final long unlogged = this.unloggedFailures.getAndIncrement();
+        final long lastLogNanos = this.lastErrorLogNanos.get();
+        final long now = System.nanoTime();
+        if (now - lastLogNanos < ERROR_LOG_INTERVAL_NANOS || !this.lastErrorLogNanos.compareAndSet(lastLogNanos, now)) return;
+
+        this.unloggedFailures.addAndGet(-unlogged - 1);
+        LOGGER.error("Could not write {} buffered user updates, retrying with backoff; {} more failed writes since the last report", batchSize, unlogged, e);
+    }
+
+    /**
+     * Utility function that ends the flight of written updates and queues failed ones again, which takes no additional capacity.
+     * @param batch updates that were in flight
+     * @param written true if they were written
+     */
+    private void complete(final List<UserDTO> batch, final boolean written) {
+        this.lock.lock();
+        try {
+            final long now = System.nanoTime();
+            for (UserDTO userDTO : batch) {
+                if (!this.inFlight.remove(userDTO.getUsername(), userDTO)) continue;
+                if (written) {
+                    this.userCache.invalidate(userDTO.getUsername());
+                    this.replicaRouting.recordUsernameWrite(userDTO.getUsername());
+                    continue;
+                }
+                final Pending newerUpdate = this.pending.get(userDTO.getUsername());
+                if (newerUpdate == null) {
+                    this.pending.put(userDTO.getUsername(), new Pending(userDTO, now));
+                } else {
+                    newerUpdate.update = merge(userDTO, newerUpdate.update);
+                }
+            }
+            this.notFull.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Utility function that applies a partial update of the names to a user.
+     * @param userDTO current state of the user
+     * @param update partial update; might be null
+     * @return {@link UserDTO} with the non-null names of the update
+     */
+    private static UserDTO merge(final UserDTO userDTO, final UserDTO update) {
+        if (update == null) return userDTO;
+
+        return new UserDTO(userDTO.getUsername(),
+                update.getFirstName() != null ? update.getFirstName() : userDTO.getFirstName(),
+                update.getLastName() != null ? update.getLastName() : userDTO.getLastName());
+    }
+
+    /**
+     * Thrown by {@link #enqueue(UserDTO)} when the buffer stays full, to be answered with 503 Service Unavailable.
+     */
+    public static class BufferFullException extends RuntimeException {
+        public BufferFullException() {
+            super("write-behind buffer is full");
+        }
+    }
+
+    private static final class Pending {
+        private UserDTO update;
+
+        private final long queuedAtNanos;
+
+        private Pending(UserDTO update, long queuedAtNanos) {
+            this.update = update;
+            this.queuedAtNanos = queuedAtNanos;
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package com.demo.user.service;
+
+import com.demo.user.config.ShardRouting;
+import com.demo.user.repository.UserJdbcRepository;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Opt-in Bloom filter of all existing usernames, used by {@link UserService} to answer lookups of nonexistent usernames without querying the database.
+ * A negative answer is definite, a positive answer is wrong with the configured false-positive rate.
+ * Built in the background once the application is ready and answers "might exist" for every username until then.
+ * Created usernames are added before they are inserted; deleted usernames are only shed by the periodic rebuild.
+ * Usernames added shortly before or during a rebuild are kept in a short-lived set and copied into the new filter,
+ * so that a user committed after the rebuild read its snapshot is not lost.
+ * Bulk imports, which create too many users to remember, suspend the filter instead and rebuild it once they are done.
+ * With sharding, the usernames of all shards are read in parallel into the same filter.
+ */
+@Component
+public class UsernameBloomFilter implements MeterBinder {
+    private static final Logger LOGGER = LoggerFactory.getLogger(UsernameBloomFilter.class);
+
+    /**
+     * How long added usernames are remembered; has to exceed the longest transaction that creates users.
+     */
+    private static final long RECENT_ADDITION_NANOS = TimeUnit.MINUTES.toNanos(5);
+
+    private final UserJdbcRepository userJdbcRepository;
+
+    private final ShardRouting shardRouting;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final boolean enabled;
+
+    private final long expectedInsertions;
+
+    private final double falsePositiveRate;
+
+    private final Duration rebuildInterval;
+
+    private final int fetchSize;
+
+    /**
+     * Usernames by the time they were added, kept for {@link #RECENT_ADDITION_NANOS} to bridge the start of a rebuild.
+     */
+    private final Map<String, Long> recentAdditions = new ConcurrentHashMap<>();
+
+    private final AtomicLong absent = new AtomicLong();
+
+    private final AtomicLong mightExist = new AtomicLong();
+
+    private final AtomicLong falsePositives = new AtomicLong();
+
+    private final AtomicLong rebuilds = new AtomicLong();
+
+    private final Object swapLock = new Object();
+
+    private int suspensions;
+
+    private volatile Bits bits;
+
+    private ScheduledExecutorService scheduler;
+
+    public UsernameBloomFilter(UserJdbcRepository userJdbcRepository, ShardRouting shardRouting, PlatformTransactionManager transactionManager,
+                               @Value("${user.bloom.enabled:false}") boolean enabled,
+                               @Value("${user.bloom.expected-insertions:1000000}") long expectedInsertions,
+                               @Value("${user.bloom.false-positive-rate:0.01}") double falsePositiveRate,
+                               @Value("${user.bloom.rebuild-interval:PT1H}") Duration rebuildInterval,
+                               @Value("${user.bloom.fetch-size:10000}") int fetchSize) {
+        this.userJdbcRepository = userJdbcRepository;
+        this.shardRouting = shardRouting;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setReadOnly(true);
+        this.enabled = enabled;
+        this.expectedInsertions = expectedInsertions;
+        this.falsePositiveRate = falsePositiveRate;
+        this.rebuildInterval = rebuildInterval;
+        this.fetchSize = fetchSize;
+    }
+
+    /**
+     * Builds the filter in the background and schedules the periodic rebuild.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        if (!this.enabled) return;
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "username-bloom-filter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.scheduleWithFixedDelay(this::rebuild, 0, this.rebuildInterval.toMillis(), TimeUnit.MILLISECONDS);
+        this.scheduler.scheduleWithFixedDelay(this::pruneRecentAdditions, 1, 1, TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (this.scheduler != null) this.scheduler.shutdownNow();
+    }
+
+    /**
+     * Tells whether a username might exist.
+     * @param username identifying username
+     * @return false if the username definitely does not exist
+     *      true if it might exist or the filter is not built yet
+     */
+    public boolean mightContain(final String username) {
+        final Bits current = this.bits;
+        if (current == null) return true;
+
+        if (current.mightContain(username)) {
+            this.mightExist.incrementAndGet();
+            return true;
+        }
+        this.absent.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Records that a username the filter said might exist was not found, to estimate the actual false-positive rate.
+     */
+    public void recordFalsePositive() {
+        if (this.bits != null) this.falsePositives.incrementAndGet();
+    }
+
+    /**
+     * Adds a username that is about to be created. Has to be called before the insert, so that lookups never miss a committed user.
+     * @param username identifying username
+     */
+    public void add(final String username) {
+        if (!this.enabled) return;
+
+        this.recentAdditions.put(username, System.nanoTime());
+        final Bits current = this.bits;
+        if (current != null) current.put(username);
+    }
+
+    /**
+     * Replaces the filter by one built from all usernames currently stored, which sheds deleted usernames.
+     * Sized for twice the current number of users, but at least for the expected insertions.
+     */
+    public void rebuild() {
+        try {
+            final long startNanos = System.nanoTime();
+            final long count = this.shardRouting.onEachShard(shard -> this.userJdbcRepository.countUsers()).stream().mapToLong(Long::longValue).sum();
+            final Bits rebuilt = new Bits(Math.max(this.expectedInsertions, count * 2), this.falsePositiveRate);
+
+            this.shardRouting.onEachShard(shard -> this.transactionTemplate.execute(status -> {
+                this.userJdbcRepository.streamUsernames(this.fetchSize, false, rebuilt::put);
+                return null;
+            }));
+            copyRecentAdditions(rebuilt, startNanos - RECENT_ADDITION_NANOS);
+            synchronized (this.swapLock) {
+                if (this.suspensions > 0) return;
+                this.bits = rebuilt;
+            }
+            // usernames added while the filter was swapped only reached the previous one
+            copyRecentAdditions(rebuilt, startNanos - RECENT_ADDITION_NANOS);
+            this.rebuilds.incrementAndGet();
+
+            LOGGER.info("Built username Bloom filter of {} users with {} bits and {} hashes in {} ms, fill ratio {}",
+                    count, rebuilt.bitSize, rebuilt.hashes, (System.nanoTime() - startNanos) / 1_000_000, String.format("%.3f", rebuilt.fillRatio()));
+        } catch (RuntimeException e) {
+            LOGGER.error("Could not build username Bloom filter", e);
+        }
+    }
+
+    /**
+     * Drops the filter, so that every username might exist, until {@link #resume()} is called as often.
+     * Rebuilds in between are discarded, as they might miss usernames created after they read their snapshot.
+     */
+    public void suspend() {
+        synchronized (this.swapLock) {
+            this.suspensions++;
+            this.bits = null;
+        }
+    }
+
+    /**
+     * Ends a suspension and rebuilds the filter in the background once none is left.
+     */
+    public void resume() {
+        synchronized (this.swapLock) {
+            if (--this.suspensions > 0) return;
+        }
+        if (this.scheduler != null) this.scheduler.execute(this::rebuild);
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("user.bloom.fill.ratio", this, filter -> filter.bits == null ? 0 : filter.bits.fillRatio()).register(registry);
+        FunctionCounter.builder("user.bloom.requests", this.absent, AtomicLong::get).tag("result", "absent").register(registry);
+        FunctionCounter.builder("user.bloom.requests", this.mightExist, AtomicLong::get).tag("result", "might-exist").register(registry);
+        FunctionCounter.builder("user.bloom.false.positives", this.falsePositives, AtomicLong::get).register(registry);
+        FunctionCounter.builder("user.bloom.rebuilds", this.rebuilds, AtomicLong::get).register(registry);
+    }
+
+    private void pruneRecentAdditions() {
+        final long sinceNanos = System.nanoTime() - RECENT_ADDITION_NANOS;
+        this.recentAdditions.values().removeIf(addedNanos -> addedNanos - sinceNanos < 0);
+    }
+
+    private void copyRecentAdditions(final Bits target, final long sinceNanos) {
+        for (Map.Entry<String, Long> entry : this.recentAdditions.entrySet()) {
+            if (entry.getValue() - sinceNanos >= 0) target.put(entry.getKey());
+        }
+    }
+
+    /**
+     * Bit array of the filter, set concurrently and never cleared.
+     * Uses double hashing of one 64-bit hash to derive the bit positions.
+     */
+    static final class Bits {
+        private final AtomicLongArray words;
+
+        private final long bitSize;
+
+        private final int hashes;
+
+        private final AtomicLong setBits = new AtomicLong();
+
+        Bits(final long expectedInsertions, final double falsePositiveRate) {
+            final long optimalBits = (long) Math.ceil(-expectedInsertions * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+            this.words = new AtomicLongArray((int) Math.max(1, (optimalBits + 63) >>> 6));
+            this.bitSize = (long) this.words.length() << 6;
+            this.hashes = Math.max(1, (int) Math.round((double) this.bitSize / expectedInsertions * Math.log(2)));
+        }
+
+        void put(final String username) {
+            final long hash = hash(username);
+            final long hash1 = hash & 0xFFFFFFFFL;
+            final long hash2 = hash >>> 32;
+            for (int i = 0; i < this.hashes; i++) {
+                final long bit = Math.floorMod(hash1 + i * hash2, this.bitSize);
+                final long mask = 1L << bit;
+                final long previous = this.words.getAndAccumulate((int) (bit >>> 6), mask, (word, m) -> word | m);
+                if ((previous & mask) == 0) this.setBits.incrementAndGet();
+            }
+        }
+
+        boolean mightContain(final String username) {
+            final long hash = hash(username);
+            final long hash1 = hash & 0xFFFFFFFFL;
+            final long hash2 = hash >>> 32;
+            for (int i = 0; i < this.hashes; i++) {
+                final long bit = Math.floorMod(hash1 + i * hash2, this.bitSize);
+                if ((this.words.get((int) (bit >>> 6)) & (1L << bit)) == 0) return false;
+            }
+            return true;
+        }
+
+        double fillRatio() {
+            return (double) this.setBits.get() / this.bitSize;
+        }
+
+        /**
+         * Utility function that computes FNV-1a over the characters of the username, finished with the MurmurHash3 mixer to spread all bits.
+         */
+        private static long hash(final String username) {
+            long hash = 0xcbf29ce484222325L;
+            for (int i = 0; i < username.length(); i++) {
+                hash ^= username.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+            hash ^= hash >>> 33;
+            hash *= 0xff51afd7ed558ccdL;
+            hash ^= hash >>> 33;
+            hash *= 0xc4ceb9fe1a85ec53L;
+            hash ^= hash >>> 33;
+            return hash;
+        }
+    }
+}
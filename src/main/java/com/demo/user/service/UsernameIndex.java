@@ -0,0 +1,346 @@
+package com.demo.user.service;
+
+import com.demo.user.config.ShardRouting;
+import com.demo.user.repository.UserJdbcRepository;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * In-memory index of all usernames for prefix lookups, used by {@link UserService#suggestUsernames(String, int)}.
+ * The usernames are kept as UTF-8 in one sorted byte array with an offset per entry, so that a lookup is a binary search followed by a sequential scan.
+ * This costs 4 bytes for the offset plus one byte per character of the username, e.g. 16 bytes for a username of 12 characters or 16 MB per million of them,
+ * plus the same amount again for a short time while the array is rebuilt.
+ * Creations and deletions are collected in a small sorted delta, merged into lookups and folded into a new array once it exceeds 1/16 of the index.
+ * Usernames are ordered by their UTF-8 bytes, which is case-sensitive with upper case first.
+ * The index is loaded in the background once the application is ready; lookups are rejected until then.
+ * A failed load is retried after the retry interval, while the index reports its failure.
+ * With sharding, the usernames of all shards are read in parallel and merged in order.
+ */
+@Component
+public class UsernameIndex implements MeterBinder {
+    private static final Logger LOGGER = LoggerFactory.getLogger(UsernameIndex.class);
+
+    private static final int MIN_DELTA_SIZE = 1024;
+
+    /**
+     * State of the index as reported to lookups.
+     */
+    public enum State {
+        DISABLED,
+        LOADING,
+        READY,
+        FAILED
+    }
+
+    private final UserJdbcRepository userJdbcRepository;
+
+    private final ShardRouting shardRouting;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final boolean enabled;
+
+    private final int fetchSize;
+
+    private final long retryIntervalMillis;
+
+    private final Object writeLock = new Object();
+
+    private volatile Snapshot snapshot = new Snapshot(new byte[0], new int[]{0}, 0);
+
+    private volatile State state;
+
+    public UsernameIndex(UserJdbcRepository userJdbcRepository, ShardRouting shardRouting, PlatformTransactionManager transactionManager,
+                         @Value("${user.suggest.enabled:true}") boolean enabled,
+                         @Value("${user.suggest.fetch-size:10000}") int fetchSize,
+                         @Value("${user.suggest.retry-interval:PT1M}") Duration retryInterval) {
+        this.userJdbcRepository = userJdbcRepository;
+        this.shardRouting = shardRouting;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setReadOnly(true);
+        this.enabled = enabled;
+        this.fetchSize = fetchSize;
+        this.retryIntervalMillis = retryInterval.toMillis();
+        this.state = enabled ? State.LOADING : State.DISABLED;
+    }
+
+    /**
+     * Starts loading all usernames in the background, retrying until the load succeeds.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        if (!this.enabled) return;
+
+        final Thread thread = new Thread(() -> {
+            while (!loadUsernames()) {
+                try {
+                    Thread.sleep(this.retryIntervalMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }, "username-index-loader");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Replaces the indexed usernames with the given ones, keeping creations and deletions that happened while they were read.
+     * @param builder usernames in ascending UTF-8 byte order
+     */
+    public void load(final Builder builder) {
+        synchronized (this.writeLock) {
+            this.snapshot = Snapshot.merge(builder.build(), this.snapshot.delta);
+            this.state = State.READY;
+        }
+    }
+
+    public State getState() {
+        return this.state;
+    }
+
+    /**
+     * Adds a created username.
+     * @param username identifying username
+     */
+    public void add(final String username) {
+        update(username, Boolean.TRUE);
+    }
+
+    /**
+     * Removes a deleted username.
+     * @param username identifying username
+     */
+    public void remove(final String username) {
+        update(username, Boolean.FALSE);
+    }
+
+    /**
+     * Finds the first usernames starting with the given prefix.
+     * @param prefix case-sensitive prefix
+     * @param limit maximum number of usernames
+     * @return List of matching usernames in ascending order
+     */
+    public List<String> findByPrefix(final String prefix, final int limit) {
+        final Snapshot current = this.snapshot;
+        final byte[] key = prefix.getBytes(StandardCharsets.UTF_8);
+        final List<String> usernames = new ArrayList<>(Math.min(limit, 64));
+
+        int index = current.lowerBound(key);
+        final Iterator<Map.Entry<byte[], Boolean>> deltaIterator = current.delta.tailMap(key).entrySet().iterator();
+        Map.Entry<byte[], Boolean> deltaEntry = nextWithPrefix(deltaIterator, key);
+
+        while (usernames.size() < limit) {
+            final boolean baseMatches = index < current.size && current.startsWith(index, key);
+            if (!baseMatches && deltaEntry == null) break;
+
+            final int order = !baseMatches ? 1 : deltaEntry == null ? -1 : current.compare(index, deltaEntry.getKey());
+            if (order < 0) {
+                usernames.add(current.get(index++));
+                continue;
+            }
+            if (order == 0) index++;
+            if (deltaEntry.getValue()) usernames.add(new String(deltaEntry.getKey(), StandardCharsets.UTF_8));
+            deltaEntry = nextWithPrefix(deltaIterator, key);
+        }
+
+        return usernames;
+    }
+
+    /**
+     * Returns the number of indexed usernames, including pending deltas.
+     * @return number of usernames
+     */
+    public int size() {
+        final Snapshot current = this.snapshot;
+        int size = current.size;
+        for (Map.Entry<byte[], Boolean> entry : current.delta.entrySet()) {
+            final boolean inBase = current.contains(entry.getKey());
+            if (entry.getValue() && !inBase) size++;
+            if (!entry.getValue() && inBase) size--;
+        }
+        return size;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("user.suggest.index.size", this, index -> index.snapshot.size).register(registry);
+        Gauge.builder("user.suggest.index.bytes", this, index -> index.snapshot.data.length + 4L * index.snapshot.offsets.length).register(registry);
+    }
+
+    /**
+     * Utility function that records a creation or deletion in the delta and folds the delta into a new array once it grew too large.
+     * @param username identifying username
+     * @param present true if created, false if deleted
+     */
+    private void update(final String username, final Boolean present) {
+        if (!this.enabled) return;
+
+        synchronized (this.writeLock) {
+            final Snapshot current = this.snapshot;
+            current.delta.put(username.getBytes(StandardCharsets.UTF_8), present);
+            if (this.state == State.READY && current.delta.size() > Math.max(MIN_DELTA_SIZE, current.size / 16)) {
+                this.snapshot = Snapshot.merge(current, current.delta);
+            }
+        }
+    }
+
+    /**
+     * Utility function that reads all usernames of all shards into the index.
+     * @return true if loaded, false if the load failed and has to be retried
+     */
+    private boolean loadUsernames() {
+        try {
+            final long startNanos = System.nanoTime();
+            final Builder builder = new Builder();
+            this.shardRouting.<String>mergeSorted(
+                    (shard, shardConsumer) -> this.transactionTemplate.executeWithoutResult(status -> this.userJdbcRepository.streamUsernames(this.fetchSize, true, shardConsumer)),
+                    String::compareTo, this.fetchSize, builder::append);
+            load(builder);
+            LOGGER.info("Loaded {} usernames into index in {} ms", size(), (System.nanoTime() - startNanos) / 1_000_000);
+            return true;
+        } catch (RuntimeException e) {
+            this.state = State.FAILED;
+            LOGGER.error("Could not load username index, retrying in {} ms", this.retryIntervalMillis, e);
+            return false;
+        }
+    }
+
+    private static Map.Entry<byte[], Boolean> nextWithPrefix(final Iterator<Map.Entry<byte[], Boolean>> iterator, final byte[] prefix) {
+        if (!iterator.hasNext()) return null;
+
+        final Map.Entry<byte[], Boolean> entry = iterator.next();
+        if (entry.getKey().length < prefix.length || Arrays.compareUnsigned(entry.getKey(), 0, prefix.length, prefix, 0, prefix.length) != 0) return null;
+        return entry;
+    }
+
+    /**
+     * Collects usernames in ascending UTF-8 byte order into the packed representation of the index.
+     */
+    public static final class Builder {
+        private byte[] data = new byte[1024];
+
+        private int[] offsets = new int[257];
+
+        private int size;
+
+        /**
+         * Appends the next username.
+         * @param username username greater than the previous one
+         * @throws IllegalArgumentException if the username is not greater than the previous one
+         */
+        public void append(final String username) {
+            final byte[] bytes = username.getBytes(StandardCharsets.UTF_8);
+            append(bytes, 0, bytes.length);
+        }
+
+        private void append(final byte[] source, final int from, final int to) {
+            final int start = this.offsets[this.size];
+            final int length = to - from;
+            if (this.size > 0 && Arrays.compareUnsigned(this.data, this.offsets[this.size - 1], start, source, from, to) >= 0) {
+                throw new IllegalArgumentException("usernames are not in ascending order at " + new String(source, from, length, StandardCharsets.UTF_8));
+            }
+
+            if (start + length > this.data.length) this.data = Arrays.copyOf(this.data, Math.max(this.data.length * 2, start + length));
+            if (this.size + 2 > this.offsets.length) this.offsets = Arrays.copyOf(this.offsets, this.offsets.length * 2);
+            System.arraycopy(source, from, this.data, start, length);
+            this.offsets[++this.size] = start + length;
+        }
+
+        private Snapshot build() {
+            return new Snapshot(Arrays.copyOf(this.data, this.offsets[this.size]), Arrays.copyOf(this.offsets, this.size + 1), this.size);
+        }
+    }
+
+    /**
+     * Immutable sorted array of usernames together with the delta that is applied on top of it.
+     */
+    private static final class Snapshot {
+        private final byte[] data;
+
+        private final int[] offsets;
+
+        private final int size;
+
+        private final ConcurrentSkipListMap<byte[], Boolean> delta = new ConcurrentSkipListMap<>(Arrays::compareUnsigned);
+
+        private Snapshot(byte[] data, int[] offsets, int size) {
+            this.data = data;
+            this.offsets = offsets;
+            this.size = size;
+        }
+
+        private static Snapshot merge(final Snapshot base, final Map<byte[], Boolean> delta) {
+            final Builder builder = new Builder();
+            final Iterator<Map.Entry<byte[], Boolean>> deltaIterator = delta.entrySet().iterator();
+            Map.Entry<byte[], Boolean> deltaEntry = deltaIterator.hasNext() ? deltaIterator.next() : null;
+
+            int index = 0;
+            while (index < base.size || deltaEntry != null) {
+                final int order = index >= base.size ? 1 : deltaEntry == null ? -1 : base.compare(index, deltaEntry.getKey());
+                if (order < 0) {
+                    builder.append(base.data, base.offsets[index], base.offsets[index + 1]);
+                    index++;
+                    continue;
+                }
+                if (order == 0) index++;
+                if (deltaEntry.getValue()) builder.append(deltaEntry.getKey(), 0, deltaEntry.getKey().length);
+                deltaEntry = deltaIterator.hasNext() ? deltaIterator.next() : null;
+            }
+
+            return builder.build();
+        }
+
+        private int lowerBound(final byte[] key) {
+            int low = 0;
+            int high = this.size;
+            while (low < high) {
+                final int middle = (low + high) >>> 1;
+                if (compare(middle, key) < 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        private boolean contains(final byte[] key) {
+            final int index = lowerBound(key);
+            return index < this.size && compare(index, key) == 0;
+        }
+
+        private int compare(final int index, final byte[] key) {
+            return Arrays.compareUnsigned(this.data, this.offsets[index], this.offsets[index + 1], key, 0, key.length);
+        }
+
+        private boolean startsWith(final int index, final byte[] prefix) {
+            final int start = this.offsets[index];
+            if (this.offsets[index + 1] - start < prefix.length) return false;
+            return Arrays.compareUnsigned(this.data, start, start + prefix.length, prefix, 0, prefix.length) == 0;
+        }
+
+        private String get(final int index) {
+            return new String(this.data, this.offsets[index], this.offsets[index + 1] - this.offsets[index], StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.demo.user.validation;
+
+import com.demo.user.entity.UserEntity;
+
+/**
+ * Normalization of first and last names before they are persisted with {@link UserEntity}.
+ * Behaves exactly like {@code name.trim().replaceAll(" +", " ")} in a single pass, without compiling a regular expression
+ * and without allocating if the name is already normalized.
+ */
+public final class NameNormalizer {
+
+    private NameNormalizer() {
+
+    }
+
+    /**
+     * Trims a name and collapses repeated whitespaces into a single one.
+     * @param name first or last name as requested
+     * @return normalized name as persisted
+     */
+    public static String normalize(final String name) {
+        int start = 0;
+        int end = name.length();
+        while (start < end && name.charAt(start) <= ' ') start++;
+        while (end > start && name.charAt(end - 1) <= ' ') end--;
+
+        int firstRepeat = -1;
+        for (int i = start + 1; i < end; i++) {
+            if (name.charAt(i) == ' ' && name.charAt(i - 1) == ' ') {
+                firstRepeat = i;
+                break;
+            }
+        }
+        if (firstRepeat < 0) return start == 0 && end == name.length() ? name : name.substring(start, end);
+
+        final StringBuilder normalized = new StringBuilder(end - start - 1);
+        normalized.append(name, start, firstRepeat);
+        for (int i = firstRepeat + 1; i < end; i++) {
+            final char c = name.charAt(i);
+            if (c != ' ' || name.charAt(i - 1) != ' ') normalized.append(c);
+        }
+
+        return normalized.toString();
+    }
+}
@@ -0,0 +1,36 @@
+package com.demo.user.validation;
+
+import com.demo.user.controller.UserController;
+
+/**
+ * Validation of requested usernames for {@link UserController}.
+ * Checks in a single pass without regular expressions and without allocating, accepting exactly what {@code ^([a-zA-Z])+([\w]{2,19})+$} matches:
+ * a username begins with a letter, is alphanumeric (including underscores) and has a minimum length of 3.
+ */
+public final class UsernameValidator {
+
+    private UsernameValidator() {
+
+    }
+
+    /**
+     * Checks a username for validity.
+     * @param username requested username
+     * @return true if the username is valid
+     */
+    public static boolean isValid(final String username) {
+        final int length = username.length();
+        if (length < 3 || !isLetter(username.charAt(0))) return false;
+
+        for (int i = 1; i < length; i++) {
+            final char c = username.charAt(i);
+            if (!isLetter(c) && !(c >= '0' && c <= '9') && c != '_') return false;
+        }
+
+        return true;
+    }
+
+    private static boolean isLetter(final char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+}
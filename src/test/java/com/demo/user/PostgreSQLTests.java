@@ -0,0 +1,32 @@
+package com.demo.user;
+
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.testcontainers.DockerClientFactory;
+import org.testcontainers.containers.PostgreSQLContainer;
+
+/**
+ * Base of tests that run the native SQL of the repositories against PostgreSQL, with the schema the application creates at startup.
+ * Starts a PostgreSQL container if Docker is available and otherwise uses the database of {@code application.properties}, like {@link UserApplicationTests}.
+ * All subclasses share one application context; tests use usernames of their own instead of cleaning up.
+ */
+@SpringBootTest
+public abstract class PostgreSQLTests {
+    private static PostgreSQLContainer<?> container;
+
+    @DynamicPropertySource
+    static void postgreSQLProperties(final DynamicPropertyRegistry registry) {
+        if (!DockerClientFactory.instance().isDockerAvailable()) return;
+
+        synchronized (PostgreSQLTests.class) {
+            if (container == null) {
+                container = new PostgreSQLContainer<>("postgres:14-alpine");
+                container.start();
+            }
+        }
+        registry.add("spring.datasource.url", container::getJdbcUrl);
+        registry.add("spring.datasource.username", container::getUsername);
+        registry.add("spring.datasource.password", container::getPassword);
+    }
+}
@@ -0,0 +1,104 @@
+package com.demo.user.benchmark;
+
+import com.demo.user.config.MetricsConfig;
+import io.micrometer.core.annotation.Timed;
+import io.micrometer.core.aop.TimedAspect;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.aop.aspectj.annotation.AspectJProxyFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the per-call overhead of the instrumentation on the request path: a {@link Timed} service method proxied by
+ * {@link MetricsConfig.MethodTimerAspect} or by Micrometer's {@link TimedAspect}, a manually recorded {@link Timer} and a {@link Counter},
+ * each against an uninstrumented call of the same method.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MetricsBenchmark {
+    private PrometheusMeterRegistry registry;
+
+    private Service plainService;
+
+    private Service timedService;
+
+    private Service timedAspectService;
+
+    private Timer timer;
+
+    private Counter counter;
+
+    private int input;
+
+    public static class Service {
+        @Timed("user.service")
+        public int work(int input) {
+            return Integer.rotateLeft(input * 31, 7) ^ input;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        this.registry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+        this.plainService = new Service();
+
+        this.timedService = proxy(new MetricsConfig.MethodTimerAspect(this.registry));
+        this.timedAspectService = proxy(new TimedAspect(this.registry));
+
+        this.timer = Timer.builder("user.benchmark").register(this.registry);
+        this.counter = Counter.builder("user.redirects").tag("status", "301").register(this.registry);
+    }
+
+    @Benchmark
+    public int baseline() {
+        return this.plainService.work(this.input++);
+    }
+
+    @Benchmark
+    public int methodTimerAspect() {
+        return this.timedService.work(this.input++);
+    }
+
+    @Benchmark
+    public int timedAspect() {
+        return this.timedAspectService.work(this.input++);
+    }
+
+    @Benchmark
+    public int timer() {
+        final long start = System.nanoTime();
+        final int result = this.plainService.work(this.input++);
+        this.timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        return result;
+    }
+
+    @Benchmark
+    public int counter() {
+        this.counter.increment();
+        return this.plainService.work(this.input++);
+    }
+
+    private Service proxy(Object aspect) {
+        final AspectJProxyFactory proxyFactory = new AspectJProxyFactory(new Service());
+        proxyFactory.setProxyTargetClass(true);
+        proxyFactory.addAspect(aspect);
+        return proxyFactory.getProxy();
+    }
+}
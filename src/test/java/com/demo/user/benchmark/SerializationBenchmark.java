@@ -0,0 +1,76 @@
+package com.demo.user.benchmark;
+
+import com.demo.user.config.BinaryFormatConfig;
+import com.demo.user.dto.UserDTO;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.module.paramnames.ParameterNamesModule;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares encoding and decoding of {@link UserDTO} as JSON, CBOR and Smile, configured like the converters of {@link BinaryFormatConfig},
+ * for a single user as sent by {@code user/{username}} and for a list of users as sent by the batch endpoints.
+ * The payload size in bytes is printed once per format and size.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SerializationBenchmark {
+    @Param({"json", "cbor", "smile"})
+    private String format;
+
+    @Param({"1", "100"})
+    private int users;
+
+    private ObjectMapper objectMapper;
+
+    private UserDTO[] userDTOs;
+
+    private byte[] payload;
+
+    @Setup
+    public void setUp() throws IOException {
+        final Jackson2ObjectMapperBuilder objectMapperBuilder;
+        switch (this.format) {
+            case "cbor":
+                objectMapperBuilder = Jackson2ObjectMapperBuilder.cbor();
+                break;
+            case "smile":
+                objectMapperBuilder = Jackson2ObjectMapperBuilder.smile();
+                break;
+            default:
+                objectMapperBuilder = Jackson2ObjectMapperBuilder.json();
+        }
+        this.objectMapper = objectMapperBuilder.modulesToInstall(new ParameterNamesModule()).build();
+        this.userDTOs = new UserDTO[this.users];
+        for (int i = 0; i < this.users; i++) this.userDTOs[i] = new UserDTO("jane_doe_" + (1900 + i), "Jane", "Doe-Smith");
+        this.payload = this.objectMapper.writeValueAsBytes(this.userDTOs);
+        System.out.println(this.format + " payload of " + this.users + " users: " + this.payload.length + " bytes");
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+        return this.objectMapper.writeValueAsBytes(this.userDTOs);
+    }
+
+    @Benchmark
+    public UserDTO[] decode() throws IOException {
+        return this.objectMapper.readValue(this.payload, UserDTO[].class);
+    }
+}
@@ -0,0 +1,59 @@
+package com.demo.user.benchmark;
+
+import com.demo.user.service.UsernameIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures prefix lookups and creations of {@link UsernameIndex} at millions of usernames.
+ * The usernames are {@code user0000000} to {@code userNNNNNNN}, so a prefix of n digits after {@code user} matches 10^(7-n) of them.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = "-Xmx2g")
+@State(Scope.Benchmark)
+public class UsernameIndexBenchmark {
+    private static final String[] PREFIXES = {"user12", "user345", "user0999", "user19", "user2", "user77777", "usr", "user"};
+
+    @Param({"1000000", "5000000"})
+    private int size;
+
+    private UsernameIndex usernameIndex;
+
+    private int index;
+
+    private int created;
+
+    @Setup
+    public void setup() {
+        this.usernameIndex = new UsernameIndex(null, null, null, true, 1000, Duration.ofMinutes(1));
+        final UsernameIndex.Builder builder = new UsernameIndex.Builder();
+        for (int i = 0; i < this.size; i++) builder.append(String.format("user%07d", i));
+        this.usernameIndex.load(builder);
+    }
+
+    @Benchmark
+    public List<String> findByPrefix() {
+        return this.usernameIndex.findByPrefix(PREFIXES[this.index++ & 7], 10);
+    }
+
+    @Benchmark
+    public void add() {
+        this.usernameIndex.add("new" + this.created++);
+    }
+}
@@ -0,0 +1,55 @@
+package com.demo.user.benchmark;
+
+import com.demo.user.validation.NameNormalizer;
+import com.demo.user.validation.UsernameValidator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Compares username validation and name normalization of the POST path before and after replacing the regular expressions.
+ * Run with the gc profiler to see bytes allocated per operation (gc.alloc.rate.norm).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ValidationBenchmark {
+    private static final String[] USERNAMES = {"john", "jane_doe", "Max1987", "x", "1nvalid", "user-name", "a_very_long_username1", "Ze"};
+
+    private static final String[] NAMES = {"John", "Jane", "  Mary  Ann ", "van  der   Berg", "Doe ", "Jean-Luc", "Le   Guin", "O'Neill"};
+
+    private int index;
+
+    @Benchmark
+    public boolean legacyUsernameValidation() {
+        final Pattern usernamePattern = Pattern.compile("^([a-zA-Z])+([\\w]{2,19})+$");
+        return usernamePattern.matcher(USERNAMES[this.index++ & 7]).matches();
+    }
+
+    @Benchmark
+    public boolean usernameValidation() {
+        return UsernameValidator.isValid(USERNAMES[this.index++ & 7]);
+    }
+
+    @Benchmark
+    public String legacyNameNormalization() {
+        return NAMES[this.index++ & 7].trim().replaceAll(" +", " ");
+    }
+
+    @Benchmark
+    public String nameNormalization() {
+        return NameNormalizer.normalize(NAMES[this.index++ & 7]);
+    }
+}
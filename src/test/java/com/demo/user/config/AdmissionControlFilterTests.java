@@ -0,0 +1,98 @@
+package com.demo.user.config;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.FilterChain;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AdmissionControlFilterTests {
+    @Test
+    void readsAreAdmittedWhileBulkOperationsTakeTheirShare() throws Exception {
+        final Map<AdmissionControlFilter.Endpoint, AdaptiveConcurrencyLimit> limits = new EnumMap<>(AdmissionControlFilter.Endpoint.class);
+        for (AdmissionControlFilter.Endpoint endpoint : AdmissionControlFilter.Endpoint.values()) {
+            limits.put(endpoint, new AdaptiveConcurrencyLimit(1, 10, 0));
+        }
+        final AdmissionControlFilter filter = new AdmissionControlFilter(limits, 4, 0.75, 0.5, 1);
+
+        final AsyncContext firstBulk = startAsync(filter, "POST", "/users");
+        startAsync(filter, "POST", "/users");
+
+        final MockHttpServletResponse rejected = send(filter, "POST", "/users", new MockFilterChain());
+        assertEquals(503, rejected.getStatus());
+        assertEquals("1", rejected.getHeader("Retry-After"));
+        assertEquals(200, send(filter, "GET", "/user/alice", new MockFilterChain()).getStatus());
+
+        firstBulk.complete();
+        assertEquals(200, send(filter, "POST", "/users", new MockFilterChain()).getStatus());
+        assertEquals(1, limits.get(AdmissionControlFilter.Endpoint.USERS_BULK).getInFlight());
+    }
+
+    @Test
+    void longRunningRequestsOnlyTakeSlotsOfTheirOwnEndpoint() throws Exception {
+        final Map<AdmissionControlFilter.Endpoint, AdaptiveConcurrencyLimit> limits = new EnumMap<>(AdmissionControlFilter.Endpoint.class);
+        for (AdmissionControlFilter.Endpoint endpoint : AdmissionControlFilter.Endpoint.values()) {
+            limits.put(endpoint, new AdaptiveConcurrencyLimit(1, 10, 0));
+        }
+        limits.put(AdmissionControlFilter.Endpoint.USERS_EXPORT, new AdaptiveConcurrencyLimit(1, 1, 0));
+        final AdmissionControlFilter filter = new AdmissionControlFilter(limits, 2, 0.5, 0.5, 5);
+
+        final AsyncContext export = startAsync(filter, "GET", "/users/export");
+        for (int i = 0; i < 4; i++) startAsync(filter, "GET", "/users/changes");
+
+        final MockHttpServletResponse rejected = send(filter, "GET", "/users/export", new MockFilterChain());
+        assertEquals(503, rejected.getStatus());
+        assertEquals("5", rejected.getHeader("Retry-After"));
+        startAsync(filter, "GET", "/user/alice");
+        startAsync(filter, "GET", "/users");
+        assertEquals(503, send(filter, "GET", "/user/bob", new MockFilterChain()).getStatus());
+
+        export.complete();
+        assertEquals(200, send(filter, "GET", "/users/export", new MockFilterChain()).getStatus());
+        assertEquals(4, limits.get(AdmissionControlFilter.Endpoint.USERS_CHANGES).getInFlight());
+    }
+
+    @Test
+    void limitShrinksOnSlowRequestsAndRecoversOnFastOnes() {
+        final AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(2, 10, Duration.ofMinutes(1).toNanos());
+
+        assertTrue(limit.tryAcquire());
+        limit.release(Duration.ofMinutes(2).toNanos());
+        assertEquals(9, limit.getLimit());
+        assertTrue(limit.tryAcquire());
+        limit.release(Duration.ofMinutes(2).toNanos());
+        assertEquals(9, limit.getLimit(), "decreases at most once per latency target");
+
+        for (int i = 0; i < 9; i++) assertTrue(limit.tryAcquire());
+        assertFalse(limit.tryAcquire());
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 9; i++) limit.release(Duration.ofMillis(1).toNanos());
+            for (int i = 0; i < 9; i++) assertTrue(limit.tryAcquire());
+        }
+        assertEquals(10, limit.getLimit());
+    }
+
+    private static AsyncContext startAsync(final AdmissionControlFilter filter, final String method, final String path) throws Exception {
+        final AsyncContext[] asyncContext = new AsyncContext[1];
+        final FilterChain filterChain = (request, response) -> asyncContext[0] = request.startAsync();
+        assertEquals(200, send(filter, method, path, filterChain).getStatus());
+        return asyncContext[0];
+    }
+
+    private static MockHttpServletResponse send(final AdmissionControlFilter filter, final String method, final String path, final FilterChain filterChain) throws Exception {
+        final MockHttpServletRequest request = new MockHttpServletRequest(method, path);
+        request.setAsyncSupported(true);
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+        filter.doFilter(request, response, filterChain);
+        return response;
+    }
+}
@@ -0,0 +1,64 @@
+package com.demo.user.config;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class ReadWriteRoutingDataSourceTests {
+    private final DataSource primary = mock(DataSource.class);
+
+    private final DataSource replica = mock(DataSource.class);
+
+    private final Connection primaryConnection = mock(Connection.class);
+
+    private final Connection replicaConnection = mock(Connection.class);
+
+    private final ReadWriteRoutingDataSource routingDataSource = new ReadWriteRoutingDataSource(this.primary, this.replica, Duration.ofHours(1));
+
+    @AfterEach
+    void tearDown() {
+        TransactionSynchronizationManager.setCurrentTransactionReadOnly(false);
+    }
+
+    @Test
+    void readOnlyTransactionsGoToReplicaUnlessPinned() throws SQLException {
+        when(this.primary.getConnection()).thenReturn(this.primaryConnection);
+        when(this.replica.getConnection()).thenReturn(this.replicaConnection);
+
+        assertSame(this.primaryConnection, this.routingDataSource.getConnection());
+
+        TransactionSynchronizationManager.setCurrentTransactionReadOnly(true);
+        assertSame(this.replicaConnection, this.routingDataSource.getConnection());
+
+        final ReplicaRouting replicaRouting = new ReplicaRouting(true, Duration.ofSeconds(5));
+        assertSame(this.primaryConnection, replicaRouting.onPrimary(() -> {
+            try {
+                return this.routingDataSource.getConnection();
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        }));
+    }
+
+    @Test
+    void unavailableReplicaIsSkippedForRetryInterval() throws SQLException {
+        when(this.primary.getConnection()).thenReturn(this.primaryConnection);
+        when(this.replica.getConnection()).thenThrow(new SQLException("connection refused"));
+        TransactionSynchronizationManager.setCurrentTransactionReadOnly(true);
+
+        assertSame(this.primaryConnection, this.routingDataSource.getConnection());
+        assertSame(this.primaryConnection, this.routingDataSource.getConnection());
+        verify(this.replica, times(1)).getConnection();
+    }
+}
@@ -0,0 +1,102 @@
+package com.demo.user.config;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class ShardRoutingTests {
+    private ShardRouting shardRouting;
+
+    @AfterEach
+    void tearDown() {
+        if (this.shardRouting != null) this.shardRouting.shutdown();
+    }
+
+    @Test
+    void usernamesSpreadEvenlyAndAddingAShardOnlyMovesUsersToIt() {
+        final ShardRouting threeShards = new ShardRouting(List.of("shard0", "shard1", "shard2"), 128);
+        final ShardRouting fourShards = new ShardRouting(List.of("shard0", "shard1", "shard2", "shard3"), 128);
+        try {
+            final int[] counts = new int[3];
+            int moved = 0;
+            for (int i = 0; i < 30000; i++) {
+                final String username = "user" + i;
+                final int shard = threeShards.shardOf(username);
+                counts[shard]++;
+                final int newShard = fourShards.shardOf(username);
+                if (newShard != shard) {
+                    assertEquals(3, newShard);
+                    moved++;
+                }
+            }
+
+            for (int count : counts) assertTrue(count > 8000 && count < 12000, "unbalanced shard of " + count + " users");
+            assertTrue(moved > 5000 && moved < 10000, "moved " + moved + " users");
+            assertEquals(0, new ShardRouting(List.of("default"), 128).shardOf("user0"));
+        } finally {
+            threeShards.shutdown();
+            fourShards.shutdown();
+        }
+    }
+
+    @Test
+    void fanOutAndMergeRunEveryShardOnItsOwnDataSource() throws SQLException {
+        final Map<String, DataSource> shards = new LinkedHashMap<>();
+        final List<Connection> connections = new ArrayList<>();
+        for (String name : List.of("shard0", "shard1")) {
+            final DataSource shard = mock(DataSource.class);
+            final Connection connection = mock(Connection.class);
+            when(shard.getConnection()).thenReturn(connection);
+            shards.put(name, shard);
+            connections.add(connection);
+        }
+        final ShardRoutingDataSource shardRoutingDataSource = new ShardRoutingDataSource(shards);
+        this.shardRouting = new ShardRouting(List.of("shard0", "shard1"), 128);
+
+        final List<String> usernames = new ArrayList<>();
+        for (int i = 0; i < 20; i++) usernames.add("user" + i);
+        final List<List<String>> partitions = this.shardRouting.partition(usernames, username -> username);
+        final List<Connection> used = this.shardRouting.fanOut(partitions, (shard, list) -> {
+            list.forEach(username -> assertEquals(shard, this.shardRouting.shardOf(username)));
+            return getConnection(shardRoutingDataSource);
+        });
+        assertSame(connections.get(0), used.get(0));
+        assertSame(connections.get(1), used.get(1));
+        assertNull(this.shardRouting.fanOut(List.of(List.of("alice"), List.of()), (shard, list) -> shard).get(1));
+        assertSame(connections.get(1), this.shardRouting.onShard(1, () -> getConnection(shardRoutingDataSource)));
+
+        final List<String> merged = new ArrayList<>();
+        this.shardRouting.<String>mergeSorted((shard, consumer) -> partitions.get(shard).stream().sorted().forEach(consumer), Comparator.naturalOrder(), 2, merged::add);
+        assertEquals(usernames.stream().sorted().toList(), merged);
+
+        final IllegalStateException failure = new IllegalStateException("shard unavailable");
+        assertSame(failure, assertThrows(IllegalStateException.class, () -> this.shardRouting.<String>mergeSorted((shard, consumer) -> {
+            if (shard == 1) throw failure;
+            partitions.get(shard).forEach(consumer);
+        }, Comparator.naturalOrder(), 2, merged::add)));
+    }
+
+    private static Connection getConnection(final DataSource dataSource) {
+        try {
+            return dataSource.getConnection();
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
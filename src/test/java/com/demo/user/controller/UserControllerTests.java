@@ -0,0 +1,329 @@
+package com.demo.user.controller;
+
+import com.demo.user.dto.UserChangeBatchDTO;
+import com.demo.user.dto.UserChangeDTO;
+import com.demo.user.dto.UserBatchDTO;
+import com.demo.user.dto.UserBulkResultDTO;
+import com.demo.user.dto.UserDTO;
+import com.demo.user.dto.UserImportStatusDTO;
+import com.demo.user.dto.UserMigrationStatusDTO;
+import com.demo.user.dto.UserPageDTO;
+import com.demo.user.dto.UserVersionTag;
+import com.demo.user.service.UserChangeFeed;
+import com.demo.user.service.UserImportService;
+import com.demo.user.service.UserMigrationService;
+import com.demo.user.service.UserService;
+import com.demo.user.service.UsernameIndex;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.module.paramnames.ParameterNamesModule;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.ResultActions;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+class UserControllerTests {
+    private static final ObjectMapper OBJECT_MAPPER = Jackson2ObjectMapperBuilder.json().modulesToInstall(new ParameterNamesModule()).build();
+
+    private final UserService userService = mock(UserService.class);
+
+    private final UserMigrationService userMigrationService = mock(UserMigrationService.class);
+
+    private final UserChangeFeed userChangeFeed = mock(UserChangeFeed.class);
+
+    private final UserImportService userImportService = mock(UserImportService.class);
+
+    private final MockMvc mockMvc = MockMvcBuilders.standaloneSetup(new UserController(this.userService, this.userMigrationService, this.userChangeFeed,
+            this.userImportService, OBJECT_MAPPER, new SimpleMeterRegistry(), 3, 2, 10, 5, 10, Duration.ofSeconds(60), Duration.ofMinutes(30)))
+            .setMessageConverters(new MappingJackson2HttpMessageConverter(OBJECT_MAPPER))
+            .build();
+
+    @Test
+    void exportStreamsOneUserPerLineWithinItsOwnTimeout() throws Exception {
+        when(this.userService.exportUsers(any())).thenAnswer(invocation -> {
+            final Consumer<UserDTO> consumer = invocation.getArgument(0);
+            consumer.accept(new UserDTO("alice", "Alice", "Smith"));
+            consumer.accept(new UserDTO("bob", "Bob", "Doe"));
+            return 2L;
+        });
+
+        final MvcResult mvcResult = this.mockMvc.perform(get("/users/export")).andExpect(request().asyncStarted()).andReturn();
+        assertEquals(Duration.ofMinutes(30).toMillis(), mvcResult.getRequest().getAsyncContext().getTimeout());
+
+        final String body = this.mockMvc.perform(asyncDispatch(mvcResult))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType("application/x-ndjson"))
+                .andReturn().getResponse().getContentAsString();
+        final String[] lines = body.split("\n");
+        assertEquals(2, lines.length);
+        assertEquals("alice", OBJECT_MAPPER.readTree(lines[0]).get("username").asText());
+        assertEquals("bob", OBJECT_MAPPER.readTree(lines[1]).get("username").asText());
+    }
+
+    @Test
+    void changesTimeOutShortlyAfterTheirWaitingTimeInsteadOfTheExportTimeout() throws Exception {
+        when(this.userChangeFeed.awaitChanges(eq("cursor"), anyInt(), eq(Duration.ofSeconds(20)))).thenReturn(Optional.of(new CompletableFuture<>()));
+
+        final MvcResult mvcResult = this.mockMvc.perform(get("/users/changes").param("after", "cursor").param("limit", "5").param("wait", "20"))
+                .andExpect(request().asyncStarted()).andReturn();
+        assertEquals(Duration.ofSeconds(25).toMillis(), mvcResult.getRequest().getAsyncContext().getTimeout());
+    }
+
+    @Test
+    void changesRejectMalformedCursorsAndOutOfRangeParametersAndExpiredCursorsWithGone() throws Exception {
+        final Instant now = Instant.now();
+        when(this.userChangeFeed.awaitChanges(isNull(), eq(5), eq(Duration.ZERO)))
+                .thenReturn(Optional.of(CompletableFuture.completedFuture(new UserChangeBatchDTO(List.of(), "end"))));
+        when(this.userChangeFeed.awaitChanges(eq("end"), eq(5), eq(Duration.ZERO))).thenReturn(Optional.of(CompletableFuture.completedFuture(
+                new UserChangeBatchDTO(List.of(new UserChangeDTO("alice", UserChangeDTO.Operation.CREATE, now)), "next"))));
+        when(this.userChangeFeed.awaitChanges(eq("malformed"), anyInt(), any())).thenReturn(Optional.empty());
+        when(this.userChangeFeed.awaitChanges(eq("expired"), anyInt(), any())).thenThrow(new UserChangeFeed.CursorExpiredException());
+
+        getChanges(get("/users/changes").param("limit", "5"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.changes").isEmpty())
+                .andExpect(jsonPath("$.cursor").value("end"));
+        getChanges(get("/users/changes").param("after", "end").param("limit", "5"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.changes[0].username").value("alice"))
+                .andExpect(jsonPath("$.changes[0].operation").value("CREATE"))
+                .andExpect(jsonPath("$.cursor").value("next"));
+        getChanges(get("/users/changes").param("after", "malformed").param("limit", "5")).andExpect(status().isBadRequest());
+        getChanges(get("/users/changes").param("after", "expired").param("limit", "5")).andExpect(status().isGone());
+        getChanges(get("/users/changes").param("after", "end")).andExpect(status().isBadRequest());
+        getChanges(get("/users/changes").param("after", "end").param("limit", "0")).andExpect(status().isBadRequest());
+        getChanges(get("/users/changes").param("after", "end").param("limit", "5").param("wait", "61")).andExpect(status().isBadRequest());
+        getChanges(get("/users/changes").param("after", "end").param("limit", "5").param("wait", "-1")).andExpect(status().isBadRequest());
+    }
+
+    @Test
+    void migrationIsStartedOnceAndReportsItsProgress() throws Exception {
+        when(this.userMigrationService.migrateUsers()).thenReturn(true, false);
+        when(this.userMigrationService.getStatus()).thenReturn(new UserMigrationStatusDTO(UserMigrationStatusDTO.State.RUNNING, 400, 1000, "checkpoint", 200));
+
+        this.mockMvc.perform(post("/users/migrate"))
+                .andExpect(status().isAccepted())
+                .andExpect(jsonPath("$.state").value("RUNNING"));
+        this.mockMvc.perform(post("/users/migrate"))
+                .andExpect(status().isConflict())
+                .andExpect(jsonPath("$.state").value("RUNNING"));
+        this.mockMvc.perform(get("/users/migrate"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.migratedRows").value(400))
+                .andExpect(jsonPath("$.totalRows").value(1000))
+                .andExpect(jsonPath("$.rowsPerSecond").value(200));
+    }
+
+    @Test
+    void importIsStartedOnceForFilesInsideTheImportDirectory() throws Exception {
+        final UserImportStatusDTO running = new UserImportStatusDTO(UserImportStatusDTO.State.RUNNING, "users.csv", null, 10, 8, 2, 100);
+        when(this.userImportService.resolve("users.csv")).thenReturn(Optional.of(Path.of("/import/users.csv")));
+        when(this.userImportService.resolve("../etc/passwd")).thenReturn(Optional.empty());
+        when(this.userImportService.importUsers(Path.of("/import/users.csv"), false)).thenReturn(true, false);
+        when(this.userImportService.getStatus()).thenReturn(running);
+
+        this.mockMvc.perform(post("/users/import").param("file", "../etc/passwd")).andExpect(status().isBadRequest());
+        this.mockMvc.perform(post("/users/import").param("file", "users.csv").param("header", "false"))
+                .andExpect(status().isAccepted())
+                .andExpect(jsonPath("$.state").value("RUNNING"));
+        this.mockMvc.perform(post("/users/import").param("file", "users.csv").param("header", "false")).andExpect(status().isConflict());
+        this.mockMvc.perform(get("/users/import"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.importedRows").value(8))
+                .andExpect(jsonPath("$.rejectedRows").value(2));
+        this.mockMvc.perform(post("/users/import")).andExpect(status().isBadRequest());
+    }
+
+    @Test
+    void suggestionsTellLoadingFailedAndDisabledIndexesApart() throws Exception {
+        when(this.userService.suggestUsernames("al", 5)).thenReturn(Optional.of(List.of("alice", "alina")));
+        when(this.userService.suggestUsernames("bo", 5)).thenReturn(Optional.empty());
+
+        this.mockMvc.perform(get("/users/suggest").param("prefix", "al").param("limit", "5"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[0]").value("alice"))
+                .andExpect(jsonPath("$[1]").value("alina"));
+        this.mockMvc.perform(get("/users/suggest").param("prefix", "al").param("limit", "6")).andExpect(status().isBadRequest());
+        this.mockMvc.perform(get("/users/suggest").param("prefix", "al").param("limit", "0")).andExpect(status().isBadRequest());
+        this.mockMvc.perform(get("/users/suggest").param("prefix", "a".repeat(21))).andExpect(status().isBadRequest());
+
+        when(this.userService.getSuggestionState()).thenReturn(UsernameIndex.State.LOADING);
+        this.mockMvc.perform(get("/users/suggest").param("prefix", "bo").param("limit", "5"))
+                .andExpect(status().isServiceUnavailable())
+                .andExpect(header().string(HttpHeaders.RETRY_AFTER, "5"));
+        when(this.userService.getSuggestionState()).thenReturn(UsernameIndex.State.FAILED);
+        this.mockMvc.perform(get("/users/suggest").param("prefix", "bo").param("limit", "5")).andExpect(status().isInternalServerError());
+        when(this.userService.getSuggestionState()).thenReturn(UsernameIndex.State.DISABLED);
+        this.mockMvc.perform(get("/users/suggest").param("prefix", "bo").param("limit", "5")).andExpect(status().isNotFound());
+    }
+
+    @Test
+    void bulkCreationAnswersPerEntryAndRejectsOversizedBodies() throws Exception {
+        when(this.userService.createUsers(any())).thenAnswer(invocation -> invocation.<List<UserDTO>>getArgument(0).stream()
+                .map(userDTO -> new UserBulkResultDTO(userDTO.getUsername(), userDTO.getUsername().equals("alice") ? UserBulkResultDTO.Status.CREATED : UserBulkResultDTO.Status.CONFLICT))
+                .toList());
+
+        this.mockMvc.perform(post("/users").contentType(MediaType.APPLICATION_JSON).content(
+                        "[{\"username\":\"alice\",\"firstName\":\"Alice\",\"lastName\":\"Smith\"},"
+                                + "{\"username\":\"1bad\",\"firstName\":\"Bad\",\"lastName\":\"Name\"},"
+                                + "{\"username\":\"bob\",\"firstName\":\"Bob\",\"lastName\":\"Doe\"}]"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(3))
+                .andExpect(jsonPath("$[0].status").value("CREATED"))
+                .andExpect(jsonPath("$[1].username").value("1bad"))
+                .andExpect(jsonPath("$[1].status").value("INVALID"))
+                .andExpect(jsonPath("$[2].status").value("CONFLICT"));
+        this.mockMvc.perform(post("/users").contentType(MediaType.APPLICATION_JSON).content(
+                        "[{\"username\":\"carol\",\"firstName\":\"Carol\"}, null]"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[0].status").value("INVALID"))
+                .andExpect(jsonPath("$[1].status").value("INVALID"));
+        verify(this.userService).createUsers(List.of());
+
+        this.mockMvc.perform(post("/users").contentType(MediaType.APPLICATION_JSON).content("[{},{},{},{}]")).andExpect(status().isBadRequest());
+        verify(this.userService, times(2)).createUsers(any());
+    }
+
+    @Test
+    void batchLookupAnswersFoundAndMissingUsernamesAndRejectsTooManyOfThem() throws Exception {
+        when(this.userService.findUsers(List.of("alice", "bob"), null))
+                .thenReturn(new UserBatchDTO(List.of(new UserDTO("alice", "Alice", "Smith")), List.of("bob")));
+
+        this.mockMvc.perform(get("/users").param("username", "alice", "bob"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.users[0].username").value("alice"))
+                .andExpect(jsonPath("$.users.length()").value(1))
+                .andExpect(jsonPath("$.missing[0]").value("bob"));
+        this.mockMvc.perform(get("/users").param("username", "alice", "bob", "carol")).andExpect(status().isBadRequest());
+        verify(this.userService).findUsers(any(), any());
+    }
+
+    @Test
+    void listingContinuesAtTheReturnedCursorAndRejectsMalformedCursorsAndLimits() throws Exception {
+        when(this.userService.listUsers(null, 2)).thenReturn(Optional.of(new UserPageDTO(List.of(new UserDTO("alice", "Alice", "Smith"), new UserDTO("bob", "Bob", "Doe")), "next")));
+        when(this.userService.listUsers("next", 2)).thenReturn(Optional.of(new UserPageDTO(List.of(new UserDTO("carol", "Carol", "Jones")), null)));
+        when(this.userService.listUsers("malformed", 2)).thenReturn(Optional.empty());
+
+        this.mockMvc.perform(get("/users").param("limit", "2"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.users.length()").value(2))
+                .andExpect(jsonPath("$.next").value("next"));
+        this.mockMvc.perform(get("/users").param("after", "next").param("limit", "2"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.users[0].username").value("carol"))
+                .andExpect(jsonPath("$.next").doesNotExist());
+        this.mockMvc.perform(get("/users").param("after", "malformed").param("limit", "2")).andExpect(status().isBadRequest());
+        this.mockMvc.perform(get("/users").param("limit", "0")).andExpect(status().isBadRequest());
+        this.mockMvc.perform(get("/users").param("limit", "11")).andExpect(status().isBadRequest());
+    }
+
+    @Test
+    void readsCarryVersionHeadersAndAreNotModifiedWhileTheyMatch() throws Exception {
+        // 2022-09-01T10:15:30.123456Z
+        final UserVersionTag versionTag = new UserVersionTag(1_662_027_330_123_456L, 3);
+        when(this.userService.findUser("alice", null)).thenReturn(Optional.of(new UserDTO("alice", "Alice", "Smith", versionTag)));
+        final String lastModified = "Thu, 01 Sep 2022 10:15:30 GMT";
+
+        this.mockMvc.perform(get("/user/alice"))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.ETAG, versionTag.toString()))
+                .andExpect(header().string(HttpHeaders.LAST_MODIFIED, lastModified))
+                .andExpect(jsonPath("$.firstName").value("Alice"));
+
+        this.mockMvc.perform(get("/user/alice").header(HttpHeaders.IF_NONE_MATCH, "\"0-0\", " + versionTag))
+                .andExpect(status().isNotModified())
+                .andExpect(header().string(HttpHeaders.ETAG, versionTag.toString()))
+                .andExpect(content().string(""));
+        this.mockMvc.perform(get("/user/alice").header(HttpHeaders.IF_NONE_MATCH, "W/" + versionTag)).andExpect(status().isNotModified());
+        this.mockMvc.perform(get("/user/alice").header(HttpHeaders.IF_NONE_MATCH, "*")).andExpect(status().isNotModified());
+        this.mockMvc.perform(get("/user/alice").header(HttpHeaders.IF_NONE_MATCH, "\"0-0\"")).andExpect(status().isOk());
+
+        this.mockMvc.perform(get("/user/alice").header(HttpHeaders.IF_MODIFIED_SINCE, lastModified)).andExpect(status().isNotModified());
+        this.mockMvc.perform(get("/user/alice").header(HttpHeaders.IF_MODIFIED_SINCE, "Thu, 01 Sep 2022 10:15:29 GMT"))
+                .andExpect(status().isOk());
+        this.mockMvc.perform(get("/user/alice").header(HttpHeaders.IF_NONE_MATCH, "\"0-0\"").header(HttpHeaders.IF_MODIFIED_SINCE, lastModified))
+                .andExpect(status().isOk());
+
+        this.mockMvc.perform(get("/user/bob").header(HttpHeaders.IF_NONE_MATCH, "*")).andExpect(status().isNotFound());
+    }
+
+    @Test
+    void writesWithAStaleIfMatchFailWithTheCurrentVersion() throws Exception {
+        final UserVersionTag current = new UserVersionTag(1_662_027_330_123_456L, 4);
+        final UserVersionTag stale = new UserVersionTag(1_662_027_330_123_456L, 3);
+        final UserVersionTag updated = new UserVersionTag(1_662_027_331_000_000L, 5);
+        when(this.userService.updateUser(eq("alice"), eq("2"), any(), eq(List.of(stale)))).thenThrow(new UserService.PreconditionFailedException(current));
+        when(this.userService.updateUser(eq("alice"), eq("2"), any(), eq(List.of()))).thenThrow(new UserService.PreconditionFailedException(current));
+        when(this.userService.updateUser(eq("alice"), eq("2"), any(), eq(List.of(stale, current)))).thenReturn(Optional.of(new UserDTO("alice", "Alicia", "Smith", updated)));
+        when(this.userService.updateUser(eq("alice"), eq("2"), any(), isNull())).thenReturn(Optional.of(new UserDTO("alice", "Alicia", "Smith", updated)));
+        when(this.userService.deleteUser("alice", null, List.of(stale))).thenThrow(new UserService.PreconditionFailedException(current));
+        when(this.userService.deleteUser("alice", null, List.of(current))).thenReturn(Optional.of(new UserDTO("alice", "Alicia", "Smith")));
+        when(this.userService.deleteUser("alice", null, null)).thenReturn(Optional.of(new UserDTO("alice", "Alicia", "Smith")));
+        final String body = "{\"firstName\":\"Alicia\"}";
+
+        this.mockMvc.perform(put("/user/alice").contentType(MediaType.APPLICATION_JSON).content(body).header(HttpHeaders.IF_MATCH, stale.toString()))
+                .andExpect(status().isPreconditionFailed())
+                .andExpect(header().string(HttpHeaders.ETAG, current.toString()))
+                .andExpect(content().string(""));
+        this.mockMvc.perform(put("/user/alice").contentType(MediaType.APPLICATION_JSON).content(body).header(HttpHeaders.IF_MATCH, "W/" + current))
+                .andExpect(status().isPreconditionFailed());
+        this.mockMvc.perform(put("/user/alice").contentType(MediaType.APPLICATION_JSON).content(body).header(HttpHeaders.IF_MATCH, stale + ", " + current))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.ETAG, updated.toString()));
+        this.mockMvc.perform(put("/user/alice").contentType(MediaType.APPLICATION_JSON).content(body).header(HttpHeaders.IF_MATCH, "*"))
+                .andExpect(status().isOk());
+        this.mockMvc.perform(put("/user/alice").contentType(MediaType.APPLICATION_JSON).content(body).header(HttpHeaders.IF_MATCH, "unquoted"))
+                .andExpect(status().isBadRequest());
+
+        this.mockMvc.perform(delete("/user/alice").header(HttpHeaders.IF_MATCH, stale.toString()))
+                .andExpect(status().isPreconditionFailed())
+                .andExpect(header().string(HttpHeaders.ETAG, current.toString()));
+        this.mockMvc.perform(delete("/user/alice").header(HttpHeaders.IF_MATCH, current.toString())).andExpect(status().isOk());
+        this.mockMvc.perform(delete("/user/alice").header(HttpHeaders.IF_MATCH, " * ")).andExpect(status().isOk());
+
+        this.mockMvc.perform(put("/user/ghost").contentType(MediaType.APPLICATION_JSON).content(body).header(HttpHeaders.IF_MATCH, "*"))
+                .andExpect(status().isPreconditionFailed())
+                .andExpect(header().doesNotExist(HttpHeaders.ETAG));
+        this.mockMvc.perform(put("/user/ghost").contentType(MediaType.APPLICATION_JSON).content(body)).andExpect(status().isNotFound());
+        this.mockMvc.perform(delete("/user/ghost").header(HttpHeaders.IF_MATCH, "*")).andExpect(status().isPreconditionFailed());
+        this.mockMvc.perform(delete("/user/ghost")).andExpect(status().isNotFound());
+    }
+
+    private ResultActions getChanges(final MockHttpServletRequestBuilder request) throws Exception {
+        return this.mockMvc.perform(asyncDispatch(this.mockMvc.perform(request).andExpect(request().asyncStarted()).andReturn()));
+    }
+}
@@ -0,0 +1,235 @@
+package com.demo.user.controller;
+
+import com.demo.user.config.ReadYourWritesFilter;
+import com.demo.user.config.ReplicaRouting;
+import com.demo.user.config.ShardRouting;
+import com.demo.user.config.ShardRoutingDataSource;
+import com.demo.user.dto.UserDTO;
+import com.demo.user.repository.NameRepository;
+import com.demo.user.repository.UserChangeRepository;
+import com.demo.user.repository.UserJdbcRepository;
+import com.demo.user.repository.UserRepository;
+import com.demo.user.service.UserCache;
+import com.demo.user.service.UserChangeFeed;
+import com.demo.user.service.UserImportService;
+import com.demo.user.service.UserLookupCoalescer;
+import com.demo.user.service.UserMigrationService;
+import com.demo.user.service.UserService;
+import com.demo.user.service.UserWriteBehindBuffer;
+import com.demo.user.service.UsernameBloomFilter;
+import com.demo.user.service.UsernameIndex;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.module.paramnames.ParameterNamesModule;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.request.RequestPostProcessor;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import javax.servlet.Filter;
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+class UserRequestTests {
+    private static final ObjectMapper OBJECT_MAPPER = Jackson2ObjectMapperBuilder.json().modulesToInstall(new ParameterNamesModule()).build();
+
+    private final UserRepository userRepository = mock(UserRepository.class);
+
+    private final UserJdbcRepository userJdbcRepository = mock(UserJdbcRepository.class);
+
+    private final PlatformTransactionManager transactionManager = mock(PlatformTransactionManager.class);
+
+    private ShardRouting shardRouting = new ShardRouting(List.of("default"), 1);
+
+    private UsernameBloomFilter usernameBloomFilter = new UsernameBloomFilter(this.userJdbcRepository, this.shardRouting, this.transactionManager, false, 1000, 0.01, Duration.ofHours(1), 100);
+
+    private ReplicaRouting replicaRouting = new ReplicaRouting(false, Duration.ofSeconds(5));
+
+    private final UserLookupCoalescer userLookupCoalescer = new UserLookupCoalescer(true);
+
+    @AfterEach
+    void tearDown() {
+        this.shardRouting.shutdown();
+    }
+
+    @Test
+    void usernamesRuledOutByTheBloomFilterAreNotFoundWithoutAQueryUntilCreated() throws Exception {
+        this.usernameBloomFilter = new UsernameBloomFilter(this.userJdbcRepository, this.shardRouting, this.transactionManager, true, 1000, 0.01, Duration.ofHours(1), 100);
+        when(this.userJdbcRepository.countUsers()).thenReturn(1L);
+        doAnswer(invocation -> {
+            invocation.<Consumer<String>>getArgument(2).accept("alice");
+            return null;
+        }).when(this.userJdbcRepository).streamUsernames(anyInt(), anyBoolean(), any());
+        this.usernameBloomFilter.rebuild();
+        when(this.userRepository.findUserDTOByUsername("alice")).thenReturn(Optional.of(new UserDTO("alice", "Alice", "Smith")));
+        when(this.userRepository.findUserDTOByUsername("bob")).thenReturn(Optional.of(new UserDTO("bob", "Bob", "Doe")));
+        when(this.userJdbcRepository.insertUser(any(), any(), any())).thenReturn(Optional.of(new UserDTO("bob", "Bob", "Doe")));
+        final MockMvc mockMvc = mockMvc();
+
+        mockMvc.perform(get("/user/bob")).andExpect(status().isNotFound());
+        mockMvc.perform(get("/user/alice")).andExpect(status().isOk()).andExpect(jsonPath("$.firstName").value("Alice"));
+        verify(this.userRepository, never()).findUserDTOByUsername("bob");
+
+        mockMvc.perform(post("/user/bob").contentType(MediaType.APPLICATION_JSON).content("{\"firstName\":\"Bob\",\"lastName\":\"Doe\"}"))
+                .andExpect(status().isCreated());
+        mockMvc.perform(get("/user/bob")).andExpect(status().isOk()).andExpect(jsonPath("$.firstName").value("Bob"));
+        verify(this.userRepository).findUserDTOByUsername("bob");
+    }
+
+    @Test
+    void readsOfWritingClientsAndOfWrittenUsersGoToThePrimaryWithinTheWindow() throws Exception {
+        this.replicaRouting = new ReplicaRouting(true, Duration.ofMinutes(1));
+        final List<String> lookups = new ArrayList<>();
+        when(this.userRepository.findUserDTOByUsername(any())).thenAnswer(invocation -> {
+            final String username = invocation.getArgument(0);
+            lookups.add(username + (ReplicaRouting.isPinnedToPrimary() ? "@primary" : "@replica"));
+            return Optional.of(new UserDTO(username, "First", "Last"));
+        });
+        when(this.userJdbcRepository.updateName(eq("alice"), any(), any(), any())).thenReturn(Optional.of(new UserDTO("alice", "Alicia", "Smith")));
+        final MockMvc mockMvc = mockMvc(new ReadYourWritesFilter(this.replicaRouting));
+
+        mockMvc.perform(get("/user/alice").with(from("10.0.0.1"))).andExpect(status().isOk());
+        mockMvc.perform(put("/user/alice").with(from("10.0.0.1")).contentType(MediaType.APPLICATION_JSON).content("{\"firstName\":\"Alicia\"}"))
+                .andExpect(status().isOk());
+        mockMvc.perform(get("/user/alice").with(from("10.0.0.2"))).andExpect(status().isOk());
+        mockMvc.perform(get("/user/carol").with(from("10.0.0.1"))).andExpect(status().isOk());
+        mockMvc.perform(get("/user/dave").with(from("10.0.0.2"))).andExpect(status().isOk());
+
+        assertEquals(List.of("alice@replica", "alice@primary", "carol@primary", "dave@replica"), lookups);
+    }
+
+    @Test
+    void concurrentReadsOfTheSameUserShareOneQuery() throws Exception {
+        final CountDownLatch queried = new CountDownLatch(1);
+        final CountDownLatch answer = new CountDownLatch(1);
+        when(this.userRepository.findUserDTOByUsername("alice")).thenAnswer(invocation -> {
+            queried.countDown();
+            assertTrue(answer.await(5, TimeUnit.SECONDS));
+            return Optional.of(new UserDTO("alice", "Alice", "Smith"));
+        });
+        final MockMvc mockMvc = mockMvc();
+
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<Integer>> statuses = new ArrayList<>();
+            statuses.add(executor.submit(() -> mockMvc.perform(get("/user/alice")).andReturn().getResponse().getStatus()));
+            assertTrue(queried.await(5, TimeUnit.SECONDS));
+            for (int i = 0; i < 3; i++) statuses.add(executor.submit(() -> mockMvc.perform(get("/user/alice")).andReturn().getResponse().getStatus()));
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (this.userLookupCoalescer.getCoalesced() < 3 && System.nanoTime() < deadline) Thread.sleep(1);
+            answer.countDown();
+
+            for (Future<Integer> status : statuses) assertEquals(200, status.get(5, TimeUnit.SECONDS));
+            assertEquals(3, this.userLookupCoalescer.getCoalesced());
+            verify(this.userRepository).findUserDTOByUsername("alice");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void requestsRunOnTheShardOfTheirUsernamesAndBatchesMergeInRequestOrder() throws Exception {
+        this.shardRouting.shutdown();
+        this.shardRouting = new ShardRouting(List.of("shard0", "shard1"), 128);
+        final Map<String, DataSource> shards = new LinkedHashMap<>();
+        final Map<Connection, String> shardNames = new HashMap<>();
+        for (String name : List.of("shard0", "shard1")) {
+            final DataSource shard = mock(DataSource.class);
+            final Connection connection = mock(Connection.class);
+            when(shard.getConnection()).thenReturn(connection);
+            shards.put(name, shard);
+            shardNames.put(connection, name);
+        }
+        final ShardRoutingDataSource shardRoutingDataSource = new ShardRoutingDataSource(shards);
+        final List<String> usernames = new ArrayList<>();
+        for (int i = 0; usernames.size() < 3; i++) {
+            if (this.shardRouting.shardOf("user" + i) == usernames.size() % 2) usernames.add("user" + i);
+        }
+
+        final List<String> queries = Collections.synchronizedList(new ArrayList<>());
+        when(this.userRepository.findUserDTOsByUsernameIn(any())).thenAnswer(invocation -> {
+            final Collection<String> shardUsernames = invocation.getArgument(0);
+            queries.add(shardNames.get(shardRoutingDataSource.getConnection()) + ":" + String.join(",", shardUsernames));
+            return shardUsernames.stream().map(username -> new UserDTO(username, "First", "Last")).toList();
+        });
+        when(this.userJdbcRepository.insertUser(any(), any(), any())).thenAnswer(invocation -> {
+            queries.add(shardNames.get(shardRoutingDataSource.getConnection()) + ":" + invocation.getArgument(0));
+            return Optional.of(new UserDTO(invocation.getArgument(0), "First", "Last"));
+        });
+        when(this.userRepository.findUserDTOByUsername(any())).thenAnswer(invocation -> {
+            queries.add(shardNames.get(shardRoutingDataSource.getConnection()) + ":" + invocation.getArgument(0));
+            return Optional.of(new UserDTO(invocation.getArgument(0), "First", "Last"));
+        });
+        final MockMvc mockMvc = mockMvc();
+
+        mockMvc.perform(get("/users").param("username", usernames.get(1), usernames.get(0)))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.users[0].username").value(usernames.get(1)))
+                .andExpect(jsonPath("$.users[1].username").value(usernames.get(0)));
+        assertEquals(Set.of("shard0:" + usernames.get(0), "shard1:" + usernames.get(1)), Set.copyOf(queries));
+
+        queries.clear();
+        mockMvc.perform(post("/user/" + usernames.get(2)).contentType(MediaType.APPLICATION_JSON).content("{\"firstName\":\"First\",\"lastName\":\"Last\"}"))
+                .andExpect(status().isCreated());
+        mockMvc.perform(get("/user/" + usernames.get(2))).andExpect(status().isOk());
+        assertEquals(List.of("shard0:" + usernames.get(2), "shard0:" + usernames.get(2)), queries);
+    }
+
+    private static RequestPostProcessor from(final String remoteAddr) {
+        return request -> {
+            request.setRemoteAddr(remoteAddr);
+            return request;
+        };
+    }
+
+    private MockMvc mockMvc(final Filter... filters) {
+        final UserCache userCache = new UserCache(100, Duration.ofMinutes(5));
+        final UserService userService = new UserService(this.userRepository, mock(NameRepository.class), this.userJdbcRepository, mock(UserChangeRepository.class), userCache,
+                this.userLookupCoalescer, new UserWriteBehindBuffer(this.userJdbcRepository, mock(UserChangeRepository.class), userCache, this.replicaRouting, this.shardRouting,
+                this.transactionManager, false, 10, 10, Duration.ofMillis(50), Duration.ofSeconds(1), Duration.ofMillis(100), Duration.ofSeconds(30)),
+                mock(UsernameIndex.class), this.usernameBloomFilter, this.replicaRouting, this.shardRouting, this.transactionManager, 100, "native");
+        return MockMvcBuilders.standaloneSetup(new UserController(userService, mock(UserMigrationService.class), mock(UserChangeFeed.class), mock(UserImportService.class),
+                        OBJECT_MAPPER, new SimpleMeterRegistry(), 3, 2, 10, 5, 10, Duration.ofSeconds(60), Duration.ofMinutes(30)))
+                .setMessageConverters(new MappingJackson2HttpMessageConverter(OBJECT_MAPPER))
+                .addFilters(filters)
+                .build();
+    }
+}
@@ -0,0 +1,28 @@
+package com.demo.user.dto;
+
+import org.junit.jupiter.api.Test;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UserVersionTagTests {
+    @Test
+    void tagRoundTripsThroughIfMatch() {
+        final Timestamp userUpdateTime = Timestamp.from(Instant.parse("2022-09-01T10:00:00.123456Z"));
+        final Timestamp nameUpdateTime = Timestamp.from(Instant.parse("2022-09-02T10:00:00.654321Z"));
+        final UserVersionTag versionTag = UserVersionTag.of(userUpdateTime, nameUpdateTime, 3);
+
+        assertEquals(nameUpdateTime.toInstant(), versionTag.getLastModified());
+        assertEquals(Optional.of(List.of(versionTag)), UserVersionTag.parseAll("W/\"1-1\", " + versionTag + ", \"foreign\""));
+    }
+
+    @Test
+    void malformedIfMatchIsRejected() {
+        assertTrue(UserVersionTag.parseAll("65dfe4eab3995-0").isEmpty());
+    }
+}
@@ -0,0 +1,321 @@
+package com.demo.user.loadtest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.support.PropertiesLoaderUtils;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.testcontainers.DockerClientFactory;
+import org.testcontainers.containers.PostgreSQLContainer;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * End-to-end load test of the {@code user/{username}} endpoints against an in-memory database in PostgreSQL mode.
+ * Excluded from the regular build; run with {@code ./mvnw -P load-test test} and tune with the following system properties:
+ * <ul>
+ *     <li>{@code loadtest.clients} number of concurrent clients, default 32</li>
+ *     <li>{@code loadtest.users} number of users created before the measurement, default 1000</li>
+ *     <li>{@code loadtest.warmup} unmeasured warmup as ISO-8601 duration, default PT5S</li>
+ *     <li>{@code loadtest.duration} measured duration as ISO-8601 duration, default PT20S</li>
+ *     <li>{@code loadtest.shards} number of in-memory databases the users are sharded across, default 1 for no sharding</li>
+ *     <li>{@code loadtest.database} {@code postgresql} to run the native write path against PostgreSQL instead, in a container if Docker is available
+ *     and otherwise at {@code spring.datasource.*} of {@code application.properties}; default h2</li>
+ *     <li>{@code loadtest.mix} weights of the request types, default GET=70,POST=10,PUT=15,DELETE=5</li>
+ *     <li>{@code loadtest.label} label of the run in the result, e.g. the commit, default unlabeled</li>
+ *     <li>{@code loadtest.output} result file, default target/loadtest/result.json</li>
+ * </ul>
+ * The result file contains throughput and p50/p95/p99/max latency per request type as JSON, to compare runs across commits.
+ */
+@Tag("load")
+@ActiveProfiles("loadtest")
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+class UserLoadTest {
+    private enum Endpoint {
+        GET,
+        POST,
+        PUT,
+        DELETE
+    }
+
+    @LocalServerPort
+    private int port;
+
+    private final HttpClient httpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).connectTimeout(Duration.ofSeconds(10)).build();
+
+    private final ConcurrentLinkedQueue<String> createdUsernames = new ConcurrentLinkedQueue<>();
+
+    private final AtomicLong createdCount = new AtomicLong();
+
+    @DynamicPropertySource
+    static void postgreSQLProperties(DynamicPropertyRegistry registry) throws IOException {
+        if (!System.getProperty("loadtest.database", "h2").equals("postgresql")) return;
+
+        final Properties defaults = PropertiesLoaderUtils.loadProperties(new ClassPathResource("application.properties"));
+        for (String name : List.of("spring.datasource.url", "spring.datasource.username", "spring.datasource.password", "spring.datasource.driverClassName",
+                "spring.jpa.hibernate.ddl-auto", "user.write-path", "user.suggest.enabled")) {
+            registry.add(name, () -> defaults.getProperty(name));
+        }
+        registry.add("spring.jpa.database-platform", () -> "org.hibernate.dialect.PostgreSQLDialect");
+        if (!DockerClientFactory.instance().isDockerAvailable()) return;
+
+        final PostgreSQLContainer<?> container = new PostgreSQLContainer<>("postgres:14-alpine");
+        container.start();
+        registry.add("spring.datasource.url", container::getJdbcUrl);
+        registry.add("spring.datasource.username", container::getUsername);
+        registry.add("spring.datasource.password", container::getPassword);
+    }
+
+    @DynamicPropertySource
+    static void shardProperties(DynamicPropertyRegistry registry) {
+        final int shards = Integer.getInteger("loadtest.shards", 1);
+        if (shards <= 1) return;
+
+        registry.add("user.sharding.enabled", () -> "true");
+        for (int i = 0; i < shards; i++) {
+            final String prefix = "user.sharding.shards.shard" + i + ".";
+            final String url = "jdbc:h2:mem:loadtest-shard" + i + ";MODE=PostgreSQL;DATABASE_TO_LOWER=TRUE;DEFAULT_NULL_ORDERING=HIGH;DB_CLOSE_DELAY=-1";
+            registry.add(prefix + "jdbc-url", () -> url);
+            registry.add(prefix + "username", () -> "sa");
+            registry.add(prefix + "password", () -> "");
+        }
+    }
+
+    @Test
+    void userEndpointsUnderLoad() throws Exception {
+        final int clients = Integer.getInteger("loadtest.clients", 32);
+        final int users = Integer.getInteger("loadtest.users", 1000);
+        final Duration warmup = Duration.parse(System.getProperty("loadtest.warmup", "PT5S"));
+        final Duration duration = Duration.parse(System.getProperty("loadtest.duration", "PT20S"));
+        final String mix = System.getProperty("loadtest.mix", "GET=70,POST=10,PUT=15,DELETE=5");
+        final Map<Endpoint, Integer> weights = parseMix(mix);
+
+        seedUsers(users, clients);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(clients);
+        final long startNanos = System.nanoTime();
+        final long measureFromNanos = startNanos + warmup.toNanos();
+        final long endNanos = measureFromNanos + duration.toNanos();
+        final List<Future<Recorder>> futures = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            futures.add(executor.submit(() -> runClient(weights, users, measureFromNanos, endNanos)));
+        }
+        final List<Recorder> recorders = new ArrayList<>();
+        for (Future<Recorder> future : futures) recorders.add(future.get());
+        executor.shutdown();
+
+        final Map<String, Object> result = report(recorders, clients, users, warmup, duration, mix);
+        final Path output = Path.of(System.getProperty("loadtest.output", "target/loadtest/result.json"));
+        Files.createDirectories(output.toAbsolutePath().getParent());
+        new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValue(output.toFile(), result);
+        System.out.println(new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValueAsString(result));
+
+        long errors = 0;
+        for (Recorder recorder : recorders) errors += Arrays.stream(recorder.errors).sum();
+        assertEquals(0, errors, "unexpected responses during load test, see " + output);
+    }
+
+    private Recorder runClient(Map<Endpoint, Integer> weights, int users, long measureFromNanos, long endNanos) {
+        final Recorder recorder = new Recorder();
+        final int totalWeight = weights.values().stream().mapToInt(Integer::intValue).sum();
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        long now;
+        while ((now = System.nanoTime()) < endNanos) {
+            int pick = random.nextInt(totalWeight);
+            Endpoint endpoint = Endpoint.GET;
+            for (Map.Entry<Endpoint, Integer> weight : weights.entrySet()) {
+                pick -= weight.getValue();
+                if (pick < 0) {
+                    endpoint = weight.getKey();
+                    break;
+                }
+            }
+
+            final int status;
+            final long requestStartNanos = System.nanoTime();
+            try {
+                status = send(endpoint, random.nextInt(users));
+            } catch (IOException | InterruptedException e) {
+                if (now >= measureFromNanos) recorder.errors[endpoint.ordinal()]++;
+                continue;
+            }
+            final long latencyNanos = System.nanoTime() - requestStartNanos;
+
+            if (now < measureFromNanos) continue;
+            recorder.record(endpoint, latencyNanos);
+            if (!isExpected(endpoint, status)) recorder.errors[endpoint.ordinal()]++;
+        }
+
+        return recorder;
+    }
+
+    private int send(Endpoint endpoint, int seedIndex) throws IOException, InterruptedException {
+        final HttpRequest request;
+        switch (endpoint) {
+            case POST -> {
+                final String username = "load" + this.createdCount.incrementAndGet();
+                request = jsonRequest(username, "POST", "{\"firstName\": \"Load\", \"lastName\": \"Test\"}");
+                final int status = this.httpClient.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+                if (status == 201) this.createdUsernames.add(username);
+                return status;
+            }
+            case PUT -> request = jsonRequest("seed" + seedIndex, "PUT", "{\"lastName\": \"Updated\"}");
+            case DELETE -> {
+                final String username = this.createdUsernames.poll();
+                request = HttpRequest.newBuilder(userUri(username == null ? "missing" + seedIndex : username)).DELETE().build();
+            }
+            default -> request = HttpRequest.newBuilder(userUri("seed" + seedIndex)).GET().build();
+        }
+
+        return this.httpClient.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+    }
+
+    private void seedUsers(int users, int clients) throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(clients);
+        final List<Future<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < users; i++) {
+            final HttpRequest request = jsonRequest("seed" + i, "POST", "{\"firstName\": \"Seed\", \"lastName\": \"User " + i + "\"}");
+            futures.add(executor.submit(() -> this.httpClient.send(request, HttpResponse.BodyHandlers.discarding()).statusCode()));
+        }
+        for (Future<Integer> future : futures) assertEquals(201, future.get());
+        executor.shutdown();
+    }
+
+    private HttpRequest jsonRequest(String username, String method, String body) {
+        return HttpRequest.newBuilder(userUri(username))
+                .header("Content-Type", "application/json")
+                .method(method, HttpRequest.BodyPublishers.ofString(body))
+                .build();
+    }
+
+    private URI userUri(String username) {
+        return URI.create("http://localhost:" + this.port + "/user/" + username);
+    }
+
+    private static boolean isExpected(Endpoint endpoint, int status) {
+        return switch (endpoint) {
+            case GET, PUT -> status == 200;
+            case POST -> status == 201;
+            case DELETE -> status == 200 || status == 404;
+        };
+    }
+
+    private static Map<Endpoint, Integer> parseMix(String mix) {
+        final Map<Endpoint, Integer> weights = new EnumMap<>(Endpoint.class);
+        for (String entry : mix.split(",")) {
+            final String[] keyValue = entry.trim().split("=");
+            weights.put(Endpoint.valueOf(keyValue[0].trim()), Integer.parseInt(keyValue[1].trim()));
+        }
+        return weights;
+    }
+
+    private static Map<String, Object> report(List<Recorder> recorders, int clients, int users, Duration warmup, Duration duration, String mix) {
+        final Map<String, Object> result = new LinkedHashMap<>();
+        result.put("label", System.getProperty("loadtest.label", "unlabeled"));
+        result.put("timestamp", Instant.now().toString());
+        result.put("clients", clients);
+        result.put("users", users);
+        result.put("shards", Integer.getInteger("loadtest.shards", 1));
+        result.put("warmup", warmup.toString());
+        result.put("duration", duration.toString());
+        result.put("mix", mix);
+
+        final double seconds = duration.toNanos() / 1e9;
+        final Map<String, Object> endpoints = new LinkedHashMap<>();
+        long totalCount = 0;
+        for (Endpoint endpoint : Endpoint.values()) {
+            final LongList latencies = new LongList();
+            long errors = 0;
+            for (Recorder recorder : recorders) {
+                latencies.addAll(recorder.latencies.get(endpoint));
+                errors += recorder.errors[endpoint.ordinal()];
+            }
+            if (latencies.size == 0) continue;
+
+            final long[] sorted = Arrays.copyOf(latencies.values, latencies.size);
+            Arrays.sort(sorted);
+            totalCount += sorted.length;
+
+            final Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("requests", sorted.length);
+            stats.put("errors", errors);
+            stats.put("throughputPerSecond", Math.round(sorted.length / seconds));
+            stats.put("p50Millis", percentileMillis(sorted, 0.50));
+            stats.put("p95Millis", percentileMillis(sorted, 0.95));
+            stats.put("p99Millis", percentileMillis(sorted, 0.99));
+            stats.put("maxMillis", sorted[sorted.length - 1] / 1e6);
+            endpoints.put("user/{username} " + endpoint.name(), stats);
+        }
+        result.put("throughputPerSecond", Math.round(totalCount / seconds));
+        result.put("endpoints", endpoints);
+
+        return result;
+    }
+
+    private static double percentileMillis(long[] sorted, double percentile) {
+        final int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(index, 0)] / 1e6;
+    }
+
+    /**
+     * Latencies and errors of a single client, merged after the run to avoid contention during the measurement.
+     */
+    private static final class Recorder {
+        private final Map<Endpoint, LongList> latencies = new EnumMap<>(Endpoint.class);
+
+        private final long[] errors = new long[Endpoint.values().length];
+
+        private Recorder() {
+            for (Endpoint endpoint : Endpoint.values()) this.latencies.put(endpoint, new LongList());
+        }
+
+        private void record(Endpoint endpoint, long latencyNanos) {
+            this.latencies.get(endpoint).add(latencyNanos);
+        }
+    }
+
+    private static final class LongList {
+        private long[] values = new long[1024];
+
+        private int size;
+
+        private void add(long value) {
+            if (this.size == this.values.length) this.values = Arrays.copyOf(this.values, this.size * 2);
+            this.values[this.size++] = value;
+        }
+
+        private void addAll(LongList other) {
+            for (int i = 0; i < other.size; i++) add(other.values[i]);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.demo.user.loadtest;
+
+import com.demo.user.UserApplication;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Startup benchmark measuring the time from launching a new JVM with the user-service until it answers its first {@code user/{username}} request,
+ * which is when a new instance can take traffic. Each run starts a fresh process, so JIT and class loading are cold as in a rolling restart.
+ * Excluded from the regular build; run with {@code ./mvnw -P startup-test test} and tune with the following system properties:
+ * <ul>
+ *     <li>{@code startup.runs} number of measured starts, default 5</li>
+ *     <li>{@code startup.jar} application jar to start with {@code -jar}; by default the test classpath is used,
+ *     which brings the in-memory database of the {@code loadtest} profile</li>
+ *     <li>{@code startup.jvm-args} space-separated JVM options, e.g. {@code -XX:SharedArchiveFile=target/user.jsa}, default none</li>
+ *     <li>{@code startup.args} space-separated application arguments, default {@code --spring.profiles.active=loadtest} on the test classpath, none with a jar</li>
+ *     <li>{@code startup.timeout} maximum time to wait per start as ISO-8601 duration, default PT2M</li>
+ *     <li>{@code startup.label} label of the run in the result, e.g. the profile, default unlabeled</li>
+ *     <li>{@code startup.output} result file, default target/startup/result.json</li>
+ * </ul>
+ * The result file contains the time to first request of every run and their minimum, median and maximum as JSON, to compare configurations.
+ */
+@Tag("startup")
+class UserStartupTest {
+    private final HttpClient httpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).connectTimeout(Duration.ofSeconds(1)).build();
+
+    @Test
+    void timeToFirstRequest() throws Exception {
+        final int runs = Integer.getInteger("startup.runs", 5);
+        final String jar = System.getProperty("startup.jar");
+        final List<String> jvmArgs = split(System.getProperty("startup.jvm-args", ""));
+        final List<String> args = split(System.getProperty("startup.args", jar == null ? "--spring.profiles.active=loadtest" : ""));
+        final Duration timeout = Duration.parse(System.getProperty("startup.timeout", "PT2M"));
+
+        final long[] millis = new long[runs];
+        for (int i = 0; i < runs; i++) millis[i] = startOnce(jar, jvmArgs, args, timeout);
+
+        final Map<String, Object> result = new LinkedHashMap<>();
+        result.put("label", System.getProperty("startup.label", "unlabeled"));
+        result.put("timestamp", Instant.now().toString());
+        result.put("jar", jar);
+        result.put("jvmArgs", jvmArgs);
+        result.put("args", args);
+        result.put("runs", runs);
+        result.put("timeToFirstRequestMillis", millis);
+        final long[] sorted = millis.clone();
+        Arrays.sort(sorted);
+        result.put("minMillis", sorted[0]);
+        result.put("medianMillis", sorted[(sorted.length - 1) / 2]);
+        result.put("maxMillis", sorted[sorted.length - 1]);
+
+        final Path output = Path.of(System.getProperty("startup.output", "target/startup/result.json"));
+        Files.createDirectories(output.toAbsolutePath().getParent());
+        new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValue(output.toFile(), result);
+        System.out.println(new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValueAsString(result));
+    }
+
+    /**
+     * Starts the application, waits for the first answer of {@code user/{username}} and stops it again with SIGTERM,
+     * so that a JVM option like {@code -XX:ArchiveClassesAtExit} can write its archive on exit.
+     * @return milliseconds from launch until the first answer
+     */
+    private long startOnce(String jar, List<String> jvmArgs, List<String> args, Duration timeout) throws Exception {
+        final int port = freePort();
+        final List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(jvmArgs);
+        if (jar != null) {
+            command.add("-jar");
+            command.add(jar);
+        } else {
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(UserApplication.class.getName());
+        }
+        command.add("--server.port=" + port);
+        command.addAll(args);
+
+        final Path log = Files.createTempFile("user-startup", ".log");
+        final HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/user/startup_probe")).timeout(Duration.ofSeconds(10)).GET().build();
+        final long startNanos = System.nanoTime();
+        final Process process = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log.toFile()).start();
+        final long millis;
+        try {
+            millis = awaitFirstAnswer(process, request, startNanos, timeout, log);
+        } finally {
+            process.destroy();
+            if (!process.waitFor(30, TimeUnit.SECONDS)) process.destroyForcibly();
+        }
+        Files.delete(log);
+
+        return millis;
+    }
+
+    private long awaitFirstAnswer(Process process, HttpRequest request, long startNanos, Duration timeout, Path log) throws Exception {
+        while (true) {
+            assertTrue(process.isAlive(), "application exited, see " + log);
+            assertTrue(System.nanoTime() - startNanos < timeout.toNanos(), "application did not answer within " + timeout + ", see " + log);
+            try {
+                final int status = this.httpClient.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+                if (status == 404 || status == 200) return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+            } catch (ConnectException e) {
+                // not listening yet
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static List<String> split(String value) {
+        return value.isBlank() ? List.of() : Arrays.asList(value.trim().split("\\s+"));
+    }
+}
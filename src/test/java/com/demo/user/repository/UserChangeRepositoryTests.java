@@ -0,0 +1,59 @@
+package com.demo.user.repository;
+
+import com.demo.user.PostgreSQLTests;
+import com.demo.user.dto.UserChangeDTO;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class UserChangeRepositoryTests extends PostgreSQLTests {
+    @Autowired
+    private UserChangeRepository userChangeRepository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Test
+    void supersededChangesAreDeletedBatchByBatchKeepingTheLastChangeOfEveryUsername() {
+        // the change log is created by Liquibase and outlives earlier runs
+        final long lastSeq = this.jdbcTemplate.queryForObject("SELECT COALESCE(max(seq), 0) FROM user_change", Long.class);
+        this.userChangeRepository.insertChanges(List.of("changeAlice", "changeBob"), UserChangeDTO.Operation.CREATE);
+        this.userChangeRepository.insertChanges(List.of("changeAlice"), UserChangeDTO.Operation.UPDATE);
+        this.userChangeRepository.insertChanges(List.of("changeAlice"), UserChangeDTO.Operation.DELETE);
+        this.userChangeRepository.insertChanges(List.of("changeCarol"), UserChangeDTO.Operation.CREATE);
+
+        final List<Integer> deleted = new ArrayList<>();
+        long afterSeq = lastSeq;
+        while (true) {
+            final UserChangeRepository.DeletedBatch deletedBatch = this.userChangeRepository.deleteSupersededChanges(afterSeq, 2);
+            if (deletedBatch.getLastSeq() == 0) break;
+            deleted.add(deletedBatch.getDeleted());
+            afterSeq = deletedBatch.getLastSeq();
+        }
+
+        assertEquals(List.of(1, 1, 0), deleted);
+        assertEquals(List.of("changeBob:CREATE", "changeAlice:DELETE", "changeCarol:CREATE"), this.jdbcTemplate.queryForList(
+                "SELECT username || ':' || operation FROM user_change WHERE seq > ? ORDER BY seq", String.class, lastSeq));
+    }
+
+    @Test
+    void expiredChangesAreDeletedInBatchesOfAtMostTheBatchSize() {
+        final Instant expired = Instant.parse("2000-01-01T00:00:00Z");
+        for (String username : List.of("expiredAlice", "expiredBob", "expiredCarol")) {
+            this.jdbcTemplate.update("INSERT INTO user_change (username, operation, change_time) VALUES (?, 'CREATE', ?)", username, Timestamp.from(expired));
+        }
+
+        final Instant before = expired.plusSeconds(1);
+        assertEquals(2, this.userChangeRepository.deleteChangesBefore(before, 2));
+        assertEquals(1, this.userChangeRepository.deleteChangesBefore(before, 2));
+        assertEquals(0, this.userChangeRepository.deleteChangesBefore(before, 2));
+        assertEquals(0, this.jdbcTemplate.queryForObject("SELECT count(*) FROM user_change WHERE username LIKE 'expired%'", Integer.class));
+    }
+}
@@ -0,0 +1,58 @@
+package com.demo.user.repository;
+
+import com.demo.user.PostgreSQLTests;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class UserImportRepositoryTests extends PostgreSQLTests {
+    @Autowired
+    private UserImportRepository userImportRepository;
+
+    @Autowired
+    private UserJdbcRepository userJdbcRepository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Test
+    void stagedRowsAreMergedUnlessTheUsernameIsTakenOrStagedEarlier() {
+        this.userJdbcRepository.insertUser("importTaken", "Taken", "User");
+        // the change log is created by Liquibase and outlives earlier runs
+        final long lastSeq = this.jdbcTemplate.queryForObject("SELECT COALESCE(max(seq), 0) FROM user_change", Long.class);
+        final String csv = "1,importAlice,Alice,Smith\n2,importTaken,Other,User\n3,importAlice,Alicia,Smith\n4,importBob,Bob,\n";
+        final List<String> rejected = new ArrayList<>();
+
+        final Long rejectedCount = new TransactionTemplate(this.transactionManager).execute(status -> {
+            this.userImportRepository.createStagingTable();
+            assertEquals(4, this.userImportRepository.copyToStagingTable(new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8))));
+            return this.userImportRepository.mergeStagingTable((lineNumber, userDTO, duplicate) -> rejected.add(lineNumber + ":" + userDTO.getUsername() + ":" + duplicate));
+        });
+
+        assertEquals(2, rejectedCount);
+        assertEquals(List.of("2:importTaken:false", "3:importAlice:true"), rejected.stream().sorted().toList());
+        final List<Map<String, Object>> rows = this.jdbcTemplate.queryForList(
+                "SELECT u.username, n.first_name, n.last_name, u.version AS user_version, n.version AS name_version FROM user_data u JOIN name n ON n.id = u.name_id"
+                        + " WHERE u.username IN ('importAlice', 'importBob', 'importTaken') ORDER BY u.username");
+        assertEquals(List.of("Alice", "Bob", "Taken"), rows.stream().map(row -> row.get("first_name")).toList());
+        assertNull(rows.get(1).get("last_name"));
+        rows.forEach(row -> assertEquals(0L, row.get("name_version")));
+        rows.forEach(row -> assertEquals(0L, row.get("user_version")));
+        assertEquals(List.of("importAlice", "importBob"), this.jdbcTemplate.queryForList(
+                "SELECT username FROM user_change WHERE operation = 'CREATE' AND seq > ? ORDER BY username", String.class, lastSeq));
+    }
+}
@@ -0,0 +1,66 @@
+package com.demo.user.repository;
+
+import com.demo.user.PostgreSQLTests;
+import com.demo.user.dto.UserDTO;
+import com.demo.user.dto.UserVersionTag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UserJdbcRepositoryTests extends PostgreSQLTests {
+    @Autowired
+    private UserJdbcRepository userJdbcRepository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Test
+    void writesOnlyApplyWhileOneOfTheExpectedVersionsIsCurrent() {
+        // the change log is created by Liquibase and outlives earlier runs
+        final long lastSeq = this.jdbcTemplate.queryForObject("SELECT COALESCE(max(seq), 0) FROM user_change", Long.class);
+        final UserVersionTag created = this.userJdbcRepository.insertUser("jdbcAlice", "Alice", "Smith").orElseThrow().getVersionTag();
+        assertNotNull(created);
+        assertTrue(this.userJdbcRepository.insertUser("jdbcAlice", "Other", "Name").isEmpty());
+
+        final UserDTO updated = this.userJdbcRepository.updateName("jdbcAlice", "Alicia", null, List.of(new UserVersionTag(1, 0), created)).orElseThrow();
+        assertEquals("Alicia", updated.getFirstName());
+        assertEquals("Smith", updated.getLastName());
+        assertEquals(created.getRevision() + 1, updated.getVersionTag().getRevision());
+        assertNotEquals(created, updated.getVersionTag());
+
+        assertTrue(this.userJdbcRepository.updateName("jdbcAlice", "Stale", null, List.of(created)).isEmpty());
+        assertTrue(this.userJdbcRepository.updateName("jdbcAlice", "None", null, List.of()).isEmpty());
+        assertTrue(this.userJdbcRepository.deleteUser("jdbcAlice", List.of(created)).isEmpty());
+        assertEquals("Alicia", this.jdbcTemplate.queryForObject(
+                "SELECT n.first_name FROM user_data u JOIN name n ON n.id = u.name_id WHERE u.username = 'jdbcAlice'", String.class));
+
+        final UserVersionTag unconditional = this.userJdbcRepository.updateName("jdbcAlice", null, "Jones", null).orElseThrow().getVersionTag();
+        assertEquals("Jones", this.userJdbcRepository.deleteUser("jdbcAlice", List.of(unconditional)).orElseThrow().getLastName());
+        assertTrue(this.userJdbcRepository.deleteUser("jdbcAlice", null).isEmpty());
+
+        assertEquals(List.of("CREATE", "UPDATE", "UPDATE", "DELETE"), this.jdbcTemplate.queryForList(
+                "SELECT operation FROM user_change WHERE username = 'jdbcAlice' AND seq > ? ORDER BY seq", String.class, lastSeq));
+        assertEquals(0, this.jdbcTemplate.queryForObject("SELECT count(*) FROM name WHERE first_name = 'Alicia'", Integer.class));
+    }
+
+    @Test
+    void batchInsertSkipsTakenUsernamesWithoutLeavingTheirNames() {
+        this.userJdbcRepository.insertUser("jdbcBob", "Bob", "Doe");
+
+        final Set<String> inserted = this.userJdbcRepository.insertUsers(List.of(new UserDTO("jdbcBob", "Robert", "Doe"), new UserDTO("jdbcCarol", "Carol", "Jones")));
+
+        assertEquals(Set.of("jdbcCarol"), inserted);
+        assertEquals(Set.of("jdbcBob", "jdbcCarol"), this.userJdbcRepository.findExistingUsernames(List.of("jdbcBob", "jdbcCarol", "jdbcDave")));
+        assertEquals(0, this.jdbcTemplate.queryForObject("SELECT count(*) FROM name WHERE first_name = 'Robert'", Integer.class));
+        assertEquals(0L, this.jdbcTemplate.queryForObject(
+                "SELECT n.version FROM user_data u JOIN name n ON n.id = u.name_id WHERE u.username = 'jdbcCarol'", Long.class));
+    }
+}
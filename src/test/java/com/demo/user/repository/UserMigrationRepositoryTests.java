@@ -0,0 +1,44 @@
+package com.demo.user.repository;
+
+import com.demo.user.PostgreSQLTests;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class UserMigrationRepositoryTests extends PostgreSQLTests {
+    @Autowired
+    private UserMigrationRepository userMigrationRepository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Test
+    void chunkLinksLegacyUsersToNewNamesOnceAndLeavesOthersAlone() {
+        final Timestamp now = Timestamp.from(Instant.now());
+        for (String username : List.of("migA1", "migA2", "migA3")) {
+            this.jdbcTemplate.update("INSERT INTO user_data (id, username, creation_time, update_time, version) VALUES (?, ?, ?, ?, 0)", UUID.randomUUID(), username, now, now);
+        }
+
+        assertEquals("migA2", this.userMigrationRepository.findChunkUpperBound("migA0", 2).orElseThrow());
+        assertEquals(2, this.userMigrationRepository.migrateChunk("migA0", "migA2"));
+        assertEquals(0, this.userMigrationRepository.migrateChunk("migA0", "migA2"));
+
+        final List<Map<String, Object>> rows = this.jdbcTemplate.queryForList(
+                "SELECT u.username, n.id = u.id AS same_id, n.version FROM user_data u LEFT JOIN name n ON n.id = u.name_id WHERE u.username LIKE 'migA%' ORDER BY u.username");
+        assertEquals(3, rows.size());
+        for (Map<String, Object> row : rows.subList(0, 2)) {
+            assertEquals(Boolean.TRUE, row.get("same_id"));
+            assertEquals(0L, row.get("version"));
+        }
+        assertNull(rows.get(2).get("version"), "migA3 is outside the chunk");
+    }
+}
@@ -0,0 +1,91 @@
+package com.demo.user.service;
+
+import com.demo.user.dto.UserDTO;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UserCacheTests {
+    private final UserCache userCache = new UserCache(2, Duration.ofMinutes(5));
+
+    @Test
+    void readsStartedBeforeAWriteDoNotRefillTheCache() {
+        final UserDTO stored = new UserDTO("alice", "Alice", "Smith");
+        final long firstReaderEpoch = this.userCache.currentEpoch("alice");
+        final long secondReaderEpoch = this.userCache.currentEpoch("alice");
+        this.userCache.putIfUnchanged(stored, firstReaderEpoch);
+        assertSame(stored, this.userCache.get("alice").orElseThrow());
+
+        this.userCache.invalidate("alice");
+        assertTrue(this.userCache.get("alice").isEmpty());
+
+        this.userCache.putIfUnchanged(stored, secondReaderEpoch);
+        assertTrue(this.userCache.get("alice").isEmpty());
+
+        final UserDTO updated = new UserDTO("alice", "Alicia", "Smith");
+        this.userCache.putIfUnchanged(updated, this.userCache.currentEpoch("alice"));
+        assertSame(updated, this.userCache.get("alice").orElseThrow());
+    }
+
+    @Test
+    void concurrentWritersInvalidatingInAnyOrderLeaveOnlyWhatReadersLoadedAfterwards() {
+        this.userCache.putIfUnchanged(new UserDTO("alice", "Alice", "Smith"), this.userCache.currentEpoch("alice"));
+
+        // T1 commits A, T2 commits B, T2 invalidates before T1; a reader in between loads B, which T1's late invalidation removes again
+        this.userCache.invalidate("alice");
+        final UserDTO committed = new UserDTO("alice", "B", "Smith");
+        this.userCache.putIfUnchanged(committed, this.userCache.currentEpoch("alice"));
+        assertSame(committed, this.userCache.get("alice").orElseThrow());
+        this.userCache.invalidate("alice");
+
+        assertTrue(this.userCache.get("alice").isEmpty());
+        assertEquals(1, this.userCache.getMisses());
+    }
+
+    @Test
+    void writesOfOtherUsernamesDoNotDropAFill() {
+        final long aliceEpoch = this.userCache.currentEpoch("alice");
+        final long bobEpoch = this.userCache.currentEpoch("bob");
+        this.userCache.invalidate("bob");
+
+        final UserDTO alice = new UserDTO("alice", "Alice", "Smith");
+        this.userCache.putIfUnchanged(alice, aliceEpoch);
+        assertSame(alice, this.userCache.get("alice").orElseThrow());
+        this.userCache.putIfUnchanged(new UserDTO("bob", "Bob", "Doe"), bobEpoch);
+        assertTrue(this.userCache.get("bob").isEmpty());
+    }
+
+    @Test
+    void clearingTheWriteEpochsOfManyUsernamesStillDropsFillsStartedBeforeTheirWrites() {
+        final long staleEpoch = this.userCache.currentEpoch("alice");
+        this.userCache.invalidate("alice");
+        for (int i = 0; i < 2000; i++) this.userCache.invalidate("user" + i);
+
+        this.userCache.putIfUnchanged(new UserDTO("alice", "Alice", "Smith"), staleEpoch);
+        assertTrue(this.userCache.get("alice").isEmpty());
+        final UserDTO updated = new UserDTO("alice", "Alicia", "Smith");
+        this.userCache.putIfUnchanged(updated, this.userCache.currentEpoch("alice"));
+        assertSame(updated, this.userCache.get("alice").orElseThrow());
+    }
+
+    @Test
+    void leastRecentlyUsedEntryIsEvictedAndExpiredEntriesMiss() throws InterruptedException {
+        this.userCache.putIfUnchanged(new UserDTO("alice", "Alice", "Smith"), this.userCache.currentEpoch("alice"));
+        this.userCache.putIfUnchanged(new UserDTO("bob", "Bob", "Doe"), this.userCache.currentEpoch("bob"));
+        assertTrue(this.userCache.get("alice").isPresent());
+        this.userCache.putIfUnchanged(new UserDTO("carol", "Carol", "Jones"), this.userCache.currentEpoch("carol"));
+
+        assertTrue(this.userCache.get("bob").isEmpty());
+        assertTrue(this.userCache.get("alice").isPresent());
+        assertEquals(1, this.userCache.getEvictions());
+
+        final UserCache expiringCache = new UserCache(2, Duration.ofMillis(1));
+        expiringCache.putIfUnchanged(new UserDTO("alice", "Alice", "Smith"), expiringCache.currentEpoch("alice"));
+        Thread.sleep(5);
+        assertTrue(expiringCache.get("alice").isEmpty());
+    }
+}
@@ -0,0 +1,110 @@
+package com.demo.user.service;
+
+import com.demo.user.config.ShardRouting;
+import com.demo.user.dto.UserChangeBatchDTO;
+import com.demo.user.dto.UserChangeDTO;
+import com.demo.user.repository.UserChangeRepository;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class UserChangeFeedTests {
+    private final UserChangeRepository userChangeRepository = mock(UserChangeRepository.class);
+
+    private final UserChangeFeed userChangeFeed = new UserChangeFeed(userChangeRepository, new ShardRouting(List.of("default"), 1), Duration.ofDays(7), Duration.ofSeconds(1), Duration.ofHours(1), 100);
+
+    @Test
+    void cursorContinuesAfterFullBatchAndMovesToHorizonOnceCaughtUp() {
+        when(this.userChangeRepository.findHorizon()).thenReturn(50L);
+        final String end = read(null).getCursor();
+
+        final Instant now = Instant.now();
+        final UserChangeRepository.Changes full = changes(60, position(51, 3, change("alice", now)), position(51, 7, change("bob", now)));
+        when(this.userChangeRepository.findChangesAfter(50, 0, 2)).thenReturn(full);
+        final UserChangeBatchDTO first = read(end);
+        assertEquals(2, first.getChanges().size());
+
+        final UserChangeRepository.Changes rest = changes(60, position(55, 1, change("carol", now)));
+        when(this.userChangeRepository.findChangesAfter(51, 7, 2)).thenReturn(rest);
+        final UserChangeBatchDTO second = read(first.getCursor());
+        assertEquals(List.of("carol"), second.getChanges().stream().map(UserChangeDTO::getUsername).toList());
+
+        final UserChangeRepository.Changes none = changes(61);
+        when(this.userChangeRepository.findChangesAfter(60, 0, 2)).thenReturn(none);
+        assertTrue(read(second.getCursor()).getChanges().isEmpty());
+    }
+
+    @Test
+    void rejectsMalformedCursorsAndCursorsOlderThanTheRetention() {
+        assertTrue(this.userChangeFeed.awaitChanges("not a cursor", 2, Duration.ZERO).isEmpty());
+
+        final Instant old = Instant.now().minus(Duration.ofDays(8));
+        final UserChangeRepository.Changes full = changes(60, position(51, 3, change("alice", old)), position(51, 7, change("bob", old)));
+        when(this.userChangeRepository.findHorizon()).thenReturn(50L);
+        when(this.userChangeRepository.findChangesAfter(50, 0, 2)).thenReturn(full);
+        final String cursor = read(read(null).getCursor()).getCursor();
+
+        assertThrows(UserChangeFeed.CursorExpiredException.class, () -> this.userChangeFeed.awaitChanges(cursor, 2, Duration.ZERO));
+    }
+
+    @Test
+    void waitingRequestsShareOneReadPerPollAndKeepWaitingAfterAFailedOne() throws Exception {
+        final UserChangeFeed pollingFeed = new UserChangeFeed(this.userChangeRepository, new ShardRouting(List.of("default"), 1), Duration.ofDays(7), Duration.ofMillis(10), Duration.ofHours(1), 100);
+        try {
+            final Instant now = Instant.now();
+            when(this.userChangeRepository.findHorizon()).thenReturn(50L);
+            when(this.userChangeRepository.findChangesAfter(50, 0, 2)).thenReturn(changes(60, position(51, 3, change("alice", now)), position(51, 7, change("bob", now))));
+            final String behind = read(null).getCursor();
+            final String ahead = read(behind).getCursor();
+
+            when(this.userChangeRepository.findChangesAfter(50, 0, 3)).thenReturn(changes(50))
+                    .thenThrow(new IllegalStateException("database unavailable"))
+                    .thenReturn(changes(60, position(51, 3, change("alice", now)), position(51, 7, change("bob", now)), position(52, 1, change("carol", now))));
+            when(this.userChangeRepository.findChangesAfter(51, 7, 3)).thenReturn(changes(50));
+            final CompletableFuture<UserChangeBatchDTO> behindFuture = pollingFeed.awaitChanges(behind, 3, Duration.ofSeconds(10)).orElseThrow();
+            final CompletableFuture<UserChangeBatchDTO> aheadFuture = pollingFeed.awaitChanges(ahead, 3, Duration.ofSeconds(10)).orElseThrow();
+            assertFalse(behindFuture.isDone());
+            assertFalse(aheadFuture.isDone());
+
+            pollingFeed.onApplicationReady();
+
+            assertEquals(List.of("alice", "bob", "carol"), behindFuture.get(5, TimeUnit.SECONDS).getChanges().stream().map(UserChangeDTO::getUsername).toList());
+            assertEquals(List.of("carol"), aheadFuture.get(5, TimeUnit.SECONDS).getChanges().stream().map(UserChangeDTO::getUsername).toList());
+            verify(this.userChangeRepository, times(3)).findChangesAfter(50, 0, 3);
+            verify(this.userChangeRepository, times(1)).findChangesAfter(51, 7, 3);
+        } finally {
+            pollingFeed.shutdown();
+        }
+    }
+
+    private UserChangeBatchDTO read(final String after) {
+        return this.userChangeFeed.awaitChanges(after, 2, Duration.ZERO).orElseThrow().join();
+    }
+
+    private static UserChangeDTO change(final String username, final Instant changeTime) {
+        return new UserChangeDTO(username, UserChangeDTO.Operation.UPDATE, changeTime);
+    }
+
+    private static Object[] position(final long transactionId, final long seq, final UserChangeDTO userChangeDTO) {
+        return new Object[]{transactionId, seq, userChangeDTO};
+    }
+
+    private static UserChangeRepository.Changes changes(final long horizon, final Object[]... positions) {
+        final UserChangeRepository.Changes changes = new UserChangeRepository.Changes(horizon);
+        for (Object[] position : positions) changes.add((Long) position[0], (Long) position[1], (UserChangeDTO) position[2]);
+        return changes;
+    }
+}
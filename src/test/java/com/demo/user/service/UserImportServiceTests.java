@@ -0,0 +1,85 @@
+package com.demo.user.service;
+
+import com.demo.user.config.ShardRouting;
+import com.demo.user.dto.UserDTO;
+import com.demo.user.repository.UserImportRepository;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class UserImportServiceTests {
+    @Test
+    void parsesQuotedAndEmptyFieldsAndValidatesLikePostRequests() {
+        assertArrayEquals(new String[]{"alice", "Mary, Ann", "O\"Neil"}, UserImportService.parseRecord("alice,\"Mary, Ann\",\"O\"\"Neil\""));
+        assertArrayEquals(new String[]{"bob", "", null}, UserImportService.parseRecord("bob,\"\","));
+        assertNull(UserImportService.parseRecord("carol,Carol"));
+        assertNull(UserImportService.parseRecord("carol,Carol,Smith,extra"));
+        assertNull(UserImportService.parseRecord("carol,\"Carol,Smith"));
+
+        final String[] fields = {"alice", "  Mary   Ann ", "Smith"};
+        assertNull(UserImportService.validate(fields));
+        assertEquals("Mary Ann", fields[1]);
+        assertEquals(UserImportService.INVALID_USERNAME, UserImportService.validate(new String[]{"1alice", "Alice", "Smith"}));
+        assertEquals(UserImportService.MISSING_NAME, UserImportService.validate(new String[]{"alice", null, "Smith"}));
+        assertEquals(UserImportService.NAME_TOO_LONG, UserImportService.validate(new String[]{"alice", "A".repeat(256), "Smith"}));
+    }
+
+    @Test
+    void stagesValidRowsInChunksAndWritesRejectedRowsToTheErrorFile(@TempDir final Path directory) throws Exception {
+        final UserImportRepository userImportRepository = mock(UserImportRepository.class);
+        final List<String> stagedChunks = new ArrayList<>();
+        when(userImportRepository.copyToStagingTable(any())).thenAnswer(invocation -> {
+            final String chunk = new String(invocation.<InputStream>getArgument(0).readAllBytes(), StandardCharsets.UTF_8);
+            stagedChunks.add(chunk);
+            return chunk.lines().count();
+        });
+        doAnswer(invocation -> {
+            if (stagedChunks.size() == 1) invocation.<UserImportRepository.RejectHandler>getArgument(0).reject(4, new UserDTO("bob", "Bob", "Doe"), false);
+            return stagedChunks.size() == 1 ? 1L : 0L;
+        }).when(userImportRepository).mergeStagingTable(any());
+        final UsernameBloomFilter usernameBloomFilter = mock(UsernameBloomFilter.class);
+        final UsernameIndex usernameIndex = mock(UsernameIndex.class);
+        final UserImportService userImportService = new UserImportService(userImportRepository, usernameBloomFilter, usernameIndex,
+                new ShardRouting(List.of("default"), 1), mock(PlatformTransactionManager.class), directory.toString(), 2, 1);
+
+        final Path file = Files.writeString(directory.resolve("legacy.csv"), "username,first_name,last_name\n"
+                + "alice,Alice,Smith\n"
+                + "1nvalid,Some,One\n"
+                + "bob,Bob,Doe\n"
+                + "\n"
+                + "carol,\"Carol \",Jones\n");
+        assertTrue(userImportService.resolve("legacy.csv").isPresent());
+        assertTrue(userImportService.resolve("../legacy.csv").isEmpty());
+
+        userImportService.runImport(file, directory.resolve("legacy.csv.rejected.csv"), true);
+
+        assertEquals(List.of("2,alice,\"Alice\",\"Smith\"\n4,bob,\"Bob\",\"Doe\"\n", "6,carol,\"Carol\",\"Jones\"\n"), stagedChunks);
+        assertEquals("line,reason,record\n"
+                        + "3,invalid username,\"1nvalid,Some,One\"\n"
+                        + "4,username taken,\"bob,\"\"Bob\"\",\"\"Doe\"\"\"\n",
+                Files.readString(directory.resolve("legacy.csv.rejected.csv")));
+        verify(usernameBloomFilter).suspend();
+        verify(usernameBloomFilter).resume();
+        verify(usernameIndex).add("carol");
+        assertEquals(4, userImportService.getStatus().getReadRows());
+        assertEquals(2, userImportService.getStatus().getImportedRows());
+        assertEquals(2, userImportService.getStatus().getRejectedRows());
+    }
+}
@@ -0,0 +1,137 @@
+package com.demo.user.service;
+
+import com.demo.user.dto.UserDTO;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UserLookupCoalescerTests {
+    private final UserLookupCoalescer userLookupCoalescer = new UserLookupCoalescer(true);
+
+    @Test
+    void concurrentLookupsShareOneQueryAndItsFailure() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final AtomicInteger queries = new AtomicInteger();
+            final CountDownLatch release = new CountDownLatch(1);
+            final UserDTO alice = new UserDTO("alice", "Alice", "Smith");
+            final List<Future<Optional<UserDTO>>> results = submit(executor, 8, 1, false, blockingLookup(queries, release, () -> Optional.of(alice)));
+            awaitCoalesced(7);
+            release.countDown();
+            for (Future<Optional<UserDTO>> result : results) assertSame(alice, result.get(10, TimeUnit.SECONDS).orElseThrow());
+            assertEquals(1, queries.get());
+
+            final IllegalStateException failure = new IllegalStateException("database unavailable");
+            final CountDownLatch releaseFailure = new CountDownLatch(1);
+            final List<Future<Optional<UserDTO>>> failed = submit(executor, 4, 1, false, blockingLookup(queries, releaseFailure, () -> {
+                throw failure;
+            }));
+            awaitCoalesced(10);
+            releaseFailure.countDown();
+            for (Future<Optional<UserDTO>> result : failed) {
+                final Exception e = assertThrows(Exception.class, () -> result.get(10, TimeUnit.SECONDS));
+                assertSame(failure, e.getCause());
+            }
+            assertEquals(2, queries.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void lookupsAfterAWriteOrNeedingThePrimaryStartTheirOwnQuery() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            final AtomicInteger queries = new AtomicInteger();
+            final CountDownLatch release = new CountDownLatch(1);
+            final Supplier<Optional<UserDTO>> lookup = blockingLookup(queries, release, Optional::empty);
+            final List<Future<Optional<UserDTO>>> results = new ArrayList<>(submit(executor, 1, 1, false, lookup));
+            awaitQueries(queries, 1);
+            results.addAll(submit(executor, 1, 2, false, lookup));
+            awaitQueries(queries, 2);
+            results.addAll(submit(executor, 1, 2, true, lookup));
+            awaitQueries(queries, 3);
+
+            release.countDown();
+            for (Future<Optional<UserDTO>> result : results) assertTrue(result.get(10, TimeUnit.SECONDS).isEmpty());
+            assertEquals(0, this.userLookupCoalescer.getCoalesced());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void writesOfOtherUsernamesDoNotSplitAFlight() throws Exception {
+        final UserCache userCache = new UserCache(100, Duration.ofMinutes(5));
+        final ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            final AtomicInteger queries = new AtomicInteger();
+            final CountDownLatch release = new CountDownLatch(1);
+            final Supplier<Optional<UserDTO>> lookup = blockingLookup(queries, release, Optional::empty);
+            final List<Future<Optional<UserDTO>>> results = new ArrayList<>(submit(executor, 1, userCache.currentEpoch("alice"), false, lookup));
+            awaitQueries(queries, 1);
+
+            userCache.invalidate("bob");
+            results.addAll(submit(executor, 1, userCache.currentEpoch("alice"), false, lookup));
+            awaitCoalesced(1);
+
+            userCache.invalidate("alice");
+            results.addAll(submit(executor, 1, userCache.currentEpoch("alice"), false, lookup));
+            awaitQueries(queries, 2);
+
+            release.countDown();
+            for (Future<Optional<UserDTO>> result : results) assertTrue(result.get(10, TimeUnit.SECONDS).isEmpty());
+            assertEquals(1, this.userLookupCoalescer.getCoalesced());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private List<Future<Optional<UserDTO>>> submit(final ExecutorService executor, final int count, final long epoch, final boolean onPrimary,
+                                                   final Supplier<Optional<UserDTO>> lookup) {
+        final List<Future<Optional<UserDTO>>> results = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            results.add(executor.submit(() -> this.userLookupCoalescer.lookup("alice", epoch, onPrimary, lookup)));
+        }
+        return results;
+    }
+
+    private static Supplier<Optional<UserDTO>> blockingLookup(final AtomicInteger queries, final CountDownLatch release, final Supplier<Optional<UserDTO>> result) {
+        return () -> {
+            queries.incrementAndGet();
+            try {
+                assertTrue(release.await(10, TimeUnit.SECONDS));
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            return result.get();
+        };
+    }
+
+    private void awaitCoalesced(final long expected) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (this.userLookupCoalescer.getCoalesced() < expected && System.nanoTime() < deadline) Thread.sleep(1);
+        assertEquals(expected, this.userLookupCoalescer.getCoalesced());
+    }
+
+    private static void awaitQueries(final AtomicInteger queries, final int expected) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (queries.get() < expected && System.nanoTime() < deadline) Thread.sleep(1);
+        assertEquals(expected, queries.get());
+    }
+}
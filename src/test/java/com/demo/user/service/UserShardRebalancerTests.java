@@ -0,0 +1,78 @@
+package com.demo.user.service;
+
+import com.demo.user.config.ShardRouting;
+import com.demo.user.repository.UserRebalanceRepository;
+import com.demo.user.repository.UserRebalanceRepository.StoredUser;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class UserShardRebalancerTests {
+    private final UserRebalanceRepository userRebalanceRepository = mock(UserRebalanceRepository.class);
+
+    @Test
+    void misplacedUsersAreCopiedToTheirShardAndDeletedUnlessTheUsernameIsTaken() {
+        final ShardRouting shardRouting = new ShardRouting(List.of("shard0", "shard1"), 128);
+        try {
+            final List<StoredUser> storedUsers = new ArrayList<>();
+            for (int i = 0; i < 20; i++) storedUsers.add(storedUser("user" + i));
+            when(this.userRebalanceRepository.findUsersAfter(isNull(), anyInt())).thenReturn(storedUsers);
+            when(this.userRebalanceRepository.findUsersAfter(eq("user19"), anyInt())).thenReturn(List.of());
+            when(this.userRebalanceRepository.insertUsers(any())).thenAnswer(invocation -> invocation.<List<StoredUser>>getArgument(0).stream()
+                    .map(StoredUser::getUsername).filter(username -> !username.equals("user7")).collect(Collectors.toSet()));
+            final Set<String> deleted = Collections.synchronizedSet(new HashSet<>());
+            doAnswer(invocation -> {
+                invocation.<List<StoredUser>>getArgument(0).forEach(storedUser -> deleted.add(storedUser.getUsername()));
+                return null;
+            }).when(this.userRebalanceRepository).deleteUsers(any());
+
+            final UserShardRebalancer userShardRebalancer = new UserShardRebalancer(this.userRebalanceRepository, shardRouting, mock(PlatformTransactionManager.class), 20);
+
+            assertEquals(19, userShardRebalancer.rebalance());
+            assertEquals(19, deleted.size());
+            assertFalse(deleted.contains("user7"));
+        } finally {
+            shardRouting.shutdown();
+        }
+    }
+
+    @Test
+    void scanContinuesAfterTheLastUsernameOfEveryChunkAndKeepsPlacedUsers() {
+        final ShardRouting shardRouting = new ShardRouting(List.of("default"), 1);
+        when(this.userRebalanceRepository.findUsersAfter(isNull(), eq(2))).thenReturn(List.of(storedUser("alice"), storedUser("bob")));
+        when(this.userRebalanceRepository.findUsersAfter(eq("bob"), eq(2))).thenReturn(List.of(storedUser("carol")));
+        when(this.userRebalanceRepository.findUsersAfter(eq("carol"), eq(2))).thenReturn(List.of());
+
+        final UserShardRebalancer userShardRebalancer = new UserShardRebalancer(this.userRebalanceRepository, shardRouting, mock(PlatformTransactionManager.class), 2);
+
+        assertEquals(0, userShardRebalancer.rebalance());
+        verify(this.userRebalanceRepository).findUsersAfter(eq("carol"), eq(2));
+        verify(this.userRebalanceRepository, never()).insertUsers(any());
+    }
+
+    private static StoredUser storedUser(final String username) {
+        final Timestamp now = Timestamp.from(Instant.now());
+        return new StoredUser(UUID.randomUUID(), username, now, now, 0, UUID.randomUUID(), "First", "Last", now, now, 0);
+    }
+}
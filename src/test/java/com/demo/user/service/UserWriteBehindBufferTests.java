@@ -0,0 +1,77 @@
+package com.demo.user.service;
+
+import com.demo.user.config.ReplicaRouting;
+import com.demo.user.config.ShardRouting;
+import com.demo.user.dto.UserDTO;
+import com.demo.user.repository.UserChangeRepository;
+import com.demo.user.repository.UserJdbcRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class UserWriteBehindBufferTests {
+    private final UserJdbcRepository userJdbcRepository = mock(UserJdbcRepository.class);
+
+    private final ShardRouting shardRouting = new ShardRouting(List.of("default"), 1);
+
+    private final UserWriteBehindBuffer buffer = new UserWriteBehindBuffer(this.userJdbcRepository, mock(UserChangeRepository.class), new UserCache(10, Duration.ofMinutes(1)),
+            new ReplicaRouting(false, Duration.ofSeconds(5)), this.shardRouting, mock(PlatformTransactionManager.class),
+            true, 2, 2, Duration.ofMillis(1), Duration.ofMillis(50), Duration.ofMillis(100), Duration.ofMillis(400));
+
+    private final List<Long> attemptNanos = new CopyOnWriteArrayList<>();
+
+    private final List<List<UserDTO>> writtenBatches = new CopyOnWriteArrayList<>();
+
+    private final AtomicBoolean failing = new AtomicBoolean(true);
+
+    @AfterEach
+    void tearDown() {
+        this.failing.set(false);
+        this.buffer.shutdown();
+        this.shardRouting.shutdown();
+    }
+
+    @Test
+    void failedBatchesAreRetriedWithGrowingBackoffWithoutExceedingTheCapacity() throws InterruptedException {
+        when(this.userJdbcRepository.updateNames(any())).thenAnswer(invocation -> {
+            this.attemptNanos.add(System.nanoTime());
+            if (this.failing.get()) throw new IllegalStateException("database unavailable");
+            final List<UserDTO> batch = invocation.getArgument(0);
+            this.writtenBatches.add(List.copyOf(batch));
+            return Set.of();
+        });
+
+        this.buffer.enqueue(new UserDTO("alice", "Alice", null));
+        this.buffer.enqueue(new UserDTO("bob", "Bob", "Doe"));
+        Thread.sleep(50);
+        this.buffer.enqueue(new UserDTO("alice", null, "Smith"));
+        assertThrows(UserWriteBehindBuffer.BufferFullException.class, () -> this.buffer.enqueue(new UserDTO("carol", "Carol", "Jones")));
+
+        Thread.sleep(750);
+        final int attempts = this.attemptNanos.size();
+        assertTrue(attempts >= 3 && attempts <= 5, attempts + " attempts instead of about 4 with backoff of 100, 200 and 400 ms");
+        for (int i = 2; i < attempts; i++) {
+            final long gapMillis = (this.attemptNanos.get(i) - this.attemptNanos.get(i - 1)) / 1_000_000;
+            assertTrue(gapMillis >= 150, "retry " + i + " after " + gapMillis + " ms");
+        }
+        assertEquals("Smith", this.buffer.overlay(new UserDTO("alice", "Old", "Old")).getLastName());
+
+        this.failing.set(false);
+        while (this.writtenBatches.isEmpty()) Thread.sleep(10);
+        assertEquals(Set.of("alice", "bob"), Set.of(this.writtenBatches.get(0).get(0).getUsername(), this.writtenBatches.get(0).get(1).getUsername()));
+        this.buffer.enqueue(new UserDTO("carol", "Carol", "Jones"));
+    }
+}
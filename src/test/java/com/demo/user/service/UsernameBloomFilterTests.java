@@ -0,0 +1,57 @@
+package com.demo.user.service;
+
+import com.demo.user.config.ShardRouting;
+import com.demo.user.repository.UserJdbcRepository;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class UsernameBloomFilterTests {
+    @Test
+    void bitsHaveNoFalseNegativesAndKeepTheFalsePositiveRate() {
+        final UsernameBloomFilter.Bits bits = new UsernameBloomFilter.Bits(100_000, 0.01);
+        for (int i = 0; i < 100_000; i++) bits.put("user" + i);
+
+        for (int i = 0; i < 100_000; i++) assertTrue(bits.mightContain("user" + i), "user" + i);
+
+        int falsePositives = 0;
+        for (int i = 0; i < 100_000; i++) {
+            if (bits.mightContain("absent" + i)) falsePositives++;
+        }
+        assertTrue(falsePositives < 1_500, "false positives: " + falsePositives);
+        assertTrue(bits.fillRatio() > 0.4 && bits.fillRatio() < 0.6, "fill ratio: " + bits.fillRatio());
+    }
+
+    @Test
+    void rebuildKeepsUsernamesAddedMeanwhile() {
+        final UserJdbcRepository userJdbcRepository = mock(UserJdbcRepository.class);
+        when(userJdbcRepository.countUsers()).thenReturn(1L);
+        doAnswer(invocation -> {
+            invocation.<Consumer<String>>getArgument(2).accept("stored");
+            return null;
+        }).when(userJdbcRepository).streamUsernames(anyInt(), anyBoolean(), any());
+
+        final UsernameBloomFilter usernameBloomFilter = new UsernameBloomFilter(userJdbcRepository, new ShardRouting(List.of("default"), 1), mock(PlatformTransactionManager.class),
+                true, 1000, 0.01, Duration.ofHours(1), 1000);
+        assertTrue(usernameBloomFilter.mightContain("absent"));
+
+        usernameBloomFilter.add("created");
+        usernameBloomFilter.rebuild();
+
+        assertTrue(usernameBloomFilter.mightContain("stored"));
+        assertTrue(usernameBloomFilter.mightContain("created"));
+        assertFalse(usernameBloomFilter.mightContain("absent"));
+    }
+}
@@ -0,0 +1,101 @@
+package com.demo.user.service;
+
+import com.demo.user.config.ShardRouting;
+import com.demo.user.repository.UserJdbcRepository;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+
+class UsernameIndexTests {
+    private static final char[] ALPHABET = "abAB_1".toCharArray();
+
+    @Test
+    void findByPrefixMatchesSortedSetUnderCreationsAndDeletions() {
+        final Random random = new Random(42);
+        final TreeSet<String> expected = new TreeSet<>();
+        while (expected.size() < 5_000) expected.add(randomUsername(random));
+
+        final UsernameIndex usernameIndex = new UsernameIndex(null, null, null, true, 1000, Duration.ofMinutes(1));
+        final UsernameIndex.Builder builder = new UsernameIndex.Builder();
+        expected.forEach(builder::append);
+        usernameIndex.load(builder);
+
+        for (int i = 0; i < 50_000; i++) {
+            final String username = randomUsername(random);
+            if (random.nextBoolean()) {
+                expected.add(username);
+                usernameIndex.add(username);
+            } else {
+                expected.remove(username);
+                usernameIndex.remove(username);
+            }
+
+            if (i % 10 == 0) {
+                final String prefix = randomUsername(random).substring(0, random.nextInt(4));
+                final int limit = 1 + random.nextInt(50);
+                assertEquals(findByPrefix(expected, prefix, limit), usernameIndex.findByPrefix(prefix, limit), prefix);
+            }
+        }
+        assertEquals(expected.size(), usernameIndex.size());
+    }
+
+    @Test
+    void builderRejectsUnsortedUsernames() {
+        final UsernameIndex.Builder builder = new UsernameIndex.Builder();
+        builder.append("bob");
+        assertThrows(IllegalArgumentException.class, () -> builder.append("alice"));
+    }
+
+    @Test
+    void failedLoadIsReportedAndRetried() throws InterruptedException {
+        final UserJdbcRepository userJdbcRepository = mock(UserJdbcRepository.class);
+        doThrow(new IllegalStateException("database unavailable")).doAnswer(invocation -> {
+            final Consumer<String> consumer = invocation.getArgument(2);
+            consumer.accept("alice");
+            consumer.accept("bob");
+            return null;
+        }).when(userJdbcRepository).streamUsernames(anyInt(), eq(true), any());
+        final ShardRouting shardRouting = new ShardRouting(List.of("default"), 1);
+        final UsernameIndex usernameIndex = new UsernameIndex(userJdbcRepository, shardRouting, mock(PlatformTransactionManager.class), true, 1000, Duration.ofMillis(200));
+        assertEquals(UsernameIndex.State.LOADING, usernameIndex.getState());
+
+        usernameIndex.onApplicationReady();
+        Thread.sleep(100);
+        assertEquals(UsernameIndex.State.FAILED, usernameIndex.getState());
+
+        final long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+        while (usernameIndex.getState() != UsernameIndex.State.READY && System.nanoTime() < deadline) Thread.sleep(10);
+        assertEquals(UsernameIndex.State.READY, usernameIndex.getState());
+        assertEquals(List.of("alice"), usernameIndex.findByPrefix("a", 10));
+        assertEquals(UsernameIndex.State.DISABLED, new UsernameIndex(null, null, null, false, 1000, Duration.ofMinutes(1)).getState());
+    }
+
+    private static List<String> findByPrefix(TreeSet<String> usernames, String prefix, int limit) {
+        final List<String> result = new ArrayList<>();
+        for (String username : usernames.tailSet(prefix)) {
+            if (!username.startsWith(prefix) || result.size() == limit) break;
+            result.add(username);
+        }
+        return result;
+    }
+
+    private static String randomUsername(Random random) {
+        final char[] chars = new char[3 + random.nextInt(5)];
+        for (int i = 0; i < chars.length; i++) chars[i] = ALPHABET[random.nextInt(ALPHABET.length)];
+        return new String(chars);
+    }
+}
@@ -0,0 +1,38 @@
+package com.demo.user.validation;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ValidationTests {
+    private static final Pattern LEGACY_USERNAME_PATTERN = Pattern.compile("^([a-zA-Z])+([\\w]{2,19})+$");
+
+    private static final char[] ALPHABET = "aZ09_ -\t\n.é".toCharArray();
+
+    @Test
+    void usernameValidatorAcceptsWhatLegacyPatternAccepts() {
+        final Random random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            final String username = randomString(random, 25);
+            assertEquals(LEGACY_USERNAME_PATTERN.matcher(username).matches(), UsernameValidator.isValid(username), username);
+        }
+    }
+
+    @Test
+    void nameNormalizerCollapsesLikeLegacyReplaceAll() {
+        final Random random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            final String name = randomString(random, 12);
+            assertEquals(name.trim().replaceAll(" +", " "), NameNormalizer.normalize(name), name);
+        }
+    }
+
+    private static String randomString(Random random, int maxLength) {
+        final char[] chars = new char[random.nextInt(maxLength + 1)];
+        for (int i = 0; i < chars.length; i++) chars[i] = ALPHABET[random.nextInt(ALPHABET.length)];
+        return new String(chars);
+    }
+}